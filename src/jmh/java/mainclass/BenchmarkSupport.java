@@ -0,0 +1,92 @@
+package mainclass;
+
+import transport.ChannelListener;
+import transport.LoginListener;
+import transport.MessageListener;
+import transport.SignalTransport;
+import transport.TransportChannel;
+import transport.TransportSession;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Shared fixtures for the benchmarks: a transport that answers synchronously so only client
+ * side cost is measured, and a sink for console output.
+ */
+class BenchmarkSupport {
+
+    static PrintStream discardConsole() {
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        return original;
+    }
+
+    /**
+     * Logs in {@code account} on a fresh worker backed by {@link SyncTransport}.
+     */
+    static WorkerThread loggedInWorker(String account) {
+        WorkerThread worker = new WorkerThread(new SyncTransport());
+        worker.login(account, new SyncTransport());
+        return worker;
+    }
+
+    static class SyncTransport implements SignalTransport {
+
+        public void login(final String account, String token, LoginListener listener) {
+            listener.onLoginSuccess(new SyncSession(account), 1);
+        }
+
+        public String getName() {
+            return "sync";
+        }
+    }
+
+    static class SyncSession implements TransportSession {
+
+        private final String account;
+
+        SyncSession(String account) {
+            this.account = account;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        public int getUid() {
+            return 1;
+        }
+
+        public void logout() {
+        }
+
+        public void messageInstantSend(String peerAccount, String msg, MessageListener listener) {
+            listener.onMessageSendSuccess(this);
+        }
+
+        public TransportChannel channelJoin(final String channelName, ChannelListener listener) {
+            TransportChannel channel = new TransportChannel() {
+                public String getName() {
+                    return channelName;
+                }
+
+                public void messageChannelSend(String msg) {
+                }
+
+                public void channelLeave() {
+                }
+            };
+            listener.onChannelJoined(this, channel);
+            return channel;
+        }
+    }
+}
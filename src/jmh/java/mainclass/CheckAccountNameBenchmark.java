@@ -0,0 +1,29 @@
+package mainclass;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckAccountNameBenchmark {
+
+    private WorkerThread worker;
+
+    @Param({"alice", "a_much_longer_account_name_used_by_integrations_0123456789"})
+    public String account;
+
+    @Setup
+    public void setUp() {
+        worker = BenchmarkSupport.loggedInWorker("bench");
+    }
+
+    @Benchmark
+    public boolean checkAccountName() {
+        return worker.checkAccountName(account);
+    }
+}
@@ -0,0 +1,37 @@
+package mainclass;
+
+import model.DialogueRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DialogueRecord} construction on its own and appended to a history list.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryAppendBenchmark {
+
+    private List<DialogueRecord> history;
+
+    @Setup(Level.Iteration)
+    public void resetHistory() {
+        history = new ArrayList<DialogueRecord>();
+    }
+
+    @Benchmark
+    public DialogueRecord createRecord() {
+        return new DialogueRecord("peer", "hello from the other side", System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public boolean appendRecord() {
+        return history.add(new DialogueRecord("peer", "hello from the other side", System.currentTimeMillis()));
+    }
+}
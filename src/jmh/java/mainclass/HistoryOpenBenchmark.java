@@ -0,0 +1,86 @@
+package mainclass;
+
+import history.ConversationId;
+import history.HistoryStore;
+import history.MessageLog;
+import model.DialogueRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to first conversation after login: opening a record log and reading one conversation
+ * through its segment indexes, compared with replaying the whole log into a
+ * {@link HistoryStore} first. Only the replay should grow with {@code records}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryOpenBenchmark {
+
+    private static final long SEGMENT_BYTES = 8L * 1024 * 1024;
+
+    @Param({"100000", "1000000"})
+    public int records;
+
+    @Param({"1000"})
+    public int conversations;
+
+    private File directory;
+    private ConversationId recent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("history-open").toFile();
+        MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 1024, false, 0, 0);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < records; i++) {
+            ConversationId id = ConversationId.p2p("peer" + (i % conversations));
+            log.append(id, new DialogueRecord(id.getName(), "message number " + i, now + i));
+        }
+        log.close();
+        recent = ConversationId.p2p("peer" + ((records - 1) % conversations));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public List<DialogueRecord> lazy() throws IOException {
+        MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 1024, false, 0, 0);
+        try {
+            HistoryStore history = new HistoryStore(1000, 1L << 30, null);
+            history.setSource(log);
+            return history.snapshot(recent);
+        } finally {
+            log.close();
+        }
+    }
+
+    @Benchmark
+    public List<DialogueRecord> replayAll() throws IOException {
+        MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 1024, false, 0, 0);
+        try {
+            final HistoryStore history = new HistoryStore(1000, 1L << 30, null);
+            log.replay(entry -> history.restore(entry.getConversation(), entry.getRecord()));
+            return history.snapshot(recent);
+        } finally {
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package mainclass;
+
+import history.ConversationId;
+import history.HistoryIndex;
+import history.HistoryQuery;
+import history.LogEntry;
+import model.DialogueRecord;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index lookups over a large history: the last page of a channel since a point in time, and
+ * one sender's messages across all channels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class HistoryQueryBenchmark {
+
+    private static final int CHANNELS = 100;
+    private static final int SENDERS = 1000;
+
+    @Param({"1000000"})
+    public int records;
+
+    private HistoryIndex index;
+    private long start;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        index = new HistoryIndex(records);
+        start = System.currentTimeMillis() - records;
+        for (int i = 0; i < records; i++) {
+            index.add(ConversationId.channel("channel" + (i % CHANNELS)),
+                    new DialogueRecord("user" + (i % SENDERS), "message " + i, new Date(start + i)));
+        }
+    }
+
+    @Benchmark
+    public void last50InChannelSince(Blackhole bh) {
+        Iterator<LogEntry> cursor = index.query(HistoryQuery.inConversation(ConversationId.channel("channel7"))
+                .since(start + records / 2).newestFirst().limit(50));
+        while (cursor.hasNext()) {
+            bh.consume(cursor.next());
+        }
+    }
+
+    @Benchmark
+    public void senderAcrossChannels(Blackhole bh) {
+        Iterator<LogEntry> cursor = index.query(HistoryQuery.fromSender("user42").since(start + records - 100000));
+        while (cursor.hasNext()) {
+            bh.consume(cursor.next());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package mainclass;
+
+import history.ConversationId;
+import history.HistoryStore;
+import model.DialogueRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent appends to {@link HistoryStore}, as done by several SDK callback threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class HistoryStoreBenchmark {
+
+    private static final ConversationId SHARED = ConversationId.channel("busy");
+
+    private HistoryStore store;
+
+    @State(Scope.Thread)
+    public static class Writer {
+
+        private static final AtomicInteger IDS = new AtomicInteger();
+
+        ConversationId own;
+
+        @Setup
+        public void setUp() {
+            own = ConversationId.p2p("peer" + IDS.incrementAndGet());
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        store = new HistoryStore();
+    }
+
+    @Benchmark
+    public long appendOwnConversation(Writer writer) {
+        return store.append(writer.own, new DialogueRecord("peer", "hello", System.currentTimeMillis()));
+    }
+
+    @Benchmark
+    public long appendSharedConversation() {
+        return store.append(SHARED, new DialogueRecord("peer", "hello", System.currentTimeMillis()));
+    }
+
+    @Benchmark
+    public int snapshotSharedConversation() {
+        store.append(SHARED, new DialogueRecord("peer", "hello", System.currentTimeMillis()));
+        return store.snapshot(SHARED).size();
+    }
+}
@@ -0,0 +1,67 @@
+package mainclass;
+
+import history.ConversationId;
+import history.MessageLog;
+import model.DialogueRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persisting one record through {@link MessageLog}, compared with rewriting the whole
+ * history in {@link ReadWriteDialogueBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class MessageLogBenchmark {
+
+    private static final ConversationId CHANNEL = ConversationId.channel("busy");
+
+    @Param({"true", "false"})
+    public boolean fsync;
+
+    private File directory;
+    private MessageLog log;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("message-log").toFile();
+        log = new MessageLog(directory, 64L * 1024 * 1024, 1024, fsync, 0, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        log.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Enqueue cost only, what a callback thread pays.
+     */
+    @Benchmark
+    public Object append() {
+        return log.append(CHANNEL, new DialogueRecord("peer", "hello from the other side", System.currentTimeMillis()));
+    }
+
+    /**
+     * Enqueue and wait for the group commit that makes the record durable.
+     */
+    @Benchmark
+    public Long appendAndWait() throws Exception {
+        return log.append(CHANNEL, new DialogueRecord("peer", "hello from the other side", System.currentTimeMillis())).get();
+    }
+}
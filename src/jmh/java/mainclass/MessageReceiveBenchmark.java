@@ -0,0 +1,51 @@
+package mainclass;
+
+import model.DialogueStatus;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the receive callbacks: record construction and history append. The console only
+ * prints the conversation on screen and none is, as for messages to a background account.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageReceiveBenchmark {
+
+    private WorkerThread worker;
+    private PrintStream console;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        console = BenchmarkSupport.discardConsole();
+        worker = BenchmarkSupport.loggedInWorker("bench");
+    }
+
+    @Setup(Level.Iteration)
+    public void resetHistory() {
+        worker.getHistory().clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public void instantReceive() {
+        worker.setCurrentStatus(DialogueStatus.SINGLE_POINT);
+        worker.receiveInstantMessage("peer", "hello from the other side");
+    }
+
+    @Benchmark
+    public void channelReceive() {
+        worker.setCurrentStatus(DialogueStatus.CHANNEL);
+        worker.receiveChannelMessage("bench-channel", "peer", "hello channel");
+    }
+}
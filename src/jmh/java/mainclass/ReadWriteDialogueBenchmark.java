@@ -0,0 +1,72 @@
+package mainclass;
+
+import model.DialogueRecord;
+import org.openjdk.jmh.annotations.*;
+import tool.ReadWriteDialogue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-history save and load through {@link ReadWriteDialogue} at realistic history sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadWriteDialogueBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int records;
+
+    @Param({"10"})
+    public int conversations;
+
+    private HashMap<String, List<DialogueRecord>> history;
+    private String path;
+    private PrintStream console;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        console = BenchmarkSupport.discardConsole();
+        history = new HashMap<String, List<DialogueRecord>>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < records; i++) {
+            String peer = "peer" + (i % conversations);
+            List<DialogueRecord> list = history.get(peer);
+            if (list == null) {
+                list = new ArrayList<DialogueRecord>();
+                history.put(peer, list);
+            }
+            list.add(new DialogueRecord(peer, "message number " + i, new Date(now + i)));
+        }
+        File file = File.createTempFile("dialogue", ".tmp");
+        file.deleteOnExit();
+        path = file.getPath();
+        ReadWriteDialogue.writeObjectToFile(history, path);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(console);
+        new File(path).delete();
+    }
+
+    @Benchmark
+    public void write() {
+        ReadWriteDialogue.writeObjectToFile(history, path);
+    }
+
+    @Benchmark
+    public Object read() {
+        return ReadWriteDialogue.readObjectFromFile(path);
+    }
+}
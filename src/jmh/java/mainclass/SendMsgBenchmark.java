@@ -0,0 +1,47 @@
+package mainclass;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code sendMsg} against a transport that acks synchronously, and the success callback alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendMsgBenchmark {
+
+    private WorkerThread worker;
+    private PrintStream console;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        console = BenchmarkSupport.discardConsole();
+        worker = BenchmarkSupport.loggedInWorker("bench");
+    }
+
+    @Setup(Level.Iteration)
+    public void resetHistory() {
+        worker.getHistory().clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public void sendMsg() {
+        worker.sendMsg("hello from the benchmark", "peer");
+    }
+
+    @Benchmark
+    public void sendSuccessCallback() {
+        worker.instantMessageSent("peer", "hello from the benchmark");
+    }
+}
@@ -0,0 +1,82 @@
+package capture;
+
+/**
+ * One signaling event as seen by a session: something it did or something that happened to
+ * it. {@code account} is the session's own account; {@code peer} is the other account of an
+ * instant message or the sender of a channel message.
+ */
+public final class TrafficEvent {
+
+    public enum Type {
+        LOGIN, LOGIN_FAILED, LOGOUT, JOIN, JOIN_FAILED, LEAVE,
+        SEND_INSTANT, RECEIVE_INSTANT, SEND_CHANNEL, RECEIVE_CHANNEL;
+
+        private static final Type[] VALUES = values();
+
+        static Type of(int ordinal) {
+            if (ordinal < 0 || ordinal >= VALUES.length) {
+                throw new IllegalArgumentException("unknown event type " + ordinal);
+            }
+            return VALUES[ordinal];
+        }
+    }
+
+    private final long nanos;
+    private final Type type;
+    private final String account;
+    private final String peer;
+    private final String channel;
+    private final String msg;
+    private final int code;
+
+    public TrafficEvent(long nanos, Type type, String account, String peer, String channel, String msg, int code) {
+        this.nanos = nanos;
+        this.type = type;
+        this.account = account;
+        this.peer = peer;
+        this.channel = channel;
+        this.msg = msg;
+        this.code = code;
+    }
+
+    /**
+     * Time since the capture started.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getAccount() {
+        return account;
+    }
+
+    public String getPeer() {
+        return peer;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public String getMsg() {
+        return msg;
+    }
+
+    /**
+     * The uid of a login, the ecode of a failure or logout, 0 otherwise.
+     */
+    public int getCode() {
+        return code;
+    }
+
+    @Override
+    public String toString() {
+        return nanos / 1000 + "us " + type + " " + account
+                + (peer != null ? " peer=" + peer : "") + (channel != null ? " channel=" + channel : "")
+                + (msg != null ? " msg=" + msg : "") + (code != 0 ? " code=" + code : "");
+    }
+}
@@ -0,0 +1,268 @@
+package capture;
+
+import tool.Constant;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Writes {@link TrafficEvent}s to a capture file as they happen. Recording is a short
+ * synchronized append to a buffered stream, cheap enough to call from SDK callback threads.
+ * <p>
+ * Layout: {@code int magic, byte version, long start time in epoch ms}, then per event
+ * {@code byte type, varint micros since the previous event, account, peer and channel as
+ * string references, message, zigzag varint code}. A string reference is a varint: 0 for
+ * null, the index of a string seen before, or the next index followed by the new string;
+ * account and channel names are thus written once. Strings are a varint length and UTF-8
+ * bytes; the message length is stored plus one so that 0 means null. A capture cut short by a
+ * crash reads up to its last complete event.
+ */
+public class TrafficRecorder {
+
+    static final int MAGIC = 0x53434150;
+    static final int VERSION = 1;
+
+    private static final TrafficRecorder DISABLED = new TrafficRecorder();
+    private static TrafficRecorder shared;
+
+    private final DataOutputStream out;
+    private final long startNanos;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private long lastMicros;
+    private long recorded;
+    private long errors;
+    private boolean closed;
+
+    private TrafficRecorder() {
+        out = null;
+        startNanos = 0;
+        closed = true;
+    }
+
+    public TrafficRecorder(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    public TrafficRecorder(OutputStream stream) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+        startNanos = System.nanoTime();
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * The process wide recorder writing to {@link Constant#CAPTURE_FILE}, or one that records
+     * nothing when no file is configured or it cannot be created.
+     */
+    public static synchronized TrafficRecorder get() {
+        if (shared == null) {
+            shared = DISABLED;
+            if (Constant.CAPTURE_FILE != null) {
+                try {
+                    final TrafficRecorder recorder = new TrafficRecorder(new File(Constant.CAPTURE_FILE));
+                    Runtime.getRuntime().addShutdownHook(new Thread(recorder::close, "capture-close"));
+                    shared = recorder;
+                } catch (IOException e) {
+                    System.err.println("capture disabled: " + e.getMessage());
+                }
+            }
+        }
+        return shared;
+    }
+
+    public static TrafficRecorder disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return out != null;
+    }
+
+    public void record(TrafficEvent.Type type, String account, String peer, String channel, String msg, int code) {
+        if (out == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                long micros = Math.max(lastMicros, (now - startNanos) / 1000);
+                out.writeByte(type.ordinal());
+                writeVarLong(out, micros - lastMicros);
+                lastMicros = micros;
+                writeRef(account);
+                writeRef(peer);
+                writeRef(channel);
+                if (msg == null) {
+                    writeVarLong(out, 0);
+                } else {
+                    byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+                    writeVarLong(out, bytes.length + 1L);
+                    out.write(bytes);
+                }
+                writeVarLong(out, ((code << 1) ^ (code >> 31)) & 0xFFFFFFFFL);
+                recorded++;
+            } catch (IOException e) {
+                errors++;
+            }
+        }
+    }
+
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            errors++;
+        }
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            errors++;
+        }
+    }
+
+    public synchronized long getRecordedCount() {
+        return recorded;
+    }
+
+    public synchronized long getErrorCount() {
+        return errors;
+    }
+
+    /**
+     * Passes every complete event of {@code file} to {@code consumer} in recorded order and
+     * returns how many there were.
+     */
+    public static long read(File file, Consumer<TrafficEvent> consumer) throws IOException {
+        try (InputStream stream = new FileInputStream(file)) {
+            return read(stream, consumer);
+        }
+    }
+
+    public static long read(InputStream stream, Consumer<TrafficEvent> consumer) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a traffic capture");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported capture version " + version);
+        }
+        in.readLong();
+        List<String> table = new ArrayList<>();
+        long micros = 0;
+        long count = 0;
+        while (true) {
+            TrafficEvent event;
+            try {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                micros += readVarLong(in);
+                String account = readRef(in, table);
+                String peer = readRef(in, table);
+                String channel = readRef(in, table);
+                long msgLength = readVarLong(in);
+                String msg = msgLength == 0 ? null : readString(in, (int) (msgLength - 1));
+                int zigzag = (int) readVarLong(in);
+                int code = (zigzag >>> 1) ^ -(zigzag & 1);
+                event = new TrafficEvent(micros * 1000, TrafficEvent.Type.of(type), account, peer, channel, msg, code);
+            } catch (EOFException e) {
+                // the recorder stopped mid event
+                break;
+            }
+            consumer.accept(event);
+            count++;
+        }
+        return count;
+    }
+
+    private void writeRef(String value) throws IOException {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        Integer index = strings.get(value);
+        if (index != null) {
+            writeVarLong(out, index);
+            return;
+        }
+        index = strings.size() + 1;
+        strings.put(value, index);
+        writeVarLong(out, index);
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readRef(DataInputStream in, List<String> table) throws IOException {
+        long index = readVarLong(in);
+        if (index == 0) {
+            return null;
+        }
+        if (index <= table.size()) {
+            return table.get((int) index - 1);
+        }
+        if (index != table.size() + 1) {
+            throw new IOException("corrupt capture: string reference " + index);
+        }
+        String value = readString(in, (int) readVarLong(in));
+        table.add(value);
+        return value;
+    }
+
+    private static String readString(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("corrupt capture: varint too long");
+    }
+}
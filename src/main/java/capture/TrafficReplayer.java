@@ -0,0 +1,346 @@
+package capture;
+
+import metrics.HistogramSnapshot;
+import metrics.LatencyHistogram;
+import transport.AsyncSignalClient;
+import transport.ChannelListener;
+import transport.LoginListener;
+import transport.MessageListener;
+import transport.SignalTransport;
+import transport.TransportChannel;
+import transport.TransportSession;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a capture against a transport, normally a {@link transport.LoopbackTransport}, with
+ * the captured timing scaled by {@code speed}: 1 replays in real time, N replays N times
+ * faster, and 0 sends every event as soon as the one before it was issued.
+ * <p>
+ * Accounts that logged in while recording are replayed as they acted: logins, joins, sends,
+ * leaves and logouts. Messages they received from accounts that were not recorded are
+ * replayed as sends from a stand-in session for that account, so a capture of one client
+ * still reproduces the bursts it was hit with. Every recorded member of a channel saw the same
+ * channel messages, so they are replayed from one member only, the one that received the most.
+ * What a recorded account received from another recorded account is not driven again; it
+ * follows from the other account's sends.
+ * <p>
+ * Operations of one account are chained on its login and joins, so they keep their order
+ * whatever the speed. The result reports throughput and login, join and send-to-ack latency,
+ * to compare builds on the same traffic.
+ */
+public class TrafficReplayer {
+
+    private final SignalTransport transport;
+    private final AsyncSignalClient client;
+    private final double speed;
+
+    private final Map<String, Replayed> sessions = new HashMap<>();
+    private final Set<String> recorded = new HashSet<>();
+    private final Map<String, String> channelReceivers = new HashMap<>();
+    private final Result result = new Result();
+
+    public TrafficReplayer(SignalTransport transport, long timeoutMs, double speed) {
+        this.transport = transport;
+        this.client = new AsyncSignalClient(timeoutMs);
+        this.speed = speed;
+    }
+
+    public Result replay(File capture) throws IOException {
+        final List<TrafficEvent> events = new ArrayList<>();
+        TrafficRecorder.read(capture, events::add);
+        return replay(events);
+    }
+
+    /**
+     * Issues every event at its scaled time, then waits up to the client timeout for the
+     * operations still in flight.
+     */
+    public Result replay(List<TrafficEvent> events) {
+        for (TrafficEvent event : events) {
+            if (event.getType() == TrafficEvent.Type.LOGIN) {
+                recorded.add(event.getAccount());
+            }
+        }
+        chooseChannelReceivers(events);
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+        long start = System.nanoTime();
+        for (TrafficEvent event : events) {
+            if (speed > 0) {
+                long due = start + (long) (event.getNanos() / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            CompletableFuture<?> issued = issue(event);
+            if (issued != null) {
+                pending.add(issued);
+            }
+        }
+        long issuedAt = System.nanoTime();
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                    .get(client.getTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // counted as errors by the operations themselves
+        }
+        for (Replayed session : sessions.values()) {
+            session.login.thenAccept(TransportSession::logout);
+        }
+        result.issueNanos = issuedAt - start;
+        result.elapsedNanos = System.nanoTime() - start;
+        result.capturedNanos = events.isEmpty() ? 0 : events.get(events.size() - 1).getNanos();
+        return result;
+    }
+
+    private CompletableFuture<?> issue(TrafficEvent event) {
+        String account = event.getAccount();
+        switch (event.getType()) {
+            case LOGIN:
+                return session(account).login;
+            case LOGOUT:
+                Replayed leaving = sessions.remove(account);
+                if (leaving == null) {
+                    return null;
+                }
+                result.events.incrementAndGet();
+                return leaving.login.thenCompose(client::logout);
+            case JOIN:
+                return channel(account, event.getChannel());
+            case LEAVE:
+                Replayed member = sessions.get(account);
+                CompletableFuture<TransportChannel> joined = member == null ? null : member.channels.remove(event.getChannel());
+                if (joined == null) {
+                    return null;
+                }
+                result.events.incrementAndGet();
+                return joined.thenAccept(TransportChannel::channelLeave);
+            case SEND_INSTANT:
+                return sendInstant(account, event.getPeer(), event.getMsg());
+            case SEND_CHANNEL:
+                return sendChannel(account, event.getChannel(), event.getMsg());
+            case RECEIVE_INSTANT:
+                if (recorded.contains(event.getPeer())) {
+                    return null;
+                }
+                return sendInstant(event.getPeer(), account, event.getMsg());
+            case RECEIVE_CHANNEL:
+                if (!fromUnrecorded(event) || !account.equals(channelReceivers.get(event.getChannel()))) {
+                    return null;
+                }
+                return sendChannel(event.getPeer(), event.getChannel(), event.getMsg());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Picks, per channel, the recorded member whose received messages from unrecorded accounts
+     * are replayed: the one that received the most, so one that joined late or left early does
+     * not stand for the channel. Ties go to the member that received first.
+     */
+    private void chooseChannelReceivers(List<TrafficEvent> events) {
+        Map<String, Map<String, Integer>> counts = new HashMap<>();
+        for (TrafficEvent event : events) {
+            if (event.getType() == TrafficEvent.Type.RECEIVE_CHANNEL && fromUnrecorded(event)) {
+                counts.computeIfAbsent(event.getChannel(), c -> new LinkedHashMap<>()).merge(event.getAccount(), 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<String, Map<String, Integer>> channel : counts.entrySet()) {
+            String receiver = null;
+            int most = 0;
+            for (Map.Entry<String, Integer> member : channel.getValue().entrySet()) {
+                if (member.getValue() > most) {
+                    receiver = member.getKey();
+                    most = member.getValue();
+                }
+            }
+            channelReceivers.put(channel.getKey(), receiver);
+        }
+    }
+
+    private boolean fromUnrecorded(TrafficEvent event) {
+        return event.getPeer() != null && !recorded.contains(event.getPeer());
+    }
+
+    private CompletableFuture<?> sendInstant(String account, String peer, final String msg) {
+        result.events.incrementAndGet();
+        if (!recorded.contains(peer)) {
+            // a stand-in for the peer, so the message has someone to go to
+            session(peer);
+        }
+        return session(account).login.thenCompose(session -> {
+            final CompletableFuture<Void> acked = new CompletableFuture<>();
+            final long sent = System.nanoTime();
+            result.sent.incrementAndGet();
+            session.messageInstantSend(peer, msg, new MessageListener() {
+                @Override
+                public void onMessageSendSuccess(TransportSession s) {
+                    result.ackLatency.recordNanos(System.nanoTime() - sent);
+                    acked.complete(null);
+                }
+
+                @Override
+                public void onMessageSendError(TransportSession s, int ecode) {
+                    result.errors.incrementAndGet();
+                    acked.complete(null);
+                }
+            });
+            return AsyncSignalClient.withTimeout(acked, "ack", client.getTimeoutMs());
+        });
+    }
+
+    private CompletableFuture<?> sendChannel(String account, String channelName, final String msg) {
+        result.events.incrementAndGet();
+        return channel(account, channelName).thenAccept(channel -> {
+            result.sent.incrementAndGet();
+            channel.messageChannelSend(msg);
+        });
+    }
+
+    private Replayed session(final String account) {
+        Replayed replayed = sessions.get(account);
+        if (replayed != null) {
+            return replayed;
+        }
+        result.events.incrementAndGet();
+        final long started = System.nanoTime();
+        CompletableFuture<TransportSession> login = client.login(transport, account, "_no_need_token", new LoginListener() {
+            @Override
+            public void onLoginSuccess(TransportSession session, int uid) {
+                result.loginLatency.recordNanos(System.nanoTime() - started);
+            }
+
+            @Override
+            public void onMessageInstantReceive(TransportSession session, String peer, int uid, String msg) {
+                result.received.incrementAndGet();
+            }
+        });
+        login.whenComplete((session, error) -> {
+            if (error != null) {
+                result.errors.incrementAndGet();
+            }
+        });
+        replayed = new Replayed(login);
+        sessions.put(account, replayed);
+        return replayed;
+    }
+
+    private CompletableFuture<TransportChannel> channel(String account, final String channelName) {
+        Replayed replayed = session(account);
+        CompletableFuture<TransportChannel> joined = replayed.channels.get(channelName);
+        if (joined != null) {
+            return joined;
+        }
+        result.events.incrementAndGet();
+        final long started = System.nanoTime();
+        joined = replayed.login.thenCompose(session -> client.join(session, channelName, new ChannelListener() {
+            @Override
+            public void onChannelJoined(TransportSession s, TransportChannel channel) {
+                result.joinLatency.recordNanos(System.nanoTime() - started);
+            }
+
+            @Override
+            public void onMessageChannelReceive(TransportSession s, TransportChannel channel, String account, int uid, String msg) {
+                result.received.incrementAndGet();
+            }
+        }));
+        joined.whenComplete((channel, error) -> {
+            if (error != null) {
+                result.errors.incrementAndGet();
+            }
+        });
+        replayed.channels.put(channelName, joined);
+        return joined;
+    }
+
+    private static class Replayed {
+        final CompletableFuture<TransportSession> login;
+        final Map<String, CompletableFuture<TransportChannel>> channels = new HashMap<>();
+
+        Replayed(CompletableFuture<TransportSession> login) {
+            this.login = login;
+        }
+    }
+
+    /**
+     * Counts and latencies of one replay.
+     */
+    public static class Result {
+        private final AtomicLong events = new AtomicLong();
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final LatencyHistogram loginLatency = new LatencyHistogram();
+        private final LatencyHistogram joinLatency = new LatencyHistogram();
+        private final LatencyHistogram ackLatency = new LatencyHistogram();
+        private long capturedNanos;
+        private long issueNanos;
+        private long elapsedNanos;
+
+        /**
+         * Operations issued: logins, joins, sends, leaves and logouts.
+         */
+        public long getEventCount() {
+            return events.get();
+        }
+
+        public long getSentCount() {
+            return sent.get();
+        }
+
+        public long getReceivedCount() {
+            return received.get();
+        }
+
+        public long getErrorCount() {
+            return errors.get();
+        }
+
+        public HistogramSnapshot getLoginLatency() {
+            return loginLatency.snapshot();
+        }
+
+        public HistogramSnapshot getJoinLatency() {
+            return joinLatency.snapshot();
+        }
+
+        public HistogramSnapshot getAckLatency() {
+            return ackLatency.snapshot();
+        }
+
+        /**
+         * Operations per second while they were being issued.
+         */
+        public double getEventsPerSecond() {
+            return issueNanos <= 0 ? 0 : events.get() * 1e9 / issueNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "events=%d sent=%d received=%d errors=%d captured=%.1fs issued=%.1fs total=%.1fs (%.0f events/s)%n"
+                            + "login p50=%.2fms p99=%.2fms | join p50=%.2fms p99=%.2fms | ack p50=%.2fms p99=%.2fms max=%.2fms",
+                    getEventCount(), getSentCount(), getReceivedCount(), getErrorCount(), capturedNanos / 1e9,
+                    issueNanos / 1e9, elapsedNanos / 1e9, getEventsPerSecond(),
+                    getLoginLatency().percentileMillis(50), getLoginLatency().percentileMillis(99),
+                    getJoinLatency().percentileMillis(50), getJoinLatency().percentileMillis(99),
+                    getAckLatency().percentileMillis(50), getAckLatency().percentileMillis(99),
+                    getAckLatency().getMaxMicros() / 1000.0);
+        }
+    }
+}
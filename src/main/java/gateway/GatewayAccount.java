@@ -0,0 +1,111 @@
+package gateway;
+
+import model.SessionListener;
+import model.User;
+import transport.TransportChannel;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * An account logged in by a {@link SignalGateway} and the clients using it. The session and
+ * its channels are shared: the first client logs in or joins, later ones attach, and events
+ * are fanned out to the clients attached to the account or to the channel. The sets are read
+ * on SDK callback threads and changed on the selector thread. The futures are set on the
+ * selector thread too, but volatile, as {@link SignalGateway#close} reads them from another.
+ */
+class GatewayAccount extends SessionListener {
+
+    final String account;
+    final Set<GatewayConnection> clients = ConcurrentHashMap.newKeySet();
+    final Map<String, Share> channels = new ConcurrentHashMap<>();
+    volatile CompletableFuture<User> login;
+    volatile ScheduledFuture<?> idleLogout;
+    // set once the account is logged out for lack of clients, completed when it is gone
+    volatile CompletableFuture<Void> logout;
+    private final SignalGateway gateway;
+
+    GatewayAccount(SignalGateway gateway, String account) {
+        this.gateway = gateway;
+        this.account = account;
+    }
+
+    /**
+     * A joined channel and the clients of this account that joined it.
+     */
+    static class Share {
+        final CompletableFuture<TransportChannel> join;
+        final Set<GatewayConnection> members = ConcurrentHashMap.newKeySet();
+
+        Share(CompletableFuture<TransportChannel> join) {
+            this.join = join;
+        }
+    }
+
+    @Override
+    public void onInstantMessage(User user, String peer, String msg) {
+        broadcast("MSG " + peer + " " + msg);
+    }
+
+    @Override
+    public void onSendError(User user, String peer, int ecode) {
+        broadcast("SENDFAIL " + peer + " " + ecode);
+    }
+
+    @Override
+    public void onChannelMessage(User user, String channel, String peer, String msg) {
+        channelcast(channel, "CHMSG " + channel + " " + peer + " " + msg);
+    }
+
+    @Override
+    public void onChannelUserJoined(User user, String channel, String account) {
+        channelcast(channel, "JOINED " + channel + " " + account);
+    }
+
+    @Override
+    public void onChannelUserLeft(User user, String channel, String account) {
+        channelcast(channel, "LEFT " + channel + " " + account);
+    }
+
+    @Override
+    public void onChannelLeft(User user, final String channel, int ecode) {
+        gateway.execute(() -> gateway.channelLost(this, channel));
+    }
+
+    @Override
+    public void onReconnecting(User user, String reason) {
+        broadcast("RECONNECTING " + reason);
+    }
+
+    @Override
+    public void onReconnected(User user, long nanos, Set<String> lostChannels) {
+        broadcast("RECONNECTED");
+        for (final String channel : lostChannels) {
+            gateway.execute(() -> gateway.channelLost(this, channel));
+        }
+    }
+
+    @Override
+    public void onLoggedOut(User user, final String reason) {
+        gateway.execute(() -> gateway.accountLost(this, reason));
+    }
+
+    void broadcast(String line) {
+        for (GatewayConnection client : clients) {
+            client.send(line);
+        }
+    }
+
+    private void channelcast(String channel, String line) {
+        Share share = channels.get(channel);
+        if (share == null) {
+            return;
+        }
+        for (GatewayConnection client : share.members) {
+            client.send(line);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One local client of a {@link SignalGateway}. Reading, parsing and all state except the
+ * outbox belong to the selector thread; {@link #send} may be called from any thread, since
+ * messages for the client arrive on SDK callback threads.
+ */
+class GatewayConnection {
+
+    private static final int MAX_GATHER = 64;
+
+    private final SignalGateway gateway;
+    private final SocketChannel socket;
+    private final SelectionKey key;
+    private final ByteBuffer in;
+    private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+    private final AtomicLong outboxBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final long maxOutboxBytes;
+    private volatile boolean closed;
+
+    // selector thread only
+    final Queue<String> inbox = new ArrayDeque<>();
+    final Set<String> channels = new HashSet<>();
+    GatewayAccount account;
+    boolean waiting;
+
+    GatewayConnection(SignalGateway gateway, SocketChannel socket, SelectionKey key, int maxLine, long maxOutboxBytes) {
+        this.gateway = gateway;
+        this.socket = socket;
+        this.key = key;
+        this.in = ByteBuffer.allocate(maxLine);
+        this.maxOutboxBytes = maxOutboxBytes;
+    }
+
+    /**
+     * Reads what the socket has and queues the complete lines. Returns false once the client
+     * closed its end or sent a line longer than the buffer.
+     */
+    boolean read() throws IOException {
+        int n = socket.read(in);
+        if (n < 0) {
+            return false;
+        }
+        in.flip();
+        int start = in.position();
+        for (int i = start; i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+                inbox.add(new String(in.array(), start, end - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        in.position(start);
+        in.compact();
+        if (!in.hasRemaining()) {
+            send("ERR line too long");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queues {@code line} for the client. A client that does not read while its outbox grows
+     * past the limit is disconnected rather than buffered without bound; what it missed is
+     * still in the account's history.
+     */
+    void send(String line) {
+        if (closed) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        if (outboxBytes.addAndGet(bytes.remaining()) > maxOutboxBytes) {
+            closed = true;
+            gateway.execute(() -> gateway.close(this, "slow consumer"));
+            return;
+        }
+        outbox.add(bytes);
+        if (flushScheduled.compareAndSet(false, true)) {
+            gateway.execute(this::flush);
+        }
+    }
+
+    /**
+     * Writes as much of the outbox as the socket takes, in one gathering write per round,
+     * and waits for {@link SelectionKey#OP_WRITE} for the rest.
+     */
+    void flush() {
+        if (!key.isValid()) {
+            return;
+        }
+        ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+        try {
+            while (true) {
+                int count = 0;
+                long total = 0;
+                for (ByteBuffer buffer : outbox) {
+                    total += buffer.remaining();
+                    batch[count++] = buffer;
+                    if (count == batch.length) {
+                        break;
+                    }
+                }
+                if (count == 0) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    flushScheduled.set(false);
+                    if (outbox.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                long written = socket.write(batch, 0, count);
+                outboxBytes.addAndGet(-written);
+                while (!outbox.isEmpty() && !outbox.peek().hasRemaining()) {
+                    outbox.poll();
+                }
+                if (written == total) {
+                    continue;
+                }
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        } catch (IOException e) {
+            gateway.close(this, e.getMessage());
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        closed = true;
+        key.cancel();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to tell the client
+        }
+    }
+
+    String describe() {
+        try {
+            return String.valueOf(socket.getRemoteAddress());
+        } catch (IOException e) {
+            return "closed";
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package gateway;
+
+import mainclass.SessionManager;
+import model.User;
+import tool.PrintToScreen;
+import transport.OutboundQueue;
+import transport.TransportPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Lets local programs send and receive through the sessions of one process, over a line
+ * protocol on a local TCP port. One selector thread serves every client; logins, joins and
+ * sends go through a {@link SessionManager} and never block it.
+ * <p>
+ * Sessions are shared: a client attaches to an account and only the first one logs it in,
+ * the others reuse its session. Likewise a channel is joined once per account and left when
+ * its last client leaves. An account without clients stays logged in for
+ * {@code idleLogoutMs}, so clients that reconnect or come and go do not pay for a login.
+ * <p>
+ * Lines are UTF-8 and end with {@code \n}; the last field is the rest of the line, so text
+ * can contain spaces but not line breaks. Commands, each answered in order with
+ * {@code OK <command> ...} or {@code ERR <command> <reason>}:
+ * <pre>
+ * LOGIN account          attach to the account, logging it in if needed
+ * SEND peer text         P2P message
+ * JOIN channel           attach to the channel, joining it if needed
+ * CAST channel text      channel message, after JOIN
+ * LEAVE channel
+ * LOGOUT                 detach from the account
+ * PING                   answered with PONG
+ * QUIT                   close the connection
+ * </pre>
+ * Events may come between answers: {@code MSG peer text}, {@code CHMSG channel peer text},
+ * {@code JOINED channel account}, {@code LEFT channel account}, {@code KICKED channel},
+ * {@code SENDFAIL peer ecode}, {@code RECONNECTING reason}, {@code RECONNECTED} and
+ * {@code LOGGEDOUT reason}.
+ */
+public class SignalGateway {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "signal-gateway-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final SessionManager sessions;
+    private final TransportPool transports;
+    private final int maxLine;
+    private final long maxOutboxBytes;
+    private final long idleLogoutMs;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<GatewayConnection> connections = ConcurrentHashMap.newKeySet();
+    // changed on the selector thread, and by close once it has stopped; concurrent since
+    // getAccountCount reads it from any thread
+    private final Map<String, GatewayAccount> accounts = new ConcurrentHashMap<>();
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param maxLine        longest line a client may send, in bytes
+     * @param maxOutboxBytes bytes queued for a client before it is disconnected as too slow
+     * @param idleLogoutMs   how long an account without clients stays logged in
+     */
+    public SignalGateway(SessionManager sessions, TransportPool transports, int maxLine, long maxOutboxBytes,
+                         long idleLogoutMs) {
+        this.sessions = sessions;
+        this.transports = transports;
+        this.maxLine = maxLine;
+        this.maxOutboxBytes = maxOutboxBytes;
+        this.idleLogoutMs = idleLogoutMs;
+    }
+
+    /**
+     * Listens on {@code address} and serves clients on a thread of its own.
+     */
+    public void start(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this::loop, "signal-gateway");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    public int getClientCount() {
+        return connections.size();
+    }
+
+    public int getAccountCount() {
+        return accounts.size();
+    }
+
+    /**
+     * Disconnects every client and logs out every account the gateway logged in.
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        thread.join();
+        List<CompletableFuture<?>> logouts = new ArrayList<>();
+        for (GatewayAccount account : accounts.values()) {
+            if (account.logout == null) {
+                // idle ones are logging out already
+                logouts.add(account.login.thenCompose(sessions::logout));
+            }
+        }
+        accounts.clear();
+        try {
+            CompletableFuture.allOf(logouts.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // failed logins and timed out logouts, nothing left to do
+        }
+    }
+
+    /**
+     * Runs {@code task} on the selector thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void loop() {
+        try {
+            while (running) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    GatewayConnection connection = (GatewayConnection) key.attachment();
+                    if (key.isWritable()) {
+                        connection.flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            PrintToScreen.printEventLine("gateway stopped: " + e.getMessage());
+        } finally {
+            for (GatewayConnection connection : new ArrayList<>(connections)) {
+                close(connection, null);
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel socket;
+        while ((socket = server.accept()) != null) {
+            socket.configureBlocking(false);
+            socket.socket().setTcpNoDelay(true);
+            SelectionKey key = socket.register(selector, SelectionKey.OP_READ);
+            GatewayConnection connection = new GatewayConnection(this, socket, key, maxLine, maxOutboxBytes);
+            key.attach(connection);
+            connections.add(connection);
+        }
+    }
+
+    private void read(GatewayConnection connection) {
+        try {
+            if (!connection.read()) {
+                close(connection, null);
+                return;
+            }
+        } catch (IOException e) {
+            close(connection, e.getMessage());
+            return;
+        }
+        process(connection);
+    }
+
+    /**
+     * Handles the queued lines of {@code connection} until one has to wait for the service;
+     * the rest are handled once it is answered, so answers keep the order of the commands.
+     */
+    private void process(GatewayConnection connection) {
+        while (!connection.waiting && !connection.isClosed() && !connection.inbox.isEmpty()) {
+            handle(connection, connection.inbox.poll());
+        }
+    }
+
+    private void handle(GatewayConnection connection, String line) {
+        int space = line.indexOf(' ');
+        String command = space < 0 ? line : line.substring(0, space);
+        String rest = space < 0 ? "" : line.substring(space + 1);
+        if (command.equals("PING")) {
+            connection.send("PONG");
+        } else if (command.equals("QUIT")) {
+            close(connection, null);
+        } else if (command.equals("LOGIN")) {
+            login(connection, rest.trim());
+        } else if (connection.account == null) {
+            connection.send("ERR " + command + " not logged in");
+        } else if (command.equals("LOGOUT")) {
+            detach(connection);
+            connection.send("OK LOGOUT");
+        } else if (command.equals("SEND") || command.equals("CAST")) {
+            int split = rest.indexOf(' ');
+            if (split <= 0) {
+                connection.send("ERR " + command + " expected " + command + " <to> <text>");
+                return;
+            }
+            send(connection, command, rest.substring(0, split), rest.substring(split + 1));
+        } else if (command.equals("JOIN")) {
+            join(connection, rest.trim());
+        } else if (command.equals("LEAVE")) {
+            String channel = rest.trim();
+            if (connection.channels.remove(channel)) {
+                leave(connection.account, channel, connection);
+            }
+            connection.send("OK LEAVE " + channel);
+        } else {
+            connection.send("ERR " + command + " unknown command");
+        }
+    }
+
+    private void login(final GatewayConnection connection, final String name) {
+        if (connection.account != null) {
+            connection.send("ERR LOGIN already logged in as " + connection.account.account);
+            return;
+        }
+        if (name.isEmpty() || name.contains(" ") || name.length() >= 128) {
+            connection.send("ERR LOGIN bad account name");
+            return;
+        }
+        GatewayAccount account = accounts.get(name);
+        if (account != null && account.logout != null) {
+            // logged out for being idle: log in again once that is done
+            await(connection, account.logout, (code, error) -> login(connection, name));
+            return;
+        }
+        if (account == null) {
+            if (sessions.get(name) != null) {
+                connection.send("ERR LOGIN " + name + " is logged in outside the gateway");
+                return;
+            }
+            final GatewayAccount created = new GatewayAccount(this, name);
+            accounts.put(name, created);
+            created.login = sessions.login(transports.assign(name), name, created);
+            created.login.whenComplete((user, error) -> {
+                if (error != null) {
+                    // a login that timed out never reports back to the pool
+                    transports.release(name);
+                    execute(() -> accounts.remove(name, created));
+                }
+            });
+            account = created;
+        }
+        if (account.idleLogout != null) {
+            account.idleLogout.cancel(false);
+            account.idleLogout = null;
+        }
+        final GatewayAccount attached = account;
+        attached.clients.add(connection);
+        connection.account = attached;
+        await(connection, attached.login, (user, error) -> {
+            if (error == null) {
+                connection.send("OK LOGIN " + name);
+                return;
+            }
+            if (connection.account == attached) {
+                attached.clients.remove(connection);
+                connection.account = null;
+            }
+            connection.send("ERR LOGIN " + reason(error));
+        });
+    }
+
+    private void send(GatewayConnection connection, String command, String to, String text) {
+        User user = connection.account.login.join();
+        OutboundQueue.Admission admission;
+        if (command.equals("SEND")) {
+            admission = sessions.sendInstant(user, to, text);
+        } else if (connection.channels.contains(to)) {
+            admission = sessions.sendChannel(user, to, text);
+        } else {
+            connection.send("ERR CAST not joined " + to);
+            return;
+        }
+        if (admission == OutboundQueue.Admission.ACCEPTED) {
+            connection.send("OK " + command);
+        } else {
+            connection.send("ERR " + command + " " + admission);
+        }
+    }
+
+    private void join(final GatewayConnection connection, final String channel) {
+        if (channel.isEmpty() || channel.contains(" ") || channel.length() >= 128) {
+            connection.send("ERR JOIN bad channel name");
+            return;
+        }
+        if (connection.channels.contains(channel)) {
+            connection.send("OK JOIN " + channel);
+            return;
+        }
+        final GatewayAccount account = connection.account;
+        GatewayAccount.Share share = account.channels.get(channel);
+        if (share == null) {
+            final GatewayAccount.Share created = new GatewayAccount.Share(sessions.join(account.login.join(), channel));
+            account.channels.put(channel, created);
+            created.join.whenComplete((joined, error) -> {
+                if (error != null) {
+                    execute(() -> account.channels.remove(channel, created));
+                }
+            });
+            share = created;
+        }
+        final GatewayAccount.Share joining = share;
+        joining.members.add(connection);
+        connection.channels.add(channel);
+        await(connection, joining.join, (joined, error) -> {
+            if (error == null) {
+                connection.send("OK JOIN " + channel);
+            } else {
+                joining.members.remove(connection);
+                connection.channels.remove(channel);
+                connection.send("ERR JOIN " + reason(error));
+            }
+        });
+    }
+
+    /**
+     * Takes {@code connection} off the channel and leaves it once nobody is left on it.
+     */
+    private void leave(final GatewayAccount account, final String channel, GatewayConnection connection) {
+        GatewayAccount.Share share = account.channels.get(channel);
+        if (share == null || !share.members.remove(connection) || !share.members.isEmpty()) {
+            return;
+        }
+        account.channels.remove(channel, share);
+        share.join.thenAccept(joined -> execute(() -> {
+            if (!account.channels.containsKey(channel)) {
+                sessions.leave(account.login.join(), channel);
+            }
+        }));
+    }
+
+    private void detach(GatewayConnection connection) {
+        final GatewayAccount account = connection.account;
+        if (account == null) {
+            return;
+        }
+        for (String channel : connection.channels) {
+            leave(account, channel, connection);
+        }
+        connection.channels.clear();
+        account.clients.remove(connection);
+        connection.account = null;
+        if (account.clients.isEmpty() && accounts.get(account.account) == account) {
+            account.idleLogout = TIMER.schedule(() -> execute(() -> logoutIfIdle(account)),
+                    idleLogoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Logs out an account nobody came back to. It stays in {@code accounts} until the session
+     * is gone, so a LOGIN meanwhile waits for that instead of finding the session still there.
+     */
+    private void logoutIfIdle(final GatewayAccount account) {
+        if (!account.clients.isEmpty() || account.logout != null || accounts.get(account.account) != account) {
+            return;
+        }
+        account.logout = new CompletableFuture<>();
+        account.login.thenCompose(sessions::logout).whenComplete((code, error) -> execute(() -> {
+            // when the logout went through, accountLost forgets the account unless it already has
+            if (error != null || sessions.get(account.account) == null) {
+                forget(account);
+            }
+        }));
+    }
+
+    private void forget(GatewayAccount account) {
+        accounts.remove(account.account, account);
+        if (account.logout != null) {
+            account.logout.complete(null);
+        }
+    }
+
+    /**
+     * The account is no longer in {@code channel} without having left it, e.g. it was removed
+     * or could not rejoin after a reconnect.
+     */
+    void channelLost(GatewayAccount account, String channel) {
+        GatewayAccount.Share share = account.channels.get(channel);
+        if (share == null || !share.join.isDone() || account.login.join().getChannel(channel) != null) {
+            // left on purpose, or joined again since
+            return;
+        }
+        account.channels.remove(channel, share);
+        for (GatewayConnection member : share.members) {
+            member.channels.remove(channel);
+            member.send("KICKED " + channel);
+        }
+    }
+
+    /**
+     * The account was logged out by the service or could not reconnect.
+     */
+    void accountLost(GatewayAccount account, String reason) {
+        forget(account);
+        if (account.idleLogout != null) {
+            account.idleLogout.cancel(false);
+        }
+        for (GatewayConnection client : account.clients) {
+            client.send("LOGGEDOUT " + (reason == null ? "logout" : reason));
+            client.channels.clear();
+            client.account = null;
+        }
+        account.clients.clear();
+        account.channels.clear();
+    }
+
+    void close(GatewayConnection connection, String reason) {
+        if (!connections.remove(connection)) {
+            return;
+        }
+        if (reason != null) {
+            PrintToScreen.printEventLine("gateway client " + connection.describe() + " closed: " + reason);
+        }
+        detach(connection);
+        connection.close();
+    }
+
+    /**
+     * Holds the next commands of {@code connection} until {@code operation} completes, then
+     * answers on the selector thread.
+     */
+    private <T> void await(final GatewayConnection connection, CompletableFuture<T> operation,
+                           final BiConsumer<T, Throwable> answer) {
+        connection.waiting = true;
+        operation.whenComplete((result, error) -> execute(() -> {
+            connection.waiting = false;
+            if (connection.isClosed()) {
+                return;
+            }
+            answer.accept(result, error);
+            process(connection);
+        }));
+    }
+
+    private static String reason(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause.getMessage() == null ? cause.getClass().getSimpleName() : cause.getMessage();
+    }
+}
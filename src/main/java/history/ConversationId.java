@@ -0,0 +1,58 @@
+package history;
+
+/**
+ * Identifies one conversation: a P2P peer account or a channel name.
+ */
+public final class ConversationId {
+
+    private final ConversationType type;
+    private final String name;
+    private final int hash;
+
+    public ConversationId(ConversationType type, String name) {
+        if (type == null || name == null) {
+            throw new IllegalArgumentException("type and name are required");
+        }
+        this.type = type;
+        this.name = name;
+        this.hash = 31 * type.hashCode() + name.hashCode();
+    }
+
+    public static ConversationId p2p(String peerAccount) {
+        return new ConversationId(ConversationType.P2P, peerAccount);
+    }
+
+    public static ConversationId channel(String channelName) {
+        return new ConversationId(ConversationType.CHANNEL, channelName);
+    }
+
+    public ConversationType getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ConversationId)) {
+            return false;
+        }
+        ConversationId other = (ConversationId) o;
+        return type == other.type && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return type.name().toLowerCase() + ":" + name;
+    }
+}
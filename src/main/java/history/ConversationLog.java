@@ -0,0 +1,134 @@
+package history;
+
+import model.DialogueRecord;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records of one conversation in a fixed capacity ring buffer: once full, each append
+ * overwrites the oldest record. The buffer grows on demand up to its capacity so idle
+ * conversations stay small. All access goes through the conversation's own lock, so writers
+ * of different conversations never contend; snapshots copy the live window and are short.
+ */
+class ConversationLog {
+
+    private static final int INITIAL_SIZE = 16;
+
+    private final ConversationId id;
+    private final int capacity;
+    private final long generation;
+    private DialogueRecord[] ring = new DialogueRecord[INITIAL_SIZE];
+    private long appended;
+    private long footprintBytes;
+    private volatile long lastAccess;
+    private boolean evicted;
+
+    ConversationLog(ConversationId id, int capacity, long generation) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.id = id;
+        this.capacity = capacity;
+        this.generation = generation;
+    }
+
+    ConversationId getId() {
+        return id;
+    }
+
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    void touch(long tick) {
+        lastAccess = tick;
+    }
+
+    /**
+     * Appends a record, adds the change in estimated footprint to the store's total and
+     * returns the record's sequence number. Returns -1 if the log was evicted concurrently and
+     * the caller must retry on a fresh log.
+     */
+    synchronized long append(DialogueRecord record, long recordBytes, HistoryStore.Counters counters) {
+        if (evicted) {
+            return -1;
+        }
+        long delta = recordBytes;
+        if (appended < capacity) {
+            if (appended == ring.length) {
+                ring = Arrays.copyOf(ring, (int) Math.min(capacity, (long) ring.length * 2));
+            }
+        } else {
+            DialogueRecord overwritten = ring[(int) (appended % capacity)];
+            delta -= HistoryStore.estimateBytes(overwritten);
+            counters.overwritten.incrementAndGet();
+        }
+        ring[(int) (appended % capacity)] = record;
+        footprintBytes += delta;
+        counters.charge(delta);
+        return appended++;
+    }
+
+    /**
+     * Sequence number the next append will get; also the total number of records ever appended.
+     */
+    synchronized long getAppendedCount() {
+        return appended;
+    }
+
+    synchronized int size() {
+        return (int) Math.min(appended, capacity);
+    }
+
+    /**
+     * An immutable copy of the records currently held, oldest first.
+     */
+    synchronized List<DialogueRecord> snapshot() {
+        int size = (int) Math.min(appended, capacity);
+        DialogueRecord[] copy = new DialogueRecord[size];
+        long first = appended - size;
+        for (int i = 0; i < size; i++) {
+            copy[i] = ring[(int) ((first + i) % capacity)];
+        }
+        return Collections.unmodifiableList(Arrays.asList(copy));
+    }
+
+    /**
+     * The newest {@code limit} records with sequence numbers in {@code [fromSeq, toSeq)},
+     * clamped to the records still held. Only the page is copied, whatever the log's size.
+     */
+    synchronized HistoryPage page(long fromSeq, long toSeq, int limit) {
+        long oldest = appended - Math.min(appended, capacity);
+        long end = Math.max(oldest, Math.min(toSeq, appended));
+        long start = Math.max(Math.max(fromSeq, oldest), end - Math.max(0, limit));
+        start = Math.min(start, end);
+        DialogueRecord[] copy = new DialogueRecord[(int) (end - start)];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = ring[(int) ((start + i) % capacity)];
+        }
+        return new HistoryPage(Collections.unmodifiableList(Arrays.asList(copy)), start, oldest, appended, generation);
+    }
+
+    /**
+     * Marks the log evicted so concurrent appends go to a fresh log, releases its footprint
+     * from the store's total and hands back its records.
+     */
+    synchronized List<DialogueRecord> evict(HistoryStore.Counters counters) {
+        List<DialogueRecord> records = snapshot();
+        evicted = true;
+        counters.charge(-footprintBytes);
+        footprintBytes = 0;
+        return records;
+    }
+
+    /**
+     * Restores records read back from a spill file, as if they had been appended.
+     */
+    synchronized void restore(List<DialogueRecord> records, HistoryStore.Counters counters) {
+        for (DialogueRecord record : records) {
+            append(record, HistoryStore.estimateBytes(record), counters);
+        }
+    }
+}
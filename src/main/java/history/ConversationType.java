@@ -0,0 +1,5 @@
+package history;
+
+public enum ConversationType {
+	P2P, CHANNEL
+}
@@ -0,0 +1,73 @@
+package history;
+
+import model.DialogueRecord;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Holds records back from its sinks until {@link #release}, then passes them on in order. Put
+ * in front of sinks that are being filled with older records in the background, so records
+ * appended meanwhile still reach them after the older ones.
+ */
+public class DeferredSink implements HistorySink {
+
+    private final HistorySink[] sinks;
+    private List<LogEntry> held = new ArrayList<>();
+    private volatile boolean released;
+
+    public DeferredSink(HistorySink... sinks) {
+        this.sinks = sinks;
+    }
+
+    public void appended(ConversationId id, DialogueRecord record) {
+        if (!released) {
+            synchronized (this) {
+                if (!released) {
+                    held.add(new LogEntry(-1, id, record));
+                    return;
+                }
+            }
+        }
+        pass(id, record);
+    }
+
+    /**
+     * Drops the held records of the conversation and passes the eviction on.
+     */
+    public void evicted(ConversationId id) {
+        synchronized (this) {
+            if (!released) {
+                for (Iterator<LogEntry> it = held.iterator(); it.hasNext(); ) {
+                    if (it.next().getConversation().equals(id)) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+        for (HistorySink sink : sinks) {
+            sink.evicted(id);
+        }
+    }
+
+    /**
+     * Passes on everything held and lets later records straight through.
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        for (LogEntry entry : held) {
+            pass(entry.getConversation(), entry.getRecord());
+        }
+        held = null;
+        released = true;
+    }
+
+    private void pass(ConversationId id, DialogueRecord record) {
+        for (HistorySink sink : sinks) {
+            sink.appended(id, record);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package history;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy result of an index query: {@link #advance} finds the next match only when asked, and
+ * at most {@code limit} matches are returned.
+ */
+abstract class EntryCursor implements Iterator<LogEntry> {
+
+    private LogEntry next;
+    private int remaining;
+
+    EntryCursor(int limit) {
+        this.remaining = limit;
+    }
+
+    /**
+     * The next match, or null when there is none.
+     */
+    abstract LogEntry advance();
+
+    public boolean hasNext() {
+        if (next == null && remaining > 0) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    public LogEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        LogEntry result = next;
+        next = null;
+        remaining--;
+        return result;
+    }
+}
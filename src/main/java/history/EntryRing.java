@@ -0,0 +1,101 @@
+package history;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The ring of entries behind {@link HistoryIndex} and {@link TextIndex}, addressed by index id.
+ * It starts small and doubles whenever it is full until it holds {@code capacity} entries, so
+ * an account with little history does not pay for a full ring; only then do new entries
+ * overwrite the oldest. Writes are serialized by the owning index; reads need no lock.
+ */
+class EntryRing {
+
+    static final int INITIAL_SLOTS = 1024;
+
+    private final int capacity;
+    private volatile AtomicReferenceArray<LogEntry> slots;
+    private long first = -1;
+
+    /**
+     * @param capacity entries kept, rounded up to a power of two
+     */
+    EntryRing(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(Math.min(this.capacity, INITIAL_SLOTS));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Slots allocated so far.
+     */
+    int allocated() {
+        return slots.length();
+    }
+
+    /**
+     * Stores the entry for {@code id}, growing first if that would overwrite an entry the ring
+     * can still make room for. Ids must be given in increasing order, under the owner's lock.
+     */
+    void put(long id, LogEntry entry) {
+        if (first < 0) {
+            first = id;
+        }
+        AtomicReferenceArray<LogEntry> current = slots;
+        int length = current.length();
+        if (id - first >= length && length < capacity) {
+            AtomicReferenceArray<LogEntry> grown = new AtomicReferenceArray<>(length << 1);
+            for (long live = Math.max(first, id - length); live < id; live++) {
+                grown.set((int) (live & (length * 2 - 1)), current.get((int) (live & (length - 1))));
+            }
+            // readers still on the old array find every entry they look for in it
+            slots = grown;
+            current = grown;
+        }
+        current.set((int) (id & (current.length() - 1)), entry);
+    }
+
+    /**
+     * The live entry for {@code id}, or null if it has been overwritten.
+     */
+    LogEntry get(long id) {
+        AtomicReferenceArray<LogEntry> current = slots;
+        LogEntry entry = current.get((int) (id & (current.length() - 1)));
+        return entry != null && entry.getSeq() == id ? entry : null;
+    }
+
+    /**
+     * Drops the entry for {@code id} if it is still held, under the owner's lock.
+     */
+    void remove(long id) {
+        AtomicReferenceArray<LogEntry> current = slots;
+        int slot = (int) (id & (current.length() - 1));
+        LogEntry entry = current.get(slot);
+        if (entry != null && entry.getSeq() == id) {
+            current.set(slot, null);
+        }
+    }
+
+    /**
+     * Drops every entry of {@code conversation}, under the owner's lock.
+     */
+    void removeConversation(ConversationId conversation) {
+        AtomicReferenceArray<LogEntry> current = slots;
+        for (int i = 0; i < current.length(); i++) {
+            LogEntry entry = current.get(i);
+            if (entry != null && entry.getConversation().equals(conversation)) {
+                current.set(i, null);
+            }
+        }
+    }
+
+    /**
+     * Drops every entry and goes back to the initial size.
+     */
+    void clear() {
+        slots = new AtomicReferenceArray<>(Math.min(capacity, INITIAL_SLOTS));
+        first = -1;
+    }
+}
@@ -0,0 +1,107 @@
+package history;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One memory budget shared by any number of {@link HistoryStore}s, normally those of every
+ * account in the process. The conversations of all of them are counted together, and when
+ * their estimated footprint exceeds the budget the least recently used ones are evicted,
+ * whichever store they belong to, until the footprint is back under {@link #LOW_WATERMARK}
+ * of the budget. Each store then writes its evicted conversations to its own spill directory,
+ * or reads them from its source again, as it would on its own.
+ */
+public class HistoryBudget {
+
+    static final double LOW_WATERMARK = 0.9;
+
+    private final long bytes;
+    private final AtomicLong footprint = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Map<ConversationLog, HistoryStore> resident = new ConcurrentHashMap<>();
+
+    public HistoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("budget must be positive: " + bytes);
+        }
+        this.bytes = bytes;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Estimated heap held by the in-memory conversations of every store on this budget.
+     */
+    public long getFootprintBytes() {
+        return footprint.get();
+    }
+
+    /**
+     * Conversations in memory across all stores.
+     */
+    public int getConversationCount() {
+        return resident.size();
+    }
+
+    long tick() {
+        return clock.incrementAndGet();
+    }
+
+    void charge(long delta) {
+        footprint.addAndGet(delta);
+    }
+
+    boolean isExceeded() {
+        return footprint.get() > bytes;
+    }
+
+    void admit(ConversationLog log, HistoryStore store) {
+        resident.put(log, store);
+    }
+
+    void release(ConversationLog log) {
+        resident.remove(log);
+    }
+
+    /**
+     * Evicts least recently used conversations down to the low watermark. Only one thread
+     * evicts at a time; the others keep appending and leave the work to it.
+     */
+    void evict() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long target = (long) (bytes * LOW_WATERMARK);
+            if (footprint.get() <= target) {
+                return;
+            }
+            List<ConversationLog> candidates = new ArrayList<>(resident.keySet());
+            Collections.sort(candidates, new Comparator<ConversationLog>() {
+                public int compare(ConversationLog a, ConversationLog b) {
+                    return Long.compare(a.getLastAccess(), b.getLastAccess());
+                }
+            });
+            for (ConversationLog log : candidates) {
+                if (footprint.get() <= target) {
+                    break;
+                }
+                HistoryStore store = resident.get(log);
+                if (store != null) {
+                    store.evict(log);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package history;
+
+import model.DialogueRecord;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Secondary indexes over history, fed as a {@link HistorySink}. Every record gets an id and
+ * lands in an {@link EntryRing} of bounded size; posting lists per conversation and per sender hold
+ * ids sorted by time, so a query binary searches the time range and then walks only the
+ * matching ids. Results come from a {@link Iterator} cursor and are never collected into a
+ * list. When the ring wraps, the oldest entries expire and cursors skip them.
+ */
+public class HistoryIndex implements HistorySink {
+
+    private final int capacity;
+    private final EntryRing ring;
+    private final ConcurrentHashMap<ConversationId, PostingList> byConversation = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PostingList> bySender = new ConcurrentHashMap<>();
+    private long nextId;
+
+    /**
+     * @param capacity records kept in the index, rounded up to a power of two; memory for them
+     *                 is allocated as they arrive
+     */
+    public HistoryIndex(int capacity) {
+        this.ring = new EntryRing(capacity);
+        this.capacity = ring.capacity();
+    }
+
+    public void appended(ConversationId id, DialogueRecord record) {
+        add(id, record);
+    }
+
+    /**
+     * Indexes a record and returns its index id.
+     */
+    public long add(ConversationId conversation, DialogueRecord record) {
+        long id;
+        synchronized (this) {
+            id = nextId++;
+            ring.put(id, new LogEntry(id, conversation, record));
+        }
+        long time = record.getTimeMillis();
+        long floor = id - capacity + 1;
+        PostingList list = posting(byConversation, conversation);
+        list.add(id, time);
+        list.trim(floor);
+        list = posting(bySender, record.getAccount());
+        list.add(id, time);
+        list.trim(floor);
+        return id;
+    }
+
+    /**
+     * Forgets the conversation's records along with the conversation, so the index holds no
+     * more of history than the store does.
+     */
+    public void evicted(ConversationId conversation) {
+        PostingList list = byConversation.remove(conversation);
+        if (list == null) {
+            return;
+        }
+        PostingList.View view = list.view();
+        synchronized (this) {
+            for (int i = view.from; i < view.to; i++) {
+                ring.remove(view.ids[i]);
+            }
+        }
+    }
+
+    /**
+     * Forgets everything. Ids keep increasing so no stale entry can match a later query.
+     */
+    public synchronized void clear() {
+        byConversation.clear();
+        bySender.clear();
+        ring.clear();
+        nextId += capacity;
+    }
+
+    public synchronized long size() {
+        return Math.min(nextId, capacity);
+    }
+
+    /**
+     * Most records kept.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Records matching {@code query}, oldest first unless {@link HistoryQuery#newestFirst}.
+     */
+    public Iterator<LogEntry> query(HistoryQuery query) {
+        PostingList list;
+        String senderFilter = null;
+        if (query.getConversation() != null) {
+            list = byConversation.get(query.getConversation());
+            senderFilter = query.getSender();
+        } else if (query.getSender() != null) {
+            list = bySender.get(query.getSender());
+        } else {
+            return new ScanCursor(query);
+        }
+        if (list == null) {
+            return new PostingCursor(null, query, null);
+        }
+        return new PostingCursor(list.view(), query, senderFilter);
+    }
+
+    /**
+     * Number of indexed records in a conversation, including expired ids not trimmed yet.
+     */
+    public int count(ConversationId conversation) {
+        PostingList list = byConversation.get(conversation);
+        return list == null ? 0 : list.size();
+    }
+
+    private static <K> PostingList posting(ConcurrentHashMap<K, PostingList> map, K key) {
+        PostingList list = map.get(key);
+        if (list == null) {
+            list = map.computeIfAbsent(key, k -> new PostingList());
+        }
+        return list;
+    }
+
+    private LogEntry entry(long id) {
+        return ring.get(id);
+    }
+
+    private class PostingCursor extends EntryCursor {
+
+        private final PostingList.View view;
+        private final String sender;
+        private final boolean backwards;
+        private final int lo;
+        private final int hi;
+        private int position;
+
+        PostingCursor(PostingList.View view, HistoryQuery query, String sender) {
+            super(query.getLimit());
+            this.view = view;
+            this.sender = sender;
+            this.backwards = query.isNewestFirst();
+            if (view == null) {
+                lo = hi = 0;
+            } else {
+                lo = view.lowerBound(query.getSince());
+                hi = query.getUntil() == Long.MAX_VALUE ? view.to : view.lowerBound(query.getUntil());
+            }
+            position = backwards ? hi - 1 : lo;
+        }
+
+        LogEntry advance() {
+            while (position >= lo && position < hi) {
+                long id = view.ids[position];
+                position += backwards ? -1 : 1;
+                LogEntry entry = entry(id);
+                if (entry != null && (sender == null || sender.equals(entry.getRecord().getAccount()))) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    private class ScanCursor extends EntryCursor {
+
+        private final HistoryQuery query;
+        private final long first;
+        private final long last;
+        private long id;
+
+        ScanCursor(HistoryQuery query) {
+            super(query.getLimit());
+            this.query = query;
+            synchronized (HistoryIndex.this) {
+                last = nextId - 1;
+                first = Math.max(0, nextId - capacity);
+            }
+            id = query.isNewestFirst() ? last : first;
+        }
+
+        LogEntry advance() {
+            while (id >= first && id <= last) {
+                LogEntry entry = entry(id);
+                id += query.isNewestFirst() ? -1 : 1;
+                if (entry == null) {
+                    continue;
+                }
+                long time = entry.getRecord().getTimeMillis();
+                if (time >= query.getSince() && time < query.getUntil()) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+}
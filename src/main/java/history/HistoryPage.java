@@ -0,0 +1,79 @@
+package history;
+
+import model.DialogueRecord;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A run of consecutive records of one conversation, oldest first, with the sequence numbers
+ * needed to fetch the pages around it. Sequence numbers are only comparable between pages of
+ * the same generation: a conversation that was evicted and reloaded starts a new one.
+ */
+public final class HistoryPage {
+
+    static final HistoryPage EMPTY = new HistoryPage(Collections.<DialogueRecord>emptyList(), 0, 0, 0, 0);
+
+    private final List<DialogueRecord> records;
+    private final long firstSeq;
+    private final long oldestSeq;
+    private final long latestSeq;
+    private final long generation;
+
+    HistoryPage(List<DialogueRecord> records, long firstSeq, long oldestSeq, long latestSeq, long generation) {
+        this.records = records;
+        this.firstSeq = firstSeq;
+        this.oldestSeq = oldestSeq;
+        this.latestSeq = latestSeq;
+        this.generation = generation;
+    }
+
+    public List<DialogueRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * Sequence number of the first record, or of where it would be if the page is empty.
+     */
+    public long getFirstSeq() {
+        return firstSeq;
+    }
+
+    /**
+     * Sequence number just after the last record; pass it as {@code fromSeq} to read what
+     * was appended since.
+     */
+    public long getEndSeq() {
+        return firstSeq + records.size();
+    }
+
+    /**
+     * Sequence number of the oldest record the conversation still holds.
+     */
+    public long getOldestSeq() {
+        return oldestSeq;
+    }
+
+    /**
+     * Sequence number the next append will get.
+     */
+    public long getLatestSeq() {
+        return latestSeq;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public boolean hasOlder() {
+        return firstSeq > oldestSeq;
+    }
+
+    /**
+     * True if {@code seq} was taken from a page of the same generation and still lies within
+     * or right after the records held, so reading on from it skips nothing by surprise.
+     */
+    public boolean continues(long seq, long generation) {
+        return generation == this.generation && seq >= oldestSeq && seq <= latestSeq;
+    }
+}
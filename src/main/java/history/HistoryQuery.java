@@ -0,0 +1,118 @@
+package history;
+
+/**
+ * Filter for {@link HistoryIndex#query}. At least one of conversation or sender narrows the
+ * search to a posting list; without either the whole index is scanned. Queries with text go
+ * to {@link TextIndex#query} instead.
+ */
+public class HistoryQuery {
+
+    private ConversationId conversation;
+    private String sender;
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+    private int limit = Integer.MAX_VALUE;
+    private boolean newestFirst;
+    private String text;
+    private boolean phrase;
+
+    public static HistoryQuery inConversation(ConversationId conversation) {
+        return new HistoryQuery().conversation(conversation);
+    }
+
+    public static HistoryQuery fromSender(String sender) {
+        return new HistoryQuery().sender(sender);
+    }
+
+    /**
+     * Records containing every word of {@code text}, in any order.
+     */
+    public static HistoryQuery matching(String text) {
+        return new HistoryQuery().text(text, false);
+    }
+
+    /**
+     * Records containing the words of {@code text} next to each other and in order.
+     */
+    public static HistoryQuery matchingPhrase(String text) {
+        return new HistoryQuery().text(text, true);
+    }
+
+    public HistoryQuery conversation(ConversationId conversation) {
+        this.conversation = conversation;
+        return this;
+    }
+
+    public HistoryQuery sender(String sender) {
+        this.sender = sender;
+        return this;
+    }
+
+    /**
+     * Only records at or after {@code epochMillis}.
+     */
+    public HistoryQuery since(long epochMillis) {
+        this.since = epochMillis;
+        return this;
+    }
+
+    /**
+     * Only records before {@code epochMillis}.
+     */
+    public HistoryQuery until(long epochMillis) {
+        this.until = epochMillis;
+        return this;
+    }
+
+    public HistoryQuery text(String text, boolean phrase) {
+        this.text = text;
+        this.phrase = phrase;
+        return this;
+    }
+
+    public HistoryQuery limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Iterate from the newest matching record backwards; combined with {@link #limit} this
+     * gives "the last N messages".
+     */
+    public HistoryQuery newestFirst() {
+        this.newestFirst = true;
+        return this;
+    }
+
+    public ConversationId getConversation() {
+        return conversation;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public long getSince() {
+        return since;
+    }
+
+    public long getUntil() {
+        return until;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public boolean isNewestFirst() {
+        return newestFirst;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public boolean isPhrase() {
+        return phrase;
+    }
+}
@@ -0,0 +1,19 @@
+package history;
+
+import model.DialogueRecord;
+
+/**
+ * Receives every record appended to a {@link HistoryStore}, on the appending thread. Sinks
+ * must be thread safe and cheap; anything slow belongs on the sink's own thread.
+ */
+public interface HistorySink {
+
+    void appended(ConversationId id, DialogueRecord record);
+
+    /**
+     * The conversation was taken out of the store's memory, evicted or removed; sinks that
+     * hold its records in memory let go of them too.
+     */
+    default void evicted(ConversationId id) {
+    }
+}
@@ -0,0 +1,18 @@
+package history;
+
+import model.DialogueRecord;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Stored history a {@link HistoryStore} reads a conversation from the first time it is used,
+ * instead of everything being loaded up front. Must be thread safe.
+ */
+public interface HistorySource {
+
+    /**
+     * The conversation's newest {@code max} stored records, oldest first; empty if there are none.
+     */
+    List<DialogueRecord> load(ConversationId id, int max) throws IOException;
+}
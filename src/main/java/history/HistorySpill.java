@@ -0,0 +1,99 @@
+package history;
+
+import model.DialogueRecord;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Disk overflow for conversations evicted from memory. Each conversation gets one append-only
+ * file of (time, account, dialogue) entries in {@code directory}. Callers synchronize on the
+ * spill while they move a conversation between memory and disk.
+ */
+class HistorySpill {
+
+    private final File directory;
+
+    HistorySpill(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("cannot create spill directory " + directory);
+        }
+    }
+
+    void write(ConversationId id, List<DialogueRecord> records) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file(id), true)));
+        try {
+            for (DialogueRecord record : records) {
+                out.writeLong(record.getTimeMillis());
+                out.writeUTF(record.getAccount());
+                out.writeUTF(record.getDialogue());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    boolean contains(ConversationId id) {
+        return file(id).isFile();
+    }
+
+    /**
+     * Reads back at most the last {@code max} records and deletes the spill file.
+     */
+    List<DialogueRecord> take(ConversationId id, int max) throws IOException {
+        File file = file(id);
+        Deque<DialogueRecord> tail = new ArrayDeque<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                tail.addLast(new DialogueRecord(in.readUTF(), in.readUTF(), time));
+                if (tail.size() > max) {
+                    tail.removeFirst();
+                }
+            }
+        } finally {
+            in.close();
+        }
+        file.delete();
+        return new ArrayList<>(tail);
+    }
+
+    void clear() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".spill")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private File file(ConversationId id) {
+        try {
+            return new File(directory, id.getType().name().toLowerCase() + "_" + URLEncoder.encode(id.getName(), "UTF-8") + ".spill");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
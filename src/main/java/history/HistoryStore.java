@@ -0,0 +1,414 @@
+package history;
+
+import model.DialogueRecord;
+import tool.Constant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Conversation history shared between the console thread and any number of SDK callback
+ * threads. Each conversation is a {@link ConversationLog} ring buffer with its own lock, so
+ * appends to different conversations run in parallel.
+ * <p>
+ * Memory is bounded twice: every conversation keeps at most {@code conversationCapacity}
+ * records, and the store's conversations count against a {@link HistoryBudget}, which may be
+ * shared with other stores; when all of them together exceed it the least recently used
+ * conversations are evicted, from whichever store holds them. Evicted conversations are
+ * written to {@code spillDirectory} when one is configured and read back on next access;
+ * without one they are read from the {@link HistorySource} again, if one is attached.
+ * <p>
+ * With a {@link HistorySource} attached, stored history is not loaded up front: each
+ * conversation's newest records are read from the source the first time the conversation is
+ * used, so opening history costs the same however much of it there is.
+ */
+public class HistoryStore {
+
+    private final ConcurrentHashMap<ConversationId, ConversationLog> conversations = new ConcurrentHashMap<>();
+    private final int conversationCapacity;
+    private final HistoryBudget budget;
+    private final HistorySpill spill;
+    private final Counters counters;
+    private final List<HistorySink> sinks = new CopyOnWriteArrayList<>();
+    private final Set<ConversationId> loaded = ConcurrentHashMap.newKeySet();
+    private volatile HistorySource source;
+
+    static class Counters {
+        final HistoryBudget budget;
+        final AtomicLong footprint = new AtomicLong();
+        final AtomicLong overwritten = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+        final AtomicLong spilled = new AtomicLong();
+        final AtomicLong spillErrors = new AtomicLong();
+        final AtomicLong generations = new AtomicLong();
+        final AtomicLong loadedRecords = new AtomicLong();
+        final AtomicLong loadErrors = new AtomicLong();
+
+        Counters(HistoryBudget budget) {
+            this.budget = budget;
+        }
+
+        /**
+         * Adds to the footprint of the store and of its budget.
+         */
+        void charge(long delta) {
+            footprint.addAndGet(delta);
+            budget.charge(delta);
+        }
+    }
+
+    /**
+     * A store with a budget of its own.
+     */
+    public HistoryStore() {
+        this(Constant.HISTORY_CONVERSATION_CAPACITY, new HistoryBudget(Constant.HISTORY_MEMORY_BUDGET), null);
+    }
+
+    /**
+     * A store sharing {@code budget} with the other stores on it.
+     */
+    public HistoryStore(HistoryBudget budget) {
+        this(Constant.HISTORY_CONVERSATION_CAPACITY, budget, null);
+    }
+
+    /**
+     * @param spillDirectory where evicted conversations are written, null to drop them
+     */
+    public HistoryStore(int conversationCapacity, long memoryBudgetBytes, File spillDirectory) {
+        this(conversationCapacity, new HistoryBudget(memoryBudgetBytes), spillDirectory);
+    }
+
+    /**
+     * @param spillDirectory where evicted conversations are written, null to drop them
+     */
+    public HistoryStore(int conversationCapacity, HistoryBudget budget, File spillDirectory) {
+        if (conversationCapacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + conversationCapacity);
+        }
+        this.conversationCapacity = conversationCapacity;
+        this.budget = budget;
+        this.counters = new Counters(budget);
+        this.spill = spillDirectory == null ? null : new HistorySpill(spillDirectory);
+    }
+
+    public void addSink(HistorySink sink) {
+        sinks.add(sink);
+    }
+
+    public void removeSink(HistorySink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Where conversations not in memory are read from, null for none. A conversation is read
+     * when first used and again after it was evicted; removed ones are not read again.
+     */
+    public void setSource(HistorySource source) {
+        this.source = source;
+    }
+
+    /**
+     * Appends a record, passes it to every {@link HistorySink} and returns its sequence
+     * number within the conversation.
+     */
+    public long append(ConversationId id, DialogueRecord record) {
+        long seq = appendInMemory(id, record);
+        for (HistorySink sink : sinks) {
+            sink.appended(id, record);
+        }
+        return seq;
+    }
+
+    /**
+     * Appends without notifying the sinks, for records replayed from a sink's own storage.
+     */
+    public long restore(ConversationId id, DialogueRecord record) {
+        return appendInMemory(id, record);
+    }
+
+    private long appendInMemory(ConversationId id, DialogueRecord record) {
+        long bytes = estimateBytes(record);
+        while (true) {
+            long seq = log(id).append(record, bytes, counters);
+            if (seq >= 0) {
+                if (budget.isExceeded()) {
+                    budget.evict();
+                }
+                return seq;
+            }
+        }
+    }
+
+    /**
+     * A consistent, immutable snapshot of the conversation; empty if nothing was recorded.
+     */
+    public List<DialogueRecord> snapshot(ConversationId id) {
+        ConversationLog log = find(id);
+        return log == null ? Collections.<DialogueRecord>emptyList() : log.snapshot();
+    }
+
+    /**
+     * The newest {@code limit} records with sequence numbers in {@code [fromSeq, toSeq)}.
+     * Pass {@code Long.MAX_VALUE} as {@code toSeq} for the latest page, and a page's first
+     * sequence number to step back to the one before it.
+     */
+    public HistoryPage page(ConversationId id, long fromSeq, long toSeq, int limit) {
+        ConversationLog log = find(id);
+        return log == null ? HistoryPage.EMPTY : log.page(fromSeq, toSeq, limit);
+    }
+
+    public int size(ConversationId id) {
+        ConversationLog log = conversations.get(id);
+        return log == null ? 0 : log.size();
+    }
+
+    public List<ConversationId> conversations(ConversationType type) {
+        List<ConversationId> ids = new ArrayList<>();
+        for (ConversationId id : conversations.keySet()) {
+            if (id.getType() == type) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Drops the conversation from memory; it is not read from the source again.
+     */
+    public void remove(ConversationId id) {
+        loaded.add(id);
+        ConversationLog log = conversations.remove(id);
+        if (log != null) {
+            budget.release(log);
+            log.evict(counters);
+            evicted(id);
+        }
+    }
+
+    /**
+     * Drops the in-memory conversations of {@code type}; ones still only in the source are kept.
+     */
+    public void clear(ConversationType type) {
+        for (ConversationId id : conversations(type)) {
+            remove(id);
+        }
+    }
+
+    /**
+     * Drops everything, and detaches the source.
+     */
+    public void clear() {
+        source = null;
+        for (ConversationId id : new ArrayList<>(conversations.keySet())) {
+            remove(id);
+        }
+        if (spill != null) {
+            spill.clear();
+        }
+    }
+
+    /**
+     * Estimated heap held by this store's in-memory conversations, in bytes.
+     */
+    public long getFootprintBytes() {
+        return counters.footprint.get();
+    }
+
+    public HistoryBudget getBudget() {
+        return budget;
+    }
+
+    public long getMemoryBudgetBytes() {
+        return budget.getBytes();
+    }
+
+    public int getConversationCapacity() {
+        return conversationCapacity;
+    }
+
+    public int getConversationCount() {
+        return conversations.size();
+    }
+
+    /**
+     * Conversations of this store evicted from memory to keep the budget.
+     */
+    public long getEvictionCount() {
+        return counters.evictions.get();
+    }
+
+    /**
+     * Records written to the spill directory by evictions.
+     */
+    public long getSpilledCount() {
+        return counters.spilled.get();
+    }
+
+    public long getSpillErrorCount() {
+        return counters.spillErrors.get();
+    }
+
+    /**
+     * Records read from the {@link HistorySource} as conversations were used while not in memory.
+     */
+    public long getLoadedCount() {
+        return counters.loadedRecords.get();
+    }
+
+    public long getLoadErrorCount() {
+        return counters.loadErrors.get();
+    }
+
+    /**
+     * Records dropped because their conversation's ring buffer was full.
+     */
+    public long getOverwrittenCount() {
+        return counters.overwritten.get();
+    }
+
+    /**
+     * Rough heap cost of a record: the record itself and its UTF-8 text. Account names are
+     * shared through the dictionary and not counted.
+     */
+    static long estimateBytes(DialogueRecord record) {
+        return 32 + 16 + record.getDialogueUtf8Length();
+    }
+
+    private ConversationLog log(ConversationId id) {
+        ConversationLog log = find(id);
+        if (log == null) {
+            ConversationLog created = new ConversationLog(id, conversationCapacity,
+                    counters.generations.incrementAndGet());
+            log = conversations.putIfAbsent(id, created);
+            if (log == null) {
+                log = created;
+                budget.admit(log, this);
+            }
+        }
+        log.touch(budget.tick());
+        return log;
+    }
+
+    /**
+     * The conversation's log if it has records anywhere: in memory, spilled, or in the source
+     * and not in memory since it was last read. Null otherwise.
+     */
+    private ConversationLog find(ConversationId id) {
+        ConversationLog log = conversations.get(id);
+        if (log != null) {
+            return log;
+        }
+        if (spill != null && spill.contains(id)) {
+            log = reload(id);
+        } else if (source != null && !loaded.contains(id)) {
+            log = load(id);
+            if (log != null && budget.isExceeded()) {
+                log.touch(budget.tick());
+                budget.evict();
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Reads a conversation from the source before anyone can append to it, so its stored
+     * records stay ahead of new ones. Returns null if the source has none. A conversation is
+     * marked loaded only once its log is in place, so threads racing for it wait here instead
+     * of starting an empty log.
+     */
+    private ConversationLog load(ConversationId id) {
+        HistorySource from = source;
+        synchronized (loaded) {
+            ConversationLog log = conversations.get(id);
+            if (log != null || from == null || loaded.contains(id)) {
+                return log;
+            }
+            List<DialogueRecord> records;
+            try {
+                records = from.load(id, conversationCapacity);
+            } catch (IOException e) {
+                counters.loadErrors.incrementAndGet();
+                records = Collections.emptyList();
+            }
+            if (!records.isEmpty()) {
+                log = new ConversationLog(id, conversationCapacity, counters.generations.incrementAndGet());
+                log.restore(records, counters);
+                conversations.put(id, log);
+                budget.admit(log, this);
+                counters.loadedRecords.addAndGet(records.size());
+            }
+            loaded.add(id);
+            return log;
+        }
+    }
+
+    /**
+     * Brings a spilled conversation back into memory before anyone can append to it, so the
+     * restored records stay ahead of new ones.
+     */
+    private ConversationLog reload(ConversationId id) {
+        synchronized (spill) {
+            ConversationLog log = conversations.get(id);
+            if (log != null) {
+                return log;
+            }
+            log = new ConversationLog(id, conversationCapacity, counters.generations.incrementAndGet());
+            try {
+                log.restore(spill.take(id, conversationCapacity), counters);
+            } catch (IOException e) {
+                counters.spillErrors.incrementAndGet();
+            }
+            conversations.put(id, log);
+            budget.admit(log, this);
+            return log;
+        }
+    }
+
+    /**
+     * Takes one conversation out of memory for the budget, unless it was dropped or replaced
+     * meanwhile.
+     */
+    void evict(ConversationLog log) {
+        budget.release(log);
+        if (spill == null) {
+            // under the load lock, so the conversation is either in memory or read again
+            synchronized (loaded) {
+                if (!conversations.remove(log.getId(), log)) {
+                    return;
+                }
+                log.evict(counters);
+                counters.evictions.incrementAndGet();
+                loaded.remove(log.getId());
+            }
+            evicted(log.getId());
+            return;
+        }
+        synchronized (spill) {
+            if (!conversations.remove(log.getId(), log)) {
+                return;
+            }
+            List<DialogueRecord> records = log.evict(counters);
+            counters.evictions.incrementAndGet();
+            try {
+                spill.write(log.getId(), records);
+                counters.spilled.addAndGet(records.size());
+            } catch (IOException e) {
+                counters.spillErrors.incrementAndGet();
+            }
+        }
+        evicted(log.getId());
+    }
+
+    private void evicted(ConversationId id) {
+        for (HistorySink sink : sinks) {
+            sink.evicted(id);
+        }
+    }
+}
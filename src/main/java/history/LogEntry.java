@@ -0,0 +1,34 @@
+package history;
+
+import model.DialogueRecord;
+
+/**
+ * One record read back from a {@link MessageLog}.
+ */
+public class LogEntry {
+
+    private final long seq;
+    private final ConversationId conversation;
+    private final DialogueRecord record;
+
+    public LogEntry(long seq, ConversationId conversation, DialogueRecord record) {
+        this.seq = seq;
+        this.conversation = conversation;
+        this.record = record;
+    }
+
+    /**
+     * Position of the entry in the log, unique and increasing across all conversations.
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    public ConversationId getConversation() {
+        return conversation;
+    }
+
+    public DialogueRecord getRecord() {
+        return record;
+    }
+}
@@ -0,0 +1,786 @@
+package history;
+
+import model.DialogueRecord;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented log of {@link DialogueRecord}s, replacing whole-object
+ * serialization of the history maps. Appending only enqueues the record, so persisting a
+ * message costs O(1) on the caller's thread. A single writer thread drains the queue in
+ * batches, writes each batch with one write call and one fsync (group commit), and rolls
+ * to a new segment file once the active one exceeds the segment size.
+ * <p>
+ * Entry layout: {@code int length, int crc32(payload), payload}, where the payload is
+ * {@code long seq, byte type, long time, then name, account and dialogue as a short/short/int
+ * length followed by UTF-8 bytes}. On open the log is scanned and truncated after the last
+ * entry with a valid CRC, which drops whatever a crash left half written.
+ * <p>
+ * Every sealed segment has a {@link SegmentIndex} of where each conversation's entries are,
+ * and the active one keeps the same in memory, so a conversation is read through memory mapped
+ * segments without touching the others ({@link #read}). Opening the log only scans the active
+ * segment; sealed ones are trusted as written and their indexes are mapped when first needed.
+ * How long opening takes therefore depends on the segment size, not on how much history there is.
+ * <p>
+ * Compaction runs in the background over sealed segments and keeps only the newest
+ * {@code retainPerConversation} entries of each conversation.
+ */
+public class MessageLog implements HistorySink, HistorySource {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_PAYLOAD_BYTES = 1 << 20;
+    private static final Pending CLOSE = new Pending(null, null);
+
+    private final File directory;
+    private final long segmentBytes;
+    private final int maxBatch;
+    private final boolean fsync;
+    private final int retainPerConversation;
+
+    private final BlockingQueue<Pending> queue;
+    private final Thread writer;
+    private final ScheduledExecutorService compactor;
+    private final Object segmentLock = new Object();
+    private final List<File> sealed = new ArrayList<>();
+    private final Map<File, SegmentIndex> indexes = new ConcurrentHashMap<>();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong compactedAway = new AtomicLong();
+    private final AtomicLong writeErrors = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong truncatedBytes = new AtomicLong();
+
+    private File activeFile;
+    private FileChannel active;
+    private SegmentIndex.Builder activeIndex;
+    private long activeBytes;
+    private long nextSeq;
+    private volatile boolean closed;
+
+    private static class Pending {
+        final ConversationId conversation;
+        final DialogueRecord record;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+
+        Pending(ConversationId conversation, DialogueRecord record) {
+            this.conversation = conversation;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Opens the log in {@code directory} with 64 MB segments, fsync on every batch and no
+     * compaction.
+     */
+    public static MessageLog open(File directory) throws IOException {
+        return new MessageLog(directory, 64L * 1024 * 1024, 1024, true, 0, 0);
+    }
+
+    /**
+     * @param segmentBytes          size after which the active segment is sealed, at most 1 GB
+                                   since segments are mapped whole
+     * @param maxBatch              most entries written and fsynced together
+     * @param fsync                 whether each batch is forced to disk before completing
+     * @param retainPerConversation entries kept per conversation by compaction, 0 disables it
+     * @param compactionIntervalMs  period of background compaction
+     */
+    public MessageLog(File directory, long segmentBytes, int maxBatch, boolean fsync,
+                      int retainPerConversation, long compactionIntervalMs) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create log directory " + directory);
+        }
+        if (segmentBytes <= 0 || segmentBytes > 1L << 30) {
+            throw new IllegalArgumentException("segment size must be between 1 byte and 1 GB: " + segmentBytes);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBatch = maxBatch;
+        this.fsync = fsync;
+        this.retainPerConversation = retainPerConversation;
+        this.queue = new LinkedBlockingQueue<>(maxBatch * 64);
+
+        recover();
+
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "message-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        if (retainPerConversation > 0 && compactionIntervalMs > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "message-log-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    writeErrors.incrementAndGet();
+                }
+            }, compactionIntervalMs, compactionIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            compactor = null;
+        }
+    }
+
+    /**
+     * Queues a record; the future completes with its log sequence number once the batch
+     * containing it has been written (and forced, if fsync is on). Blocks only when the
+     * writer has fallen a full queue behind. A record too large for an entry fails the
+     * future with an {@link IOException} and is not written.
+     */
+    public CompletableFuture<Long> append(ConversationId conversation, DialogueRecord record) {
+        Pending pending = new Pending(conversation, record);
+        if (closed) {
+            pending.done.completeExceptionally(new IOException("log closed"));
+            return pending.done;
+        }
+        String unwritable = unwritable(conversation, record);
+        if (unwritable != null) {
+            rejected.incrementAndGet();
+            pending.done.completeExceptionally(new IOException(unwritable));
+            return pending.done;
+        }
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.done.completeExceptionally(e);
+        }
+        return pending.done;
+    }
+
+    public void appended(ConversationId id, DialogueRecord record) {
+        append(id, record);
+    }
+
+    /**
+     * Reads every entry in log order. Entries still queued are not included.
+     */
+    public void replay(Consumer<LogEntry> consumer) throws IOException {
+        for (File segment : segments()) {
+            readSegment(segment, consumer);
+        }
+    }
+
+    /**
+     * The newest {@code max} entries of {@code conversation}, oldest first, read from the
+     * segments newest first through their indexes. Entries still queued are not included.
+     */
+    public List<LogEntry> read(ConversationId conversation, int max) throws IOException {
+        List<File> older;
+        File current;
+        long currentBytes;
+        int[] currentOffsets;
+        synchronized (segmentLock) {
+            older = new ArrayList<>(sealed);
+            current = activeFile;
+            currentBytes = activeBytes;
+            currentOffsets = activeIndex.newest(conversation, max);
+        }
+        List<LogEntry> newest = new ArrayList<>();
+        if (currentOffsets.length > 0) {
+            ByteBuffer mapped = SegmentIndex.map(current, currentBytes);
+            for (int i = currentOffsets.length - 1; i >= 0; i--) {
+                newest.add(decodeAt(mapped, currentOffsets[i]));
+            }
+        }
+        for (int s = older.size() - 1; s >= 0 && newest.size() < max; s--) {
+            SegmentIndex index = segmentIndex(older.get(s));
+            if (index == null) {
+                continue;
+            }
+            int[] offsets = index.newest(conversation, max - newest.size());
+            for (int i = offsets.length - 1; i >= 0; i--) {
+                newest.add(decodeAt(index.entries(), offsets[i]));
+            }
+        }
+        Collections.reverse(newest);
+        return newest;
+    }
+
+    public List<DialogueRecord> load(ConversationId id, int max) throws IOException {
+        List<LogEntry> entries = read(id, max);
+        List<DialogueRecord> records = new ArrayList<>(entries.size());
+        for (LogEntry entry : entries) {
+            records.add(entry.getRecord());
+        }
+        return records;
+    }
+
+    /**
+     * Reads, in log order, the newest {@code max} entries with a sequence number below
+     * {@code beforeSeq}, going back only as many segments as that takes.
+     */
+    public void replayTail(long beforeSeq, int max, Consumer<LogEntry> consumer) throws IOException {
+        List<File> segments;
+        long currentBytes;
+        synchronized (segmentLock) {
+            segments = new ArrayList<>(sealed);
+            segments.add(activeFile);
+            currentBytes = activeBytes;
+        }
+        List<LogEntry> newest = new ArrayList<>();
+        for (int s = segments.size() - 1; s >= 0 && newest.size() < max; s--) {
+            ByteBuffer mapped;
+            if (s == segments.size() - 1) {
+                mapped = SegmentIndex.map(segments.get(s), currentBytes);
+            } else {
+                SegmentIndex index = segmentIndex(segments.get(s));
+                if (index == null) {
+                    continue;
+                }
+                mapped = index.entries();
+            }
+            final List<Integer> offsets = new ArrayList<>();
+            scan(mapped, (conversation, seq, offset) -> offsets.add(offset));
+            for (int i = offsets.size() - 1; i >= 0 && newest.size() < max; i--) {
+                LogEntry entry = decodeAt(mapped, offsets.get(i));
+                if (entry.getSeq() < beforeSeq) {
+                    newest.add(entry);
+                }
+            }
+        }
+        for (int i = newest.size() - 1; i >= 0; i--) {
+            consumer.accept(newest.get(i));
+        }
+    }
+
+    /**
+     * Sequence number the next written entry will get.
+     */
+    public long getNextSeq() {
+        synchronized (segmentLock) {
+            return nextSeq;
+        }
+    }
+
+    /**
+     * Writes everything queued so far and stops the writer.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        try {
+            queue.put(CLOSE);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // appends that raced with close() and landed behind the marker
+        Pending late;
+        while ((late = queue.poll()) != null) {
+            late.done.completeExceptionally(new IOException("log closed"));
+        }
+        synchronized (segmentLock) {
+            if (active != null) {
+                active.force(true);
+                active.close();
+                active = null;
+            }
+        }
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getCompactedCount() {
+        return compactedAway.get();
+    }
+
+    public long getWriteErrorCount() {
+        return writeErrors.get();
+    }
+
+    /**
+     * Records refused by {@link #append} because they do not fit in an entry.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Bytes discarded during recovery because they did not form a valid entry.
+     */
+    public long getTruncatedBytes() {
+        return truncatedBytes.get();
+    }
+
+    public int getSegmentCount() {
+        synchronized (segmentLock) {
+            return sealed.size() + 1;
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch, maxBatch - 1);
+            int marker = batch.indexOf(CLOSE);
+            if (marker >= 0) {
+                // everything queued before close() is still written, later appends are refused
+                for (Pending late : batch.subList(marker + 1, batch.size())) {
+                    late.done.completeExceptionally(new IOException("log closed"));
+                }
+                batch.subList(marker, batch.size()).clear();
+                stop = true;
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    writeBatch(batch);
+                } catch (IOException e) {
+                    writeErrors.incrementAndGet();
+                    for (Pending pending : batch) {
+                        pending.done.completeExceptionally(e);
+                    }
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<Pending> batch) throws IOException {
+        ByteBuffer[] encoded = new ByteBuffer[batch.size()];
+        long[] seqs = new long[batch.size()];
+        int[] offsets = new int[batch.size()];
+        synchronized (segmentLock) {
+            int start = 0;
+            long activeSize = active.size();
+            for (int i = 0; i < batch.size(); i++) {
+                seqs[i] = nextSeq;
+                encoded[i] = encode(nextSeq++, batch.get(i).conversation, batch.get(i).record);
+                if (activeSize > 0 && activeSize + encoded[i].remaining() > segmentBytes) {
+                    flush(encoded, start, i);
+                    indexed(batch, seqs, offsets, start, i, activeSize);
+                    roll(seqs[i]);
+                    start = i;
+                    activeSize = 0;
+                }
+                offsets[i] = (int) activeSize;
+                activeSize += encoded[i].remaining();
+            }
+            flush(encoded, start, batch.size());
+            indexed(batch, seqs, offsets, start, batch.size(), activeSize);
+        }
+        batches.incrementAndGet();
+        written.addAndGet(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).done.complete(seqs[i]);
+        }
+    }
+
+    private void flush(ByteBuffer[] encoded, int from, int to) throws IOException {
+        if (from == to) {
+            return;
+        }
+        ByteBuffer[] slice = Arrays.copyOfRange(encoded, from, to);
+        long remaining = 0;
+        for (ByteBuffer buffer : slice) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= active.write(slice);
+        }
+        if (fsync) {
+            active.force(false);
+        }
+    }
+
+    /**
+     * Adds written entries to the active segment's index, which makes them readable.
+     */
+    private void indexed(List<Pending> batch, long[] seqs, int[] offsets, int from, int to, long activeSize) {
+        for (int i = from; i < to; i++) {
+            activeIndex.add(batch.get(i).conversation, seqs[i], offsets[i]);
+        }
+        activeBytes = activeSize;
+    }
+
+    private void roll(long firstSeq) throws IOException {
+        active.force(true);
+        long length = active.size();
+        active.close();
+        try {
+            activeIndex.write(SegmentIndex.fileOf(activeFile), length);
+        } catch (IOException e) {
+            // not fatal: the segment is indexed again when first read
+            writeErrors.incrementAndGet();
+        }
+        sealed.add(activeFile);
+        openActive(firstSeq);
+    }
+
+    private void openActive(long firstSeq) throws IOException {
+        activeFile = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+        active = new RandomAccessFile(activeFile, "rw").getChannel();
+        active.position(active.size());
+        activeIndex = new SegmentIndex.Builder();
+        activeBytes = 0;
+    }
+
+    /**
+     * The sealed segment's index, mapped on first use and again once compaction has rewritten
+     * the segment; null if compaction deleted it.
+     */
+    private SegmentIndex segmentIndex(File segment) throws IOException {
+        SegmentIndex index = indexes.get(segment);
+        if (index != null && index.getSegmentLength() == segment.length()) {
+            return index;
+        }
+        synchronized (indexes) {
+            index = indexes.get(segment);
+            if (index != null && index.getSegmentLength() == segment.length()) {
+                return index;
+            }
+            if (!segment.isFile()) {
+                indexes.remove(segment);
+                return null;
+            }
+            index = SegmentIndex.open(segment);
+            indexes.put(segment, index);
+            return index;
+        }
+    }
+
+    /**
+     * Why the record cannot be written as an entry, or null if it can. Recovery only accepts
+     * payloads up to {@link #MAX_PAYLOAD_BYTES}, and names and accounts have 16 bit lengths;
+     * anything larger would be acknowledged now and cut off with everything after it on the
+     * next open.
+     */
+    static String unwritable(ConversationId conversation, DialogueRecord record) {
+        int name = conversation.getName().getBytes(StandardCharsets.UTF_8).length;
+        int account = record.getAccount().getBytes(StandardCharsets.UTF_8).length;
+        if (name > 0xffff || account > 0xffff) {
+            return "conversation name or account longer than 65535 bytes";
+        }
+        long payload = 8 + 1 + 8 + 2 + name + 2 + account + 4L + record.getDialogueUtf8Length();
+        return payload > MAX_PAYLOAD_BYTES ? "entry of " + payload + " bytes exceeds " + MAX_PAYLOAD_BYTES : null;
+    }
+
+    static ByteBuffer encode(long seq, ConversationId conversation, DialogueRecord record) {
+        byte[] name = conversation.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] account = record.getAccount().getBytes(StandardCharsets.UTF_8);
+        int dialogueLength = record.getDialogueUtf8Length();
+        int payload = 8 + 1 + 8 + 2 + name.length + 2 + account.length + 4 + dialogueLength;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payload);
+        buffer.putInt(payload).putInt(0);
+        buffer.putLong(seq).put((byte) conversation.getType().ordinal()).putLong(record.getTimeMillis());
+        buffer.putShort((short) name.length).put(name);
+        buffer.putShort((short) account.length).put(account);
+        buffer.putInt(dialogueLength);
+        record.putDialogueUtf8(buffer);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_BYTES, payload);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    static LogEntry decode(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        long seq = buffer.getLong();
+        ConversationType type = ConversationType.values()[buffer.get()];
+        long time = buffer.getLong();
+        String name = string(buffer, buffer.getShort() & 0xffff);
+        String account = string(buffer, buffer.getShort() & 0xffff);
+        String dialogue = string(buffer, buffer.getInt());
+        return new LogEntry(seq, new ConversationId(type, name), new DialogueRecord(account, dialogue, time));
+    }
+
+    /**
+     * Decodes the entry at {@code offset} of a mapped segment. The offset comes from an index
+     * or a {@link #scan}, which already checked the entry.
+     */
+    static LogEntry decodeAt(ByteBuffer segment, int offset) throws IOException {
+        int length = offset + HEADER_BYTES <= segment.limit() ? segment.getInt(offset) : -1;
+        if (length <= 0 || length > MAX_PAYLOAD_BYTES || (long) offset + HEADER_BYTES + length > segment.limit()) {
+            throw new IOException("no entry at offset " + offset);
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer view = segment.duplicate();
+        view.position(offset + HEADER_BYTES);
+        view.get(payload);
+        return decode(payload);
+    }
+
+    interface EntryVisitor {
+        void visit(ConversationId conversation, long seq, int offset);
+    }
+
+    /**
+     * Walks the entries of a mapped segment, checking each one's CRC and reading only its
+     * conversation and sequence number, and returns the offset just past the last valid one.
+     */
+    static long scan(ByteBuffer segment, EntryVisitor visitor) {
+        ConversationType[] types = ConversationType.values();
+        CRC32 crc = new CRC32();
+        int limit = segment.limit();
+        int offset = 0;
+        while (offset + HEADER_BYTES <= limit) {
+            int length = segment.getInt(offset);
+            // the payload starts with seq, type, time and the name length
+            if (length < 19 || length > MAX_PAYLOAD_BYTES || (long) offset + HEADER_BYTES + length > limit) {
+                break;
+            }
+            int payload = offset + HEADER_BYTES;
+            ByteBuffer view = segment.duplicate();
+            view.limit(payload + length);
+            view.position(payload);
+            crc.reset();
+            crc.update(view);
+            if ((int) crc.getValue() != segment.getInt(offset + 4)) {
+                break;
+            }
+            int type = segment.get(payload + 8);
+            int nameLength = segment.getShort(payload + 17) & 0xffff;
+            if (type < 0 || type >= types.length || 19 + nameLength > length) {
+                break;
+            }
+            byte[] name = new byte[nameLength];
+            view.position(payload + 19);
+            view.get(name);
+            visitor.visit(new ConversationId(types[type], new String(name, StandardCharsets.UTF_8)),
+                    segment.getLong(payload), offset);
+            offset = payload + length;
+        }
+        return offset;
+    }
+
+    private static String string(ByteBuffer buffer, int length) {
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Reads a segment and returns the offset just past its last valid entry.
+     */
+    private static long readSegment(File segment, Consumer<LogEntry> consumer) throws IOException {
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 1 << 16));
+        try {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                int checksum;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > MAX_PAYLOAD_BYTES) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                LogEntry entry;
+                try {
+                    entry = decode(payload);
+                } catch (RuntimeException e) {
+                    break;
+                }
+                if (consumer != null) {
+                    consumer.accept(entry);
+                }
+                valid += HEADER_BYTES + length;
+            }
+        } finally {
+            in.close();
+        }
+        return valid;
+    }
+
+    private List<File> segments() {
+        synchronized (segmentLock) {
+            List<File> all = new ArrayList<>(sealed);
+            if (activeFile != null) {
+                all.add(activeFile);
+            }
+            return all;
+        }
+    }
+
+    private static List<File> listSegments(File directory) {
+        File[] files = directory.listFiles();
+        List<File> segments = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+                    segments.add(file);
+                }
+            }
+        }
+        // zero padded names sort in seq order
+        segments.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return segments;
+    }
+
+    /**
+     * Scans the active segment, truncates it after its last valid entry and finds the next
+     * sequence number. Sealed segments were forced before the next one was started, so they
+     * are left alone.
+     */
+    private void recover() throws IOException {
+        List<File> segments = listSegments(directory);
+        synchronized (segmentLock) {
+            if (segments.isEmpty()) {
+                nextSeq = 0;
+                openActive(nextSeq);
+                return;
+            }
+            sealed.addAll(segments.subList(0, segments.size() - 1));
+            activeFile = segments.get(segments.size() - 1);
+            activeIndex = new SegmentIndex.Builder();
+            long length = activeFile.length();
+            long valid = scan(SegmentIndex.map(activeFile, length), activeIndex::add);
+            if (valid < length) {
+                truncatedBytes.addAndGet(length - valid);
+                try (RandomAccessFile file = new RandomAccessFile(activeFile, "rw")) {
+                    file.setLength(valid);
+                }
+            }
+            active = new RandomAccessFile(activeFile, "rw").getChannel();
+            active.position(active.size());
+            activeBytes = valid;
+            // a segment is named after its first sequence number, which counts even if it is empty
+            String name = activeFile.getName();
+            long firstSeq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            nextSeq = Math.max(firstSeq, activeIndex.getLastSeq() + 1);
+        }
+    }
+
+    /**
+     * Rewrites sealed segments, keeping the newest {@code retainPerConversation} entries of
+     * every conversation. The active segment is never touched, so the writer is not blocked.
+     */
+    public void compact() throws IOException {
+        if (retainPerConversation <= 0) {
+            return;
+        }
+        List<File> targets;
+        synchronized (segmentLock) {
+            targets = new ArrayList<>(sealed);
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+        // newest entries win: count per conversation from the active segment backwards
+        final Map<ConversationId, long[]> totals = new HashMap<>();
+        for (File segment : segments()) {
+            readSegment(segment, entry -> {
+                long[] count = totals.get(entry.getConversation());
+                if (count == null) {
+                    totals.put(entry.getConversation(), new long[]{1, 0});
+                } else {
+                    count[0]++;
+                }
+            });
+        }
+        for (File segment : targets) {
+            final List<ByteBuffer> kept = new ArrayList<>();
+            final SegmentIndex.Builder keptIndex = new SegmentIndex.Builder();
+            final int[] dropped = {0};
+            final long[] keptBytes = {0};
+            readSegment(segment, entry -> {
+                long[] count = totals.get(entry.getConversation());
+                // count[1] counts entries seen so far; keep the ones in the newest window
+                if (count[0] - count[1]++ <= retainPerConversation) {
+                    ByteBuffer encoded = encode(entry.getSeq(), entry.getConversation(), entry.getRecord());
+                    keptIndex.add(entry.getConversation(), entry.getSeq(), (int) keptBytes[0]);
+                    keptBytes[0] += encoded.remaining();
+                    kept.add(encoded);
+                } else {
+                    dropped[0]++;
+                }
+            });
+            if (dropped[0] == 0) {
+                continue;
+            }
+            File tmp = new File(directory, segment.getName() + ".compact");
+            try (FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+                out.truncate(0);
+                for (ByteBuffer buffer : kept) {
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+                out.force(true);
+            }
+            synchronized (segmentLock) {
+                int index = sealed.indexOf(segment);
+                if (kept.isEmpty()) {
+                    tmp.delete();
+                    segment.delete();
+                    SegmentIndex.fileOf(segment).delete();
+                    sealed.remove(index);
+                } else if (!tmp.renameTo(segment)) {
+                    tmp.delete();
+                    throw new IOException("cannot replace " + segment);
+                }
+            }
+            // readers index a rewritten segment themselves if they get to it first
+            synchronized (indexes) {
+                indexes.remove(segment);
+                if (!kept.isEmpty()) {
+                    keptIndex.write(SegmentIndex.fileOf(segment), keptBytes[0]);
+                }
+            }
+            compactedAway.addAndGet(dropped[0]);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package history;
+
+import java.util.Arrays;
+
+/**
+ * Ids of the records of one conversation or sender, ordered by record time. Appends take
+ * the list's lock; readers take a {@link View} under the lock and then search it freely,
+ * because in-order appends only write past the view's size and anything else copies the
+ * arrays first.
+ */
+class PostingList {
+
+    private long[] ids = new long[8];
+    private long[] times = new long[8];
+    private int start;
+    private int size;
+
+    static class View {
+        final long[] ids;
+        final long[] times;
+        final int from;
+        final int to;
+
+        View(long[] ids, long[] times, int from, int to) {
+            this.ids = ids;
+            this.times = times;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * First position whose time is >= {@code time}.
+         */
+        int lowerBound(long time) {
+            int lo = from;
+            int hi = to;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (times[mid] < time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    synchronized void add(long id, long time) {
+        if (size == ids.length) {
+            grow();
+        }
+        int position = size;
+        if (position > start && times[position - 1] > time) {
+            // out of order (clock step or late replay): copy so published views stay intact
+            ids = Arrays.copyOf(ids, ids.length);
+            times = Arrays.copyOf(times, times.length);
+            while (position > start && times[position - 1] > time) {
+                ids[position] = ids[position - 1];
+                times[position] = times[position - 1];
+                position--;
+            }
+        }
+        ids[position] = id;
+        times[position] = time;
+        size++;
+    }
+
+    /**
+     * Drops leading ids below {@code floor}, once they make up half of the list.
+     */
+    synchronized void trim(long floor) {
+        int live = start;
+        while (live < size && ids[live] < floor) {
+            live++;
+        }
+        if (live - start < (size - start) / 2 || live == start) {
+            return;
+        }
+        int remaining = size - live;
+        int length = Math.max(8, Integer.highestOneBit(Math.max(1, remaining)) << 1);
+        long[] newIds = new long[length];
+        long[] newTimes = new long[length];
+        System.arraycopy(ids, live, newIds, 0, remaining);
+        System.arraycopy(times, live, newTimes, 0, remaining);
+        ids = newIds;
+        times = newTimes;
+        start = 0;
+        size = remaining;
+    }
+
+    synchronized View view() {
+        return new View(ids, times, start, size);
+    }
+
+    synchronized int size() {
+        return size - start;
+    }
+
+    private void grow() {
+        int length = ids.length * 2;
+        ids = Arrays.copyOf(ids, length);
+        times = Arrays.copyOf(times, length);
+    }
+}
@@ -0,0 +1,284 @@
+package history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Where the entries of each conversation sit in one sealed {@link MessageLog} segment, so a
+ * conversation is read without scanning the segment. The index is kept next to the segment
+ * as {@code <segment>.idx}: {@code int magic, int version, long segment length, long first
+ * seq, long last seq, int entries, int conversations}; a table of {@code int hash, int
+ * position} per conversation sorted by hash; at each position {@code byte type, short name
+ * length, name, int count, count int offsets} in log order; and a CRC32 of everything before it.
+ * <p>
+ * Both files are memory mapped and nothing is parsed up front: a conversation is found by a
+ * binary search of the table in the mapping, so opening an index costs the same however many
+ * conversations it covers. An index is only trusted while its segment still has the recorded
+ * length, so a segment rewritten by compaction, or written before segments had indexes, is
+ * indexed again from its entries the first time it is opened.
+ */
+class SegmentIndex {
+
+    static final String SUFFIX = ".idx";
+    private static final int MAGIC = 0x53494458;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 40;
+    private static final int[] NONE = new int[0];
+
+    private final long segmentLength;
+    private final ByteBuffer entries;
+    private final ByteBuffer index;
+    private final int conversations;
+
+    private SegmentIndex(long segmentLength, ByteBuffer entries, ByteBuffer index) {
+        this.segmentLength = segmentLength;
+        this.entries = entries;
+        this.index = index;
+        this.conversations = index.getInt(36);
+    }
+
+    /**
+     * Maps {@code segment} and its index, indexing the segment first if its index is missing,
+     * damaged or older than the segment.
+     */
+    static SegmentIndex open(File segment) throws IOException {
+        long length = segment.length();
+        ByteBuffer entries = map(segment, length);
+        File file = fileOf(segment);
+        ByteBuffer index = file.isFile() ? map(file, file.length()) : null;
+        if (index == null || !valid(index, length)) {
+            Builder builder = new Builder();
+            MessageLog.scan(entries, builder::add);
+            builder.write(file, length);
+            index = map(file, file.length());
+            if (!valid(index, length)) {
+                throw new IOException("cannot index " + segment);
+            }
+        }
+        return new SegmentIndex(length, entries, index);
+    }
+
+    static File fileOf(File segment) {
+        return new File(segment.getPath() + SUFFIX);
+    }
+
+    static ByteBuffer map(File file, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too large to map");
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+    }
+
+    long getSegmentLength() {
+        return segmentLength;
+    }
+
+    /**
+     * The mapped segment; use absolute reads or a duplicate.
+     */
+    ByteBuffer entries() {
+        return entries;
+    }
+
+    /**
+     * Offsets in the segment of the conversation's newest {@code max} entries, oldest first.
+     */
+    int[] newest(ConversationId conversation, int max) {
+        int position = find(conversation);
+        if (position < 0) {
+            return NONE;
+        }
+        int count = index.getInt(position);
+        int[] offsets = new int[Math.min(count, max)];
+        int first = position + 4 + 4 * (count - offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = index.getInt(first + 4 * i);
+        }
+        return offsets;
+    }
+
+    /**
+     * Position of the conversation's count, or -1 if it has no entries in the segment.
+     */
+    private int find(ConversationId conversation) {
+        byte[] name = conversation.getName().getBytes(StandardCharsets.UTF_8);
+        int type = conversation.getType().ordinal();
+        int hash = hash(conversation);
+        int lo = 0;
+        int hi = conversations;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (index.getInt(HEADER_BYTES + 8 * mid) < hash) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < conversations && index.getInt(HEADER_BYTES + 8 * i) == hash; i++) {
+            int position = index.getInt(HEADER_BYTES + 8 * i + 4);
+            if (index.get(position) == type && matches(position + 1, name)) {
+                return position + 3 + name.length;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int position, byte[] name) {
+        if ((index.getShort(position) & 0xffff) != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (index.get(position + 2 + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stable across processes, unlike {@link ConversationId#hashCode}, which hashes the enum.
+     */
+    private static int hash(ConversationId conversation) {
+        return 31 * conversation.getType().ordinal() + conversation.getName().hashCode();
+    }
+
+    /**
+     * Whether the index was written for a segment of {@code segmentLength} bytes and is intact.
+     */
+    private static boolean valid(ByteBuffer index, long segmentLength) {
+        int limit = index.limit();
+        if (limit < HEADER_BYTES + 4 || index.getInt(0) != MAGIC || index.getInt(4) != VERSION
+                || index.getLong(8) != segmentLength || HEADER_BYTES + 8L * index.getInt(36) > limit - 4) {
+            return false;
+        }
+        ByteBuffer covered = index.duplicate();
+        covered.limit(limit - 4);
+        CRC32 crc = new CRC32();
+        crc.update(covered);
+        return (int) crc.getValue() == index.getInt(limit - 4);
+    }
+
+    /**
+     * Collects the offsets of a segment's entries as they are written or scanned. Not thread
+     * safe; the active segment's builder is guarded by the log's segment lock.
+     */
+    static class Builder {
+
+        private final Map<ConversationId, Offsets> conversations = new LinkedHashMap<>();
+        private long firstSeq = -1;
+        private long lastSeq = -1;
+        private int entries;
+
+        void add(ConversationId conversation, long seq, int offset) {
+            Offsets offsets = conversations.get(conversation);
+            if (offsets == null) {
+                offsets = new Offsets();
+                conversations.put(conversation, offsets);
+            }
+            offsets.add(offset);
+            if (firstSeq < 0) {
+                firstSeq = seq;
+            }
+            lastSeq = Math.max(lastSeq, seq);
+            entries++;
+        }
+
+        long getLastSeq() {
+            return lastSeq;
+        }
+
+        /**
+         * Offsets of the conversation's newest {@code max} entries, oldest first.
+         */
+        int[] newest(ConversationId conversation, int max) {
+            Offsets offsets = conversations.get(conversation);
+            if (offsets == null) {
+                return new int[0];
+            }
+            return Arrays.copyOfRange(offsets.values, Math.max(0, offsets.size - max), offsets.size);
+        }
+
+        /**
+         * Writes the index of a segment {@code segmentLength} bytes long to {@code file},
+         * through a temporary file so a crash never leaves half an index behind.
+         */
+        void write(File file, long segmentLength) throws IOException {
+            int count = conversations.size();
+            ConversationId[] ids = conversations.keySet().toArray(new ConversationId[count]);
+            byte[][] names = new byte[count][];
+            long[] table = new long[count];
+            int size = HEADER_BYTES + 8 * count;
+            for (int i = 0; i < count; i++) {
+                names[i] = ids[i].getName().getBytes(StandardCharsets.UTF_8);
+                // hash in the high half sorts the table by hash, the low half finds the conversation
+                table[i] = (long) hash(ids[i]) << 32 | i;
+                size += 3 + names[i].length + 4 + 4 * conversations.get(ids[i]).size;
+            }
+            Arrays.sort(table);
+            size += 4;
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(segmentLength).putLong(firstSeq).putLong(lastSeq)
+                    .putInt(entries).putInt(count);
+            int position = HEADER_BYTES + 8 * count;
+            int[] positions = new int[count];
+            for (int i = 0; i < count; i++) {
+                positions[i] = position;
+                position += 3 + names[i].length + 4 + 4 * conversations.get(ids[i]).size;
+            }
+            for (long row : table) {
+                buffer.putInt((int) (row >> 32)).putInt(positions[(int) row]);
+            }
+            for (int i = 0; i < count; i++) {
+                Offsets offsets = conversations.get(ids[i]);
+                buffer.put((byte) ids[i].getType().ordinal()).putShort((short) names[i].length).put(names[i]);
+                buffer.putInt(offsets.size);
+                for (int j = 0; j < offsets.size; j++) {
+                    buffer.putInt(offsets.values[j]);
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, size - 4);
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+
+            File tmp = new File(file.getPath() + ".tmp");
+            try (FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+                out.truncate(0);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                out.force(true);
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    tmp.delete();
+                    throw new IOException("cannot write " + file);
+                }
+            }
+        }
+    }
+
+    private static class Offsets {
+        int[] values = new int[4];
+        int size;
+
+        void add(int offset) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = offset;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package history;
+
+import model.DialogueRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index over message text, fed as a {@link HistorySink} so records are searchable as
+ * soon as they are appended. Text is split into lower case words of letters and digits, with
+ * every CJK ideograph a word of its own. Each word has a {@link PostingList} of the ids of the
+ * records containing it, sorted by time; like {@link HistoryIndex}, records live in an
+ * {@link EntryRing} and the oldest expire once it is full.
+ * <p>
+ * A query walks the posting list of its rarest word within the time range and checks each
+ * candidate's own text for the other words, or for the phrase, and against the conversation
+ * and sender filters. Messages are short, so checking the text costs less than keeping word
+ * positions for every posting. Appends are serialized on the index; queries only lock a
+ * posting list long enough to take its view, so they run alongside ingestion.
+ * <p>
+ * Nothing is written to disk: the index is rebuilt from the newest entries of the
+ * {@link MessageLog} after login, so it always matches the log after compaction or a crash.
+ */
+public class TextIndex implements HistorySink {
+
+    private final int capacity;
+    private final EntryRing ring;
+    private final Map<String, PostingList> words = new ConcurrentHashMap<>();
+    private long nextId;
+    private long nextSweep;
+
+    /**
+     * @param capacity records kept in the index, rounded up to a power of two; memory for them
+     *                 is allocated as they arrive
+     */
+    public TextIndex(int capacity) {
+        this.ring = new EntryRing(capacity);
+        this.capacity = ring.capacity();
+        this.nextSweep = this.capacity;
+    }
+
+    public void appended(ConversationId id, DialogueRecord record) {
+        add(id, record);
+    }
+
+    /**
+     * Indexes a record and returns its index id.
+     */
+    public long add(ConversationId conversation, DialogueRecord record) {
+        Set<String> distinct = new HashSet<>(tokenize(record.getDialogue()));
+        long time = record.getTimeMillis();
+        synchronized (this) {
+            long id = nextId++;
+            ring.put(id, new LogEntry(id, conversation, record));
+            for (String word : distinct) {
+                PostingList list = words.get(word);
+                if (list == null) {
+                    list = new PostingList();
+                    words.put(word, list);
+                }
+                list.add(id, time);
+            }
+            if (id >= nextSweep) {
+                sweep(id - capacity + 1);
+                nextSweep = id + capacity / 2;
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Forgets the conversation's records along with the conversation, so the index holds no
+     * more of history than the store does. Their ids stay in the posting lists, matching
+     * nothing, until they expire.
+     */
+    public synchronized void evicted(ConversationId conversation) {
+        ring.removeConversation(conversation);
+    }
+
+    /**
+     * Forgets everything. Ids keep increasing so no stale entry can match a later query.
+     */
+    public synchronized void clear() {
+        words.clear();
+        ring.clear();
+        nextId += capacity;
+        nextSweep = nextId + capacity;
+    }
+
+    public synchronized long size() {
+        return Math.min(nextId, capacity);
+    }
+
+    /**
+     * Most records kept.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Distinct words indexed, including words whose records expired since the last sweep.
+     */
+    public int getWordCount() {
+        return words.size();
+    }
+
+    /**
+     * Records matching the text of {@code query}, oldest first unless
+     * {@link HistoryQuery#newestFirst}. A query without words matches nothing.
+     */
+    public Iterator<LogEntry> query(HistoryQuery query) {
+        List<String> wanted = tokenize(query.getText());
+        PostingList rarest = null;
+        for (String word : wanted) {
+            PostingList list = words.get(word);
+            if (list == null) {
+                rarest = null;
+                break;
+            }
+            if (rarest == null || list.size() < rarest.size()) {
+                rarest = list;
+            }
+        }
+        return new MatchCursor(rarest == null ? null : rarest.view(), query, wanted);
+    }
+
+    /**
+     * Lower case words of {@code text} in order: runs of letters and digits, and single CJK
+     * ideographs, so that a phrase query also works for text written without spaces.
+     */
+    static List<String> tokenize(String text) {
+        if (text == null) {
+            return Collections.emptyList();
+        }
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        int i = 0;
+        while (i < text.length()) {
+            int c = text.codePointAt(i);
+            int next = i + Character.charCount(c);
+            boolean ideograph = Character.isIdeographic(c);
+            if (start >= 0 && (ideograph || !Character.isLetterOrDigit(c))) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+            if (ideograph) {
+                tokens.add(text.substring(i, next));
+            } else if (start < 0 && Character.isLetterOrDigit(c)) {
+                start = i;
+            }
+            i = next;
+        }
+        if (start >= 0) {
+            tokens.add(text.substring(start).toLowerCase(Locale.ROOT));
+        }
+        return tokens;
+    }
+
+    /**
+     * Trims expired ids off every posting list and drops the lists left empty, so words that
+     * stop being used do not pile up. Runs once per half ring of appends, under the index lock.
+     */
+    private void sweep(long floor) {
+        for (Iterator<PostingList> it = words.values().iterator(); it.hasNext(); ) {
+            PostingList list = it.next();
+            list.trim(floor);
+            if (list.size() == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    private LogEntry entry(long id) {
+        return ring.get(id);
+    }
+
+    private class MatchCursor extends EntryCursor {
+
+        private final PostingList.View view;
+        private final HistoryQuery query;
+        private final List<String> wanted;
+        private final boolean backwards;
+        private final int lo;
+        private final int hi;
+        private int position;
+
+        MatchCursor(PostingList.View view, HistoryQuery query, List<String> wanted) {
+            super(query.getLimit());
+            this.view = view;
+            this.query = query;
+            this.wanted = wanted;
+            this.backwards = query.isNewestFirst();
+            if (view == null) {
+                lo = hi = 0;
+            } else {
+                lo = view.lowerBound(query.getSince());
+                hi = query.getUntil() == Long.MAX_VALUE ? view.to : view.lowerBound(query.getUntil());
+            }
+            position = backwards ? hi - 1 : lo;
+        }
+
+        LogEntry advance() {
+            while (position >= lo && position < hi) {
+                long id = view.ids[position];
+                position += backwards ? -1 : 1;
+                LogEntry entry = entry(id);
+                if (entry != null && matches(entry)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        private boolean matches(LogEntry entry) {
+            if (query.getConversation() != null && !query.getConversation().equals(entry.getConversation())) {
+                return false;
+            }
+            DialogueRecord record = entry.getRecord();
+            if (query.getSender() != null && !query.getSender().equals(record.getAccount())) {
+                return false;
+            }
+            if (wanted.size() == 1) {
+                // the posting list is the word's own
+                return true;
+            }
+            List<String> tokens = tokenize(record.getDialogue());
+            return query.isPhrase() ? Collections.indexOfSubList(tokens, wanted) >= 0 : tokens.containsAll(wanted);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package mainclass;
+
+import gateway.SignalGateway;
+import tool.Constant;
+import tool.PrintToScreen;
+import transport.TransportFactory;
+import transport.TransportPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * Serves the {@link SignalGateway} line protocol on a local port until a line is entered or
+ * input ends, with accounts placed on the Signal objects of every {@link Constant#app_ids}
+ * entry. Try it with {@code nc 127.0.0.1 7070} and {@code LOGIN alice}.
+ * <p>
+ * Arguments are {@code key=value} and override the configuration: host, port, appIds (comma
+ * separated), maxLine (bytes), maxOutbox (bytes), idleLogout (ms), recordLog (true to keep
+ * each account's history on disk) and indexCapacity, which sizes each account's history
+ * indexes.
+ */
+public class GatewayMain {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        List<String> appIds = options.containsKey("appIds") ? Arrays.asList(options.get("appIds").split(","))
+                : new ArrayList<String>(Constant.app_ids);
+        TransportPool transports = new TransportPool(Constant.POOL_VIRTUAL_NODES, Constant.POOL_LOAD_FACTOR,
+                Constant.POOL_MESSAGES_PER_SESSION);
+        for (String appId : appIds) {
+            transports.add(appId, TransportFactory.create(appId));
+        }
+        SessionManager sessions = new SessionManager();
+        sessions.setRecordLogEnabled(Boolean.parseBoolean(option(options, "recordLog", "false")));
+        // every account has its own history indexes
+        sessions.setIndexCapacity(intOption(options, "indexCapacity", 4096));
+
+        SignalGateway gateway = new SignalGateway(sessions, transports,
+                intOption(options, "maxLine", Constant.GATEWAY_MAX_LINE),
+                Long.parseLong(option(options, "maxOutbox", String.valueOf(Constant.GATEWAY_MAX_OUTBOX_BYTES))),
+                Long.parseLong(option(options, "idleLogout", String.valueOf(Constant.GATEWAY_IDLE_LOGOUT))));
+        gateway.start(new InetSocketAddress(option(options, "host", Constant.GATEWAY_HOST),
+                intOption(options, "port", Constant.GATEWAY_PORT)));
+        PrintToScreen.printToScreenLine("gateway listening on " + gateway.getAddress() + " with "
+                + transports.size() + " Signal Objects, press enter to stop");
+
+        Scanner in = new Scanner(System.in);
+        if (in.hasNextLine()) {
+            in.nextLine();
+        }
+        PrintToScreen.printToScreenLine("stopping, " + gateway.getClientCount() + " clients and "
+                + gateway.getAccountCount() + " accounts");
+        gateway.close();
+        System.exit(0);
+    }
+
+    private static String option(Map<String, String> options, String key, String defaultValue) {
+        return options.containsKey(key) ? options.get(key) : defaultValue;
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+}
@@ -0,0 +1,269 @@
+package mainclass;
+
+import capture.TrafficRecorder;
+import metrics.SignalMetrics;
+import model.DialogueStatus;
+import tool.Constant;
+import tool.LatencySamples;
+import transport.LinkProfile;
+import transport.LoopbackBroker;
+import transport.LoopbackTransport;
+import transport.OutboundQueue;
+import transport.SignalTransport;
+import transport.TransportPool;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator. Simulated accounts log in, open a P2P conversation with the next
+ * account and join a channel through the same {@link WorkerThread} login, joinChannel,
+ * sendMsg and channelDeal code the console uses, against an in-process {@link LoopbackBroker}.
+ * <p>
+ * Arguments are {@code key=value}: accounts, channels, rate (msgs/s, 0 for unthrottled),
+ * duration (s), senders, loginConcurrency, latency, jitter (ms), loss (0..1),
+ * bandwidth (bytes/s), deliveryThreads, verbose, and the per session send queue settings
+ * window, sendRate (msgs/s, 0 for unthrottled) and queueCapacity.
+ * indexCapacity sizes each account's history indexes. All accounts share one
+ * {@link SessionManager}; hedge is how often a login or join may be sent, 1 for never. With
+ * appIds greater than one, accounts are spread over that many transports by a {@link TransportPool}. capture names a file to record
+ * every session event to, for {@link TrafficReplayMain}.
+ */
+public class LoadGeneratorMain {
+
+    private final int accounts;
+    private final int channels;
+    private final int rate;
+    private final int durationSeconds;
+    private final int senders;
+    private final int loginConcurrency;
+    private final LoopbackBroker broker;
+    private final TransportPool transports;
+    private final SessionManager sessions;
+
+    private final List<SimulatedAccount> workers = new ArrayList<SimulatedAccount>();
+    private final LatencySamples loginLatency = new LatencySamples();
+    private final LatencySamples joinLatency = new LatencySamples();
+    private final AtomicLong loginErrors = new AtomicLong();
+    private final AtomicLong joinErrors = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public LoadGeneratorMain(Map<String, String> options) {
+        accounts = intOption(options, "accounts", 1000);
+        channels = Math.max(1, intOption(options, "channels", 10));
+        rate = intOption(options, "rate", 5000);
+        durationSeconds = intOption(options, "duration", 30);
+        senders = Math.max(1, intOption(options, "senders", 4));
+        loginConcurrency = Math.max(1, intOption(options, "loginConcurrency", 64));
+        LinkProfile profile = new LinkProfile(intOption(options, "latency", 0), intOption(options, "jitter", 0),
+                Double.parseDouble(option(options, "loss", "0")), intOption(options, "bandwidth", 0));
+        broker = new LoopbackBroker(profile, intOption(options, "deliveryThreads", 1));
+        Constant.CAPTURE_FILE = option(options, "capture", null);
+        Constant.OUTBOUND_WINDOW = intOption(options, "window", Constant.OUTBOUND_WINDOW);
+        Constant.OUTBOUND_RATE_PER_SECOND = intOption(options, "sendRate", 0);
+        Constant.OUTBOUND_QUEUE_CAPACITY = intOption(options, "queueCapacity", Constant.OUTBOUND_QUEUE_CAPACITY);
+        transports = new TransportPool(Constant.POOL_VIRTUAL_NODES, Constant.POOL_LOAD_FACTOR, Constant.POOL_MESSAGES_PER_SESSION);
+        Constant.HEDGE_MAX_ATTEMPTS = intOption(options, "hedge", Constant.HEDGE_MAX_ATTEMPTS);
+        sessions = new SessionManager();
+        sessions.setRecordLogEnabled(false);
+        // every simulated account has its own history indexes
+        sessions.setIndexCapacity(intOption(options, "indexCapacity", 4096));
+        int appIds = Math.max(1, intOption(options, "appIds", 1));
+        for (int i = 0; i < appIds; i++) {
+            transports.add("app" + i, new LoopbackTransport("app" + i, broker));
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        PrintStream report = System.out;
+        if (!Boolean.parseBoolean(option(options, "verbose", "false"))) {
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            }));
+        }
+        LoadGeneratorMain generator = new LoadGeneratorMain(options);
+        generator.run(report);
+        System.exit(0);
+    }
+
+    public void run(PrintStream report) throws InterruptedException {
+        report.println("load: accounts=" + accounts + " channels=" + channels + " rate=" + rate
+                + "/s duration=" + durationSeconds + "s link=" + broker.getProfile());
+
+        long start = System.nanoTime();
+        setUpSessions();
+        report.printf("setup: %d sessions in %.1fs, login errors=%d, join errors=%d%n", workers.size(),
+                (System.nanoTime() - start) / 1e9, loginErrors.get(), joinErrors.get());
+        report.println("login latency: " + loginLatency.summary());
+        report.println("join latency:  " + joinLatency.summary());
+        if (sessions.getClient().getRtt() != null) {
+            report.println(sessions.getClient().getRtt().describe());
+        }
+        if (transports.size() > 1) {
+            report.println(transports.describe());
+        }
+        if (workers.size() < 2) {
+            report.println("not enough sessions to send messages");
+            return;
+        }
+
+        long sentBefore = broker.getSentCount();
+        long deliveredBefore = broker.getDeliveredCount();
+        long droppedBefore = broker.getDroppedCount();
+        start = System.nanoTime();
+        drive();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // give in-flight deliveries a moment before reading the counters
+        Thread.sleep(Math.min(2000, broker.getProfile().getLatencyMs() + broker.getProfile().getJitterMs() + 200));
+        long deliveredAfter = broker.getDeliveredCount();
+        report.printf("send: %d msgs in %.1fs = %.0f msgs/s (broker saw %d, queue full %d)%n", sent.get(), seconds,
+                sent.get() / seconds, broker.getSentCount() - sentBefore, rejected.get());
+        report.printf("deliver: %d deliveries = %.0f deliveries/s, dropped=%d%n", deliveredAfter - deliveredBefore,
+                (deliveredAfter - deliveredBefore) / seconds, broker.getDroppedCount() - droppedBefore);
+        report.println(SignalMetrics.get().getSnapshotText());
+        if (transports.size() > 1) {
+            report.println(transports.describe());
+            report.println("rebalance would move " + transports.rebalance().size() + " sessions");
+        }
+        if (TrafficRecorder.get().isEnabled()) {
+            TrafficRecorder.get().close();
+            report.println("captured " + TrafficRecorder.get().getRecordedCount() + " events to " + Constant.CAPTURE_FILE);
+        }
+        broker.shutdown();
+    }
+
+    private void setUpSessions() throws InterruptedException {
+        final List<SimulatedAccount> ready = new ArrayList<SimulatedAccount>();
+        ExecutorService pool = Executors.newFixedThreadPool(loginConcurrency);
+        for (int i = 0; i < accounts; i++) {
+            final String account = "load" + i;
+            final String peer = "load" + ((i + 1) % accounts);
+            final String channel = "channel" + (i % channels);
+            pool.execute(new Runnable() {
+                public void run() {
+                    SignalTransport transport = transports.assign(account);
+                    WorkerThread worker = new WorkerThread(sessions, transport);
+                    long t0 = System.nanoTime();
+                    worker.login(account, transport);
+                    if (worker.isTimeOut() || worker.getCurrentUser() == null) {
+                        transports.release(account);
+                        loginErrors.incrementAndGet();
+                        return;
+                    }
+                    loginLatency.add(System.nanoTime() - t0);
+
+                    worker.setCurrentStatus(DialogueStatus.CHANNEL);
+                    t0 = System.nanoTime();
+                    worker.joinChannel(channel);
+                    if (worker.isTimeOut()) {
+                        joinErrors.incrementAndGet();
+                        return;
+                    }
+                    joinLatency.add(System.nanoTime() - t0);
+                    synchronized (ready) {
+                        ready.add(new SimulatedAccount(worker, peer, channel));
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        workers.addAll(ready);
+    }
+
+    /**
+     * Each sender thread owns a disjoint slice of the workers, since a WorkerThread is not
+     * safe to drive from several threads, and paces itself to its share of the target rate.
+     */
+    private void drive() throws InterruptedException {
+        final long endAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        final int threads = Math.min(senders, workers.size());
+        Thread[] running = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int slice = t;
+            running[t] = new Thread(new Runnable() {
+                public void run() {
+                    long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) * threads / rate : 0;
+                    long next = System.nanoTime();
+                    int index = slice;
+                    long n = 0;
+                    while (System.nanoTime() < endAt) {
+                        SimulatedAccount account = workers.get(index);
+                        OutboundQueue.Admission admission;
+                        if ((n++ & 1) == 0) {
+                            admission = account.worker.sendMsg("load message " + n, account.peer);
+                        } else {
+                            admission = account.worker.channelDeal("load message " + n, account.channel);
+                        }
+                        if (admission == OutboundQueue.Admission.ACCEPTED) {
+                            sent.incrementAndGet();
+                        } else {
+                            rejected.incrementAndGet();
+                        }
+                        index += threads;
+                        if (index >= workers.size()) {
+                            index = slice;
+                        }
+                        if (intervalNanos > 0) {
+                            next += intervalNanos;
+                            long wait = next - System.nanoTime();
+                            if (wait > 0) {
+                                LockSupport.parkNanos(wait);
+                            }
+                        }
+                    }
+                }
+            }, "load-sender-" + t);
+            running[t].start();
+        }
+        for (Thread thread : running) {
+            thread.join();
+        }
+    }
+
+    private static class SimulatedAccount {
+
+        final WorkerThread worker;
+        final String peer;
+        final String channel;
+
+        SimulatedAccount(WorkerThread worker, String peer, String channel) {
+            this.worker = worker;
+            this.peer = peer;
+            this.channel = channel;
+        }
+    }
+
+    private static String option(Map<String, String> options, String key, String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return Integer.parseInt(option(options, key, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,135 @@
+package mainclass;
+
+import tool.CommandQueue;
+import tool.PrintToScreen;
+import tool.SessionThreads;
+import transport.TransportPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many sessions in one process. Each session is a headless {@link WorkerThread} with
+ * its own state machine and its own thread from {@link SessionThreads}, virtual where the
+ * JDK supports it, so the blocking waits in login, join and the console prompts park the
+ * session instead of holding a platform thread. Commands are fed through a
+ * {@link CommandQueue} exactly as they would be typed, starting with the account name. The
+ * accounts of all sessions are kept by one {@link SessionManager}.
+ */
+public class SessionHost {
+
+    private final TransportPool transports;
+    private final SessionManager accounts = new SessionManager();
+    private final boolean quiet;
+    private final ConcurrentHashMap<String, HostedSession> sessions = new ConcurrentHashMap<String, HostedSession>();
+
+    /**
+     * @param quiet         drop the prompts the sessions print; callback output stays rate limited
+     * @param indexCapacity most records each history index of a session's account keeps
+     */
+    public SessionHost(TransportPool transports, boolean quiet, int indexCapacity) {
+        this.transports = transports;
+        this.quiet = quiet;
+        accounts.setRecordLogEnabled(false);
+        accounts.setIndexCapacity(indexCapacity);
+    }
+
+    /**
+     * Starts a session for {@code account}; it logs in as soon as its thread runs.
+     */
+    public HostedSession open(final String account) {
+        final CommandQueue commands = new CommandQueue();
+        final WorkerThread worker = new WorkerThread(accounts, transports.assign(account), commands);
+        final HostedSession session = new HostedSession(account, commands, worker);
+        if (sessions.putIfAbsent(account, session) != null) {
+            throw new IllegalStateException(account + " already has a session");
+        }
+        commands.offer(account);
+        session.thread = SessionThreads.start("session-" + account, new Runnable() {
+            public void run() {
+                PrintToScreen.setQuiet(quiet);
+                try {
+                    worker.run();
+                } finally {
+                    sessions.remove(account, session);
+                    if (worker.getCurrentUser() == null) {
+                        transports.release(account);
+                    }
+                }
+            }
+        });
+        return session;
+    }
+
+    public HostedSession get(String account) {
+        return sessions.get(account);
+    }
+
+    public SessionManager getAccounts() {
+        return accounts;
+    }
+
+    public int getOpenCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Ends the input of every session, which logs them out.
+     */
+    public void closeAll() {
+        for (HostedSession session : sessions.values()) {
+            session.close();
+        }
+    }
+
+    /**
+     * Waits until every session has finished or {@code timeoutMs} passed; returns how many
+     * are still running.
+     */
+    public int awaitAll(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        List<HostedSession> running = new ArrayList<HostedSession>(sessions.values());
+        for (HostedSession session : running) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                break;
+            }
+            session.thread.join(left);
+        }
+        return sessions.size();
+    }
+
+    public static class HostedSession {
+        private final String account;
+        private final CommandQueue commands;
+        private final WorkerThread worker;
+        private volatile Thread thread;
+
+        HostedSession(String account, CommandQueue commands, WorkerThread worker) {
+            this.account = account;
+            this.commands = commands;
+            this.worker = worker;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        public WorkerThread getWorker() {
+            return worker;
+        }
+
+        /**
+         * Queues a line of input, e.g. "3", a channel name or a message.
+         */
+        public void send(String line) {
+            commands.offer(line);
+        }
+
+        public void close() {
+            commands.close();
+        }
+    }
+}
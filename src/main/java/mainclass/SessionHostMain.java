@@ -0,0 +1,106 @@
+package mainclass;
+
+import mainclass.SessionHost.HostedSession;
+import tool.Constant;
+import tool.SessionThreads;
+import transport.LinkProfile;
+import transport.LoopbackBroker;
+import transport.LoopbackTransport;
+import transport.TransportPool;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hosts many scripted sessions in one JVM against an in-process {@link LoopbackBroker}. Every
+ * session logs in, joins a channel and sends its messages through the same console state
+ * machine a user drives; once all of them are online at the same time they leave and log out.
+ * <p>
+ * Arguments are {@code key=value}: sessions, channels, messages (per session), appIds,
+ * latency, jitter (ms), deliveryThreads, indexCapacity and quiet.
+ */
+public class SessionHostMain {
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int sessions = intOption(options, "sessions", 10000);
+        int channels = Math.max(1, intOption(options, "channels", 100));
+        int messages = intOption(options, "messages", 5);
+        int appIds = Math.max(1, intOption(options, "appIds", 1));
+        int indexCapacity = intOption(options, "indexCapacity", 1024);
+        boolean quiet = Boolean.parseBoolean(options.containsKey("quiet") ? options.get("quiet") : "true");
+        PrintStream report = System.out;
+        if (quiet) {
+            // callback output (messages, joins) comes from delivery threads, not the sessions
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            }));
+        }
+
+        LoopbackBroker broker = new LoopbackBroker(new LinkProfile(intOption(options, "latency", 0),
+                intOption(options, "jitter", 0), 0, 0), intOption(options, "deliveryThreads", 2));
+        TransportPool transports = new TransportPool(Constant.POOL_VIRTUAL_NODES, Constant.POOL_LOAD_FACTOR,
+                Constant.POOL_MESSAGES_PER_SESSION);
+        for (int i = 0; i < appIds; i++) {
+            transports.add("app" + i, new LoopbackTransport("app" + i, broker));
+        }
+        SessionHost host = new SessionHost(transports, quiet, indexCapacity);
+
+        report.println("hosting " + sessions + " sessions on "
+                + (SessionThreads.isVirtualAvailable() ? "virtual" : "platform") + " threads");
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            HostedSession session = host.open("host" + i);
+            session.send(Constant.COMMAND_TYPE_CHANNEL);
+            session.send("channel" + (i % channels));
+            for (int m = 0; m < messages; m++) {
+                session.send("message " + m + " from host" + i);
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+        while (broker.getOnlineCount() < sessions && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        long online = System.nanoTime();
+        Runtime runtime = Runtime.getRuntime();
+        report.printf("%d sessions online after %.1fs, live threads=%d, heap used=%dMB%n", broker.getOnlineCount(),
+                (online - start) / 1e9, ManagementFactory.getThreadMXBean().getThreadCount(),
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+        report.println(transports.describe());
+
+        for (int i = 0; i < sessions; i++) {
+            HostedSession session = host.get("host" + i);
+            if (session != null) {
+                session.send(Constant.COMMAND_LEAVE_CHART);
+                session.send(Constant.COMMAND_LOGOUT);
+                session.close();
+            }
+        }
+        int running = host.awaitAll(TimeUnit.MINUTES.toMillis(5));
+        report.printf("all sessions closed after %.1fs, still running=%d, broker sent=%d delivered=%d%n",
+                (System.nanoTime() - start) / 1e9, running, broker.getSentCount(), broker.getDeliveredCount());
+        broker.shutdown();
+        System.exit(0);
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+}
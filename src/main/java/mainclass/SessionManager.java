@@ -0,0 +1,490 @@
+package mainclass;
+
+import capture.TrafficEvent;
+import capture.TrafficRecorder;
+import history.ConversationId;
+import history.DeferredSink;
+import history.HistoryBudget;
+import history.HistorySource;
+import history.MessageLog;
+import metrics.MetricScope;
+import metrics.SignalMetrics;
+import model.DialogueRecord;
+import model.SessionListener;
+import model.User;
+import presence.PresenceCache;
+import tool.Constant;
+import tool.PrintToScreen;
+import transport.AsyncSignalClient;
+import transport.ChannelListener;
+import transport.LoginListener;
+import transport.MessageListener;
+import transport.OutboundQueue;
+import transport.ReconnectManager;
+import transport.RttEstimator;
+import transport.SignalTransport;
+import transport.TransportChannel;
+import transport.TransportSession;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Every account logged in through this process. Each {@link User} owns its session, channels
+ * and history, and the callbacks of a session only touch their own User, so any number of
+ * accounts are active at once. Every message an account receives or sends is recorded in its
+ * history whether or not anybody is looking at the conversation; a {@link SessionListener}
+ * per account is told afterwards, for display.
+ * <p>
+ * Lost sessions are replaced through a {@link ReconnectManager} with all of the account's
+ * channels rejoined. Presence is shared by all accounts, since whether a peer is online does
+ * not depend on who asks. So is the memory budget of history: the conversations of all accounts
+ * in the process, of every SessionManager, are evicted least recently used first from one
+ * {@link HistoryBudget}.
+ */
+public class SessionManager {
+
+    private static final SessionListener SILENT = new SessionListener() {
+    };
+    private static final ExecutorService INDEXER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "history-indexer");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final HistoryBudget HISTORY_BUDGET = new HistoryBudget(Constant.HISTORY_MEMORY_BUDGET);
+
+    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+    private final AsyncSignalClient client;
+    private final ReconnectManager reconnects;
+    private final PresenceCache presence;
+    private final TrafficRecorder capture;
+    private final String token;
+    private volatile boolean recordLogEnabled = true;
+    private volatile int indexCapacity = Constant.HISTORY_INDEX_CAPACITY;
+
+    public SessionManager() {
+        this(newClient(Constant.TIMEOUT), TrafficRecorder.get());
+    }
+
+    public SessionManager(AsyncSignalClient client, TrafficRecorder capture) {
+        this.client = client;
+        this.capture = capture;
+        this.token = "_no_need_token";
+        this.reconnects = new ReconnectManager(client, Constant.RECONNECT_INITIAL_DELAY, Constant.RECONNECT_MAX_DELAY,
+                Constant.RECONNECT_MAX_ATTEMPTS, Constant.RECONNECT_REJOIN_CONCURRENCY);
+        this.presence = new PresenceCache(Constant.PRESENCE_TTL, Constant.PRESENCE_BATCH_DELAY, Constant.PRESENCE_MAX_BATCH,
+                client.getTimeoutMs(), Constant.PRESENCE_MAX_ENTRIES);
+    }
+
+    /**
+     * Whether accounts logged in from now on load and append their history to a
+     * {@link MessageLog} under {@link Constant#RECORD_LOG_DIRECTORY}.
+     */
+    public void setRecordLogEnabled(boolean enabled) {
+        recordLogEnabled = enabled;
+    }
+
+    /**
+     * Most records each history index of an account logged in from now on keeps.
+     */
+    public void setIndexCapacity(int records) {
+        indexCapacity = records;
+    }
+
+    /**
+     * The account's User, also while it is still logging in; null if it is not logged in.
+     */
+    public User get(String account) {
+        return users.get(account);
+    }
+
+    public Collection<User> getUsers() {
+        return users.values();
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    public AsyncSignalClient getClient() {
+        return client;
+    }
+
+    public PresenceCache getPresence() {
+        return presence;
+    }
+
+    /**
+     * Logs in {@code account} on {@code transport}. The account's record log is opened on the
+     * calling thread first, so nothing received after the login is missed; conversations are
+     * read from it as they are first used. Fails with an
+     * {@link IllegalStateException} if the account is already logged in here.
+     */
+    public CompletableFuture<User> login(SignalTransport transport, final String account, SessionListener listener) {
+        final User user = new User(account, transport, HISTORY_BUDGET, indexCapacity);
+        user.setListener(listener == null ? SILENT : listener);
+        final MetricScope metrics = SignalMetrics.get().scope(transport.getName(), account);
+        user.setMetrics(metrics);
+        if (users.putIfAbsent(account, user) != null) {
+            CompletableFuture<User> refused = new CompletableFuture<>();
+            refused.completeExceptionally(new IllegalStateException(account + " is already logged in"));
+            return refused;
+        }
+        openRecordLog(user);
+        final long started = System.nanoTime();
+        CompletableFuture<TransportSession> login;
+        try {
+            login = client.login(transport, account, token, sessionEvents(user));
+        } catch (RuntimeException e) {
+            login = new CompletableFuture<>();
+            login.completeExceptionally(e);
+        }
+        return login.handle((session, error) -> {
+            if (error != null) {
+                if (isTimeout(error)) {
+                    metrics.timedOut();
+                } else {
+                    metrics.loginFailed();
+                }
+                capture.record(TrafficEvent.Type.LOGIN_FAILED, account, null, null, null, 0);
+                users.remove(account, user);
+                closeRecordLog(user);
+                user.getHistory().clear();
+                throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+            }
+            metrics.recordLogin(System.nanoTime() - started);
+            capture.record(TrafficEvent.Type.LOGIN, account, null, null, null, session.getUid());
+            user.setSession(session);
+            user.setUid(session.getUid());
+            OutboundQueue outbound = new OutboundQueue(session, Constant.OUTBOUND_QUEUE_CAPACITY, Constant.OUTBOUND_WINDOW,
+                    Constant.OUTBOUND_RATE_PER_SECOND, Constant.OUTBOUND_MAX_RETRIES, Constant.OUTBOUND_RETRY_DELAY,
+                    Constant.OUTBOUND_ACK_TIMEOUT);
+            outbound.setMetrics(metrics);
+            user.setOutbound(outbound);
+            return user;
+        });
+    }
+
+    public CompletableFuture<TransportChannel> join(final User user, final String channelName) {
+        final long started = System.nanoTime();
+        return client.join(user.getSession(), channelName, channelEvents(user)).whenComplete((channel, error) -> {
+            if (error == null) {
+                user.getMetrics().recordJoin(channelName, System.nanoTime() - started);
+                capture.record(TrafficEvent.Type.JOIN, user.getAccount(), null, channelName, null, 0);
+                user.addChannel(channel);
+            } else {
+                if (isTimeout(error)) {
+                    user.getMetrics().timedOut();
+                } else {
+                    user.getMetrics().joinFailed(channelName);
+                }
+                capture.record(TrafficEvent.Type.JOIN_FAILED, user.getAccount(), null, channelName, null, 0);
+            }
+        });
+    }
+
+    /**
+     * Leaves {@code channelName}; its history stays.
+     */
+    public void leave(User user, String channelName) {
+        TransportChannel channel = user.removeChannel(channelName);
+        if (channel != null) {
+            channel.channelLeave();
+        }
+    }
+
+    public OutboundQueue.Admission sendInstant(final User user, final String peer, final String msg) {
+        OutboundQueue.Admission admission = user.getOutbound().sendInstant(peer, msg, new MessageListener() {
+            @Override
+            public void onMessageSendSuccess(TransportSession session) {
+                instantMessageSent(user, peer, msg);
+            }
+
+            @Override
+            public void onMessageSendError(TransportSession session, int ecode) {
+                user.getListener().onSendError(user, peer, ecode);
+            }
+        });
+        if (admission == OutboundQueue.Admission.ACCEPTED) {
+            user.getMetrics().sent();
+            capture.record(TrafficEvent.Type.SEND_INSTANT, user.getAccount(), peer, null, msg, 0);
+        }
+        return admission;
+    }
+
+    /**
+     * Sends to a joined channel. The account's own message is recorded when the channel
+     * echoes it back, like everybody else's.
+     */
+    public OutboundQueue.Admission sendChannel(User user, String channelName, String msg) {
+        TransportChannel channel = user.getChannel(channelName);
+        if (channel == null) {
+            return OutboundQueue.Admission.CLOSED;
+        }
+        OutboundQueue.Admission admission = user.getOutbound().sendChannel(channel, msg);
+        if (admission == OutboundQueue.Admission.ACCEPTED) {
+            user.getMetrics().sentToChannel(channelName);
+            capture.record(TrafficEvent.Type.SEND_CHANNEL, user.getAccount(), null, channelName, msg, 0);
+        }
+        return admission;
+    }
+
+    /**
+     * Logs out on purpose; the account is removed once the service confirms.
+     */
+    public CompletableFuture<Integer> logout(User user) {
+        user.setLogoutRequested(true);
+        return client.logout(user.getSession());
+    }
+
+    /**
+     * Replaces the lost session of {@code user} in the background. All its channels are
+     * rejoined and messages sent meanwhile wait in its outbound queue; the account is only
+     * logged out if every attempt fails.
+     */
+    public void recover(final User user, String reason) {
+        if (users.get(user.getAccount()) != user || !user.getReconnecting().compareAndSet(false, true)) {
+            return;
+        }
+        user.getListener().onReconnecting(user, reason);
+        try {
+            user.getSession().logout();
+        } catch (RuntimeException e) {
+            // already gone
+        }
+        List<String> channels = new ArrayList<String>(user.getChannels().keySet());
+        reconnects.recover(user.getTransport(), user.getAccount(), token, sessionEvents(user), channels,
+                name -> channelEvents(user), user.getOutbound(), user.getMetrics()).whenComplete((recovery, error) -> {
+            if (error == null) {
+                user.setSession(recovery.getSession());
+                for (Map.Entry<String, TransportChannel> channel : recovery.getChannels().entrySet()) {
+                    user.addChannel(channel.getValue());
+                }
+                for (String lost : recovery.getLostChannels().keySet()) {
+                    user.removeChannel(lost);
+                    user.getMembership().clear(lost);
+                }
+                user.getReconnecting().set(false);
+                user.getListener().onReconnected(user, recovery.getNanos(), recovery.getLostChannels().keySet());
+            } else {
+                user.getReconnecting().set(false);
+                loggedOut(user, "reconnect failed: " + error.getMessage());
+            }
+        });
+    }
+
+    void instantMessageReceived(User user, String peer, String msg) {
+        user.getMetrics().received(peer);
+        user.getHistory().append(ConversationId.p2p(peer), new DialogueRecord(peer, msg, System.currentTimeMillis()));
+        user.getListener().onInstantMessage(user, peer, msg);
+    }
+
+    void channelMessageReceived(User user, String channelName, String peer, String msg) {
+        user.getMetrics().receivedFromChannel(channelName, peer);
+        user.getHistory().append(ConversationId.channel(channelName), new DialogueRecord(peer, msg, System.currentTimeMillis()));
+        user.getListener().onChannelMessage(user, channelName, peer, msg);
+    }
+
+    void instantMessageSent(User user, String peer, String msg) {
+        user.getHistory().append(ConversationId.p2p(peer), new DialogueRecord(user.getAccount(), msg, System.currentTimeMillis()));
+        user.getListener().onInstantMessageSent(user, peer, msg);
+    }
+
+    private LoginListener sessionEvents(final User user) {
+        final String accountName = user.getAccount();
+        return new LoginListener() {
+            @Override
+            public void onLogout(TransportSession session, int ecode) {
+                capture.record(TrafficEvent.Type.LOGOUT, accountName, null, null, null, ecode);
+                if (users.get(accountName) != user || user.getSession() != session || user.getReconnecting().get()) {
+                    // a session already replaced
+                    return;
+                }
+                if (!user.isLogoutRequested() && !isFatalLogout(ecode)) {
+                    recover(user, "logout ecode " + ecode);
+                    return;
+                }
+                loggedOut(user, user.isLogoutRequested() ? null : "logout ecode " + ecode);
+            }
+
+            @Override
+            public void onMessageInstantReceive(TransportSession session, String account, int uid, String msg) {
+                capture.record(TrafficEvent.Type.RECEIVE_INSTANT, accountName, account, null, msg, 0);
+                presence.update(account, true);
+                instantMessageReceived(user, account, msg);
+            }
+        };
+    }
+
+    private ChannelListener channelEvents(final User user) {
+        return new ChannelListener() {
+            @Override
+            public void onChannelUserList(TransportSession session, TransportChannel channel, List<String> members, List<Integer> uids) {
+                user.getMembership().seed(channel.getName(), members);
+                user.getListener().onChannelUserList(user, channel.getName(), members.size());
+            }
+
+            @Override
+            public void onMessageChannelReceive(TransportSession session, TransportChannel channel, String account, int uid, String msg) {
+                capture.record(TrafficEvent.Type.RECEIVE_CHANNEL, session.getAccount(), account, channel.getName(), msg, 0);
+                channelMessageReceived(user, channel.getName(), account, msg);
+            }
+
+            @Override
+            public void onChannelUserJoined(TransportSession session, TransportChannel channel, String account, int uid) {
+                user.getMembership().joined(channel.getName(), account);
+                presence.update(account, true);
+                user.getListener().onChannelUserJoined(user, channel.getName(), account);
+            }
+
+            @Override
+            public void onChannelUserLeaved(TransportSession session, TransportChannel channel, String account, int uid) {
+                user.getMembership().left(channel.getName(), account);
+                // left the channel, not necessarily the service
+                presence.invalidate(account);
+                user.getListener().onChannelUserLeft(user, channel.getName(), account);
+            }
+
+            @Override
+            public void onChannelLeaved(TransportSession session, TransportChannel channel, int ecode) {
+                capture.record(TrafficEvent.Type.LEAVE, session.getAccount(), null, channel.getName(), null, ecode);
+                user.getMembership().clear(channel.getName());
+                user.getChannels().remove(channel.getName(), channel);
+                user.getListener().onChannelLeft(user, channel.getName(), ecode);
+            }
+        };
+    }
+
+    private void loggedOut(User user, String reason) {
+        if (!users.remove(user.getAccount(), user)) {
+            return;
+        }
+        if (user.getOutbound() != null) {
+            user.getOutbound().close();
+        }
+        closeRecordLog(user);
+        user.getChannels().clear();
+        user.getMembership().clear();
+        user.getListener().onLoggedOut(user, reason);
+        // leave the shared budget to the accounts still logged in
+        user.getHistory().clear();
+    }
+
+    /**
+     * Opens the account's append-only record log and keeps it appended. Conversations are read
+     * from it when first used rather than all at once; the history and text indexes, which
+     * only hold the newest records anyway, are filled from the end of the log in the
+     * background while records appended meanwhile wait for them.
+     */
+    private void openRecordLog(final User user) {
+        if (!recordLogEnabled || !initRecordDirectory()) {
+            return;
+        }
+        final long opening = System.nanoTime();
+        try {
+            File directory = new File(Constant.RECORD_LOG_DIRECTORY, URLEncoder.encode(user.getAccount(), "UTF-8"));
+            final MessageLog recordLog = new MessageLog(directory, Constant.RECORD_SEGMENT_BYTES, 1024, true,
+                    Constant.HISTORY_CONVERSATION_CAPACITY, Constant.RECORD_COMPACTION_INTERVAL);
+            final long stored = recordLog.getNextSeq();
+            final DeferredSink indexes = new DeferredSink(user.getHistoryIndex(), user.getTextIndex());
+            user.getHistory().removeSink(user.getHistoryIndex());
+            user.getHistory().removeSink(user.getTextIndex());
+            user.getHistory().addSink(indexes);
+            user.getHistory().setSource(timedSource(recordLog, user.getMetrics(), opening));
+            user.getHistory().addSink(recordLog);
+            user.setRecordLog(recordLog);
+            INDEXER.execute(() -> {
+                try {
+                    recordLog.replayTail(stored, Math.max(user.getHistoryIndex().getCapacity(), user.getTextIndex().getCapacity()),
+                            entry -> {
+                                user.getHistoryIndex().add(entry.getConversation(), entry.getRecord());
+                                user.getTextIndex().add(entry.getConversation(), entry.getRecord());
+                            });
+                } catch (IOException e) {
+                    PrintToScreen.printToScreenLine("index record of " + user.getAccount() + " failed: " + e.getMessage());
+                } finally {
+                    indexes.release();
+                }
+            });
+        } catch (IOException e) {
+            PrintToScreen.printToScreenLine("read record of " + user.getAccount() + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads conversations from {@code recordLog} and records, once, how long after
+     * {@code opening} the first stored conversation was ready.
+     */
+    private static HistorySource timedSource(final MessageLog recordLog, final MetricScope metrics, final long opening) {
+        final AtomicBoolean first = new AtomicBoolean();
+        return (id, max) -> {
+            List<DialogueRecord> records = recordLog.load(id, max);
+            if (!records.isEmpty() && first.compareAndSet(false, true)) {
+                metrics.recordFirstConversation(System.nanoTime() - opening);
+            }
+            return records;
+        };
+    }
+
+    private void closeRecordLog(User user) {
+        MessageLog recordLog = user.getRecordLog();
+        if (recordLog == null) {
+            return;
+        }
+        user.setRecordLog(null);
+        user.getHistory().removeSink(recordLog);
+        user.getHistory().setSource(null);
+        try {
+            recordLog.close();
+        } catch (IOException e) {
+            PrintToScreen.printToScreenLine("write record of " + user.getAccount() + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A client whose waits adapt to the round trips of each Signal instance and which hedges
+     * logins and joins, with {@code timeoutMs} as the longest wait.
+     */
+    static AsyncSignalClient newClient(long timeoutMs) {
+        return new AsyncSignalClient(timeoutMs, new RttEstimator(Constant.RTT_INITIAL_TIMEOUT, Constant.RTT_MIN_TIMEOUT,
+                timeoutMs), Constant.HEDGE_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Makes sure the record log directory exists under the working directory.
+     */
+    static boolean initRecordDirectory() {
+        File directory = new File(Constant.RECORD_LOG_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            PrintToScreen.printToScreenLine("can't create record directory " + directory.getAbsolutePath());
+            return false;
+        }
+        return true;
+    }
+
+    static boolean isTimeout(Throwable error) {
+        return error instanceof TimeoutException
+                || (error instanceof CompletionException && error.getCause() instanceof TimeoutException);
+    }
+
+    private static boolean isFatalLogout(int ecode) {
+        for (int fatal : Constant.RECONNECT_FATAL_ECODES) {
+            if (fatal == ecode) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
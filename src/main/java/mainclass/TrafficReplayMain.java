@@ -0,0 +1,56 @@
+package mainclass;
+
+import capture.TrafficReplayer;
+import tool.Constant;
+import transport.LinkProfile;
+import transport.LoopbackBroker;
+import transport.LoopbackTransport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Replays a capture recorded with {@link Constant#CAPTURE_FILE} (or LoadGeneratorMain's
+ * capture option) against an in-process {@link LoopbackBroker} and prints throughput and
+ * latency, so two builds can be compared on the same traffic.
+ * <p>
+ * Arguments are {@code key=value}: file, speed (1 for real time, N for N times faster, max
+ * for no waiting), latency, jitter (ms), deliveryThreads and timeout (ms).
+ */
+public class TrafficReplayMain {
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        File file = new File(option(options, "file", "capture.bin"));
+        String speedOption = option(options, "speed", "1");
+        double speed = speedOption.equals("max") ? 0 : Double.parseDouble(speedOption);
+
+        LoopbackBroker broker = new LoopbackBroker(new LinkProfile(intOption(options, "latency", 0),
+                intOption(options, "jitter", 0), 0, 0), intOption(options, "deliveryThreads", 2));
+        TrafficReplayer replayer = new TrafficReplayer(new LoopbackTransport("replay", broker),
+                intOption(options, "timeout", Constant.TIMEOUT), speed);
+        System.out.println("replaying " + file + " at " + (speed > 0 ? speed + "x" : "max speed")
+                + " link=" + broker.getProfile());
+        System.out.println(replayer.replay(file));
+        broker.shutdown();
+        System.exit(0);
+    }
+
+    private static String option(Map<String, String> options, String key, String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return Integer.parseInt(option(options, key, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,135 @@
+package mainclass;
+
+import tool.Constant;
+import tool.PrintToScreen;
+import transport.AsyncSignalClient;
+import transport.ChannelListener;
+import transport.LoginListener;
+import transport.TransportChannel;
+import transport.TransportPool;
+import transport.TransportSession;
+import transport.WarmUp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Starts a node from configuration instead of the console: the Signal objects of every
+ * {@link Constant#app_ids} entry are created in parallel, the accounts of
+ * {@link Constant#WARMUP_SESSIONS} log in and join their channels, and the time each stage
+ * was ready is printed. The sessions then stay online, printing what they receive, until a
+ * line is entered or input ends.
+ * <p>
+ * Arguments are {@code key=value} and override the configuration: appIds (comma separated),
+ * sessions ({@code account:channel,channel;account;...}), createConcurrency,
+ * loginConcurrency, joinConcurrency and timeout (ms).
+ */
+public class WarmStartMain {
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        List<String> appIds = options.containsKey("appIds") ? Arrays.asList(options.get("appIds").split(","))
+                : new ArrayList<String>(Constant.app_ids);
+        Map<String, List<String>> sessions = parseSessions(options.containsKey("sessions")
+                ? options.get("sessions").split(";") : Constant.WARMUP_SESSIONS);
+        AsyncSignalClient client = SessionManager.newClient(intOption(options, "timeout", Constant.TIMEOUT));
+        WarmUp warmUp = new WarmUp(client, intOption(options, "createConcurrency", Constant.WARMUP_CREATE_CONCURRENCY),
+                intOption(options, "loginConcurrency", Constant.WARMUP_LOGIN_CONCURRENCY),
+                intOption(options, "joinConcurrency", Constant.WARMUP_JOIN_CONCURRENCY));
+        TransportPool pool = new TransportPool(Constant.POOL_VIRTUAL_NODES, Constant.POOL_LOAD_FACTOR,
+                Constant.POOL_MESSAGES_PER_SESSION);
+
+        PrintToScreen.printToScreenLine("warming up " + appIds.size() + " Signal Objects and " + sessions.size() + " accounts");
+        WarmUp.Result result = warmUp.start(pool, appIds, sessions, "_no_need_token",
+                WarmStartMain::sessionEvents, WarmStartMain::channelEvents).join();
+        PrintToScreen.printToScreenLine(result.toString());
+        for (Map.Entry<String, Throwable> failure : result.getTransports().getFailed().entrySet()) {
+            PrintToScreen.printToScreenLine("Signal Object " + failure.getKey() + " failed: " + failure.getValue());
+        }
+        for (Map.Entry<String, Throwable> failure : result.getSessions().getFailed().entrySet()) {
+            PrintToScreen.printToScreenLine("account " + failure.getKey() + " failed: " + failure.getValue());
+        }
+        PrintToScreen.printToScreenLine(pool.describe());
+        PrintToScreen.printToScreenLine("ready, press enter to logout all accounts");
+
+        Scanner in = new Scanner(System.in);
+        if (in.hasNextLine()) {
+            in.nextLine();
+        }
+        List<CompletableFuture<Integer>> logouts = new ArrayList<CompletableFuture<Integer>>();
+        for (TransportSession session : result.getSessions().getSucceeded().values()) {
+            logouts.add(client.logout(session));
+        }
+        try {
+            CompletableFuture.allOf(logouts.toArray(new CompletableFuture<?>[0])).join();
+        } catch (RuntimeException e) {
+            PrintToScreen.printToScreenLine("logout failed: " + e.getMessage());
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Reads entries of the form {@code account} or {@code account:channel,channel}.
+     */
+    static Map<String, List<String>> parseSessions(String[] entries) {
+        Map<String, List<String>> sessions = new LinkedHashMap<String, List<String>>();
+        for (String entry : entries) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.indexOf(':');
+            List<String> channels = new ArrayList<String>();
+            if (colon >= 0) {
+                for (String channel : entry.substring(colon + 1).split(",")) {
+                    if (!channel.trim().isEmpty()) {
+                        channels.add(channel.trim());
+                    }
+                }
+                entry = entry.substring(0, colon).trim();
+            }
+            sessions.put(entry, channels);
+        }
+        return sessions;
+    }
+
+    private static LoginListener sessionEvents(final String account) {
+        return new LoginListener() {
+            @Override
+            public void onMessageInstantReceive(TransportSession session, String peer, int uid, String msg) {
+                PrintToScreen.printEventLine(account + " <- " + peer + ":" + msg);
+            }
+
+            @Override
+            public void onLogout(TransportSession session, int ecode) {
+                PrintToScreen.printEventLine(account + " logged out, ecode " + ecode);
+            }
+        };
+    }
+
+    private static ChannelListener channelEvents(final String account, final String channelName) {
+        return new ChannelListener() {
+            @Override
+            public void onMessageChannelReceive(TransportSession session, TransportChannel channel, String peer, int uid, String msg) {
+                PrintToScreen.printEventLine(account + " <- " + channelName + "/" + peer + ":" + msg);
+            }
+        };
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+}
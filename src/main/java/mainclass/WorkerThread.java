@@ -1,44 +1,66 @@
 package mainclass;
 
-import io.agora.signal.Signal;
-import io.agora.signal.Signal.LoginSession;
-import io.agora.signal.Signal.LoginSession.Channel;
+import history.ConversationId;
+import history.HistoryIndex;
+import history.HistoryPage;
+import history.HistoryQuery;
+import history.HistoryStore;
+import history.LogEntry;
+import history.TextIndex;
+import presence.ChannelMembership;
+import presence.PresenceCache;
 import model.DialogueRecord;
 import model.DialogueStatus;
+import model.SessionListener;
 import model.User;
 import tool.Constant;
 import tool.PrintToScreen;
+import transport.AsyncSignalClient;
+import transport.BulkResult;
+import transport.OutboundQueue;
+import transport.SignalTransport;
+import transport.TransportChannel;
+import transport.TransportFactory;
+import transport.TransportPool;
+import transport.WarmUp;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The console. The accounts it logs in live in a {@link SessionManager}, which records
+ * everything each of them receives; the console shows one account at a time and prints live
+ * only what belongs to the conversation on screen. The rest is shown on entering it.
+ */
 public class WorkerThread implements Runnable {
 
     private boolean mainThreadStatus = false;
 
     private String token = "_no_need_token";
-    private String currentUser;
-    private boolean timeOutFlag;
-    private DialogueStatus currentStatus;
-    private HashMap<String, User> users;
-    private HashMap<String, List<DialogueRecord>> accountDialogueRecords = null;
-    private HashMap<String, List<DialogueRecord>> channelDialogueRecords = null;
-    List<DialogueRecord> currentAccountDialogueRecords = null;
-    List<DialogueRecord> currentChannelDialogueRecords = null;
+    private volatile String currentUser;
+    private volatile boolean timeOutFlag;
+    private volatile DialogueStatus currentStatus;
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private volatile ConversationId viewing;
+    private final Map<ConversationId, HistoryPage> lastViewed = new ConcurrentHashMap<>();
+    // held while the account on screen changes, by a command or by a logout callback
+    private final Object screen = new Object();
     private Scanner in;
-    private Signal sig;
+    private SignalTransport sig;
+    private SessionManager sessions;
+    private final SessionListener consoleEvents = new ConsoleEvents();
 
     private String currentMode;
 
     public WorkerThread(String mode) {
         currentMode = mode;
-        init();
+        init(new Scanner(System.in), new SessionManager());
         String appid = Constant.app_ids.get(0);
         if (currentMode.equals(Constant.COMMAND_SINGLE_SIGNAL_OBJECT)) {
-            sig = new Signal(appid);
+            sig = TransportFactory.create(appid);
             currentStatus = DialogueStatus.UNLOGIN;
         } else {
             if (currentMode.equals(Constant.COMMAND_MULTI_SIGNAL_OBJECT)) {
@@ -47,26 +69,80 @@ public class WorkerThread implements Runnable {
         }
     }
 
-    private void init() {
+    /**
+     * Single Signal object mode on an explicit transport, e.g. a {@link transport.LoopbackTransport}.
+     * Headless workers keep history in memory only unless {@link #setRecordLogEnabled} is called.
+     */
+    public WorkerThread(SignalTransport transport) {
+        this(transport, new Scanner(System.in));
+    }
+
+    /**
+     * Headless worker that reads its commands from {@code input} instead of the console, see
+     * {@link SessionHost}. When the input ends the worker logs out and {@link #run} returns.
+     */
+    public WorkerThread(SignalTransport transport, Readable input) {
+        this(transport, new Scanner(input));
+    }
+
+    private WorkerThread(SignalTransport transport, Scanner input) {
+        this(null, transport, input);
+    }
+
+    /**
+     * Headless worker whose accounts live in {@code sessions}, which other workers may share
+     * so one process hosts all of their accounts, see {@link LoadGeneratorMain}.
+     */
+    public WorkerThread(SessionManager sessions, SignalTransport transport) {
+        this(sessions, transport, new Scanner(System.in));
+    }
+
+    public WorkerThread(SessionManager sessions, SignalTransport transport, Readable input) {
+        this(sessions, transport, new Scanner(input));
+    }
+
+    private WorkerThread(SessionManager sessions, SignalTransport transport, Scanner input) {
+        currentMode = Constant.COMMAND_SINGLE_SIGNAL_OBJECT;
+        if (sessions == null) {
+            sessions = new SessionManager();
+            sessions.setRecordLogEnabled(false);
+        }
+        init(input, sessions);
+        sig = transport;
+        currentStatus = DialogueStatus.UNLOGIN;
+    }
+
+    private void init(Scanner input, SessionManager sessions) {
         this.mainThreadStatus = true;
-        in = new Scanner(System.in);
+        in = input;
 
         timeOutFlag = false;
-        users = new HashMap<String, User>();
+        this.sessions = sessions;
 
         if (currentMode == Constant.COMMAND_MULTI_SIGNAL_OBJECT) {//add by
             signalName = new ArrayList<String>();
-            signalNameAndSignalRecord = new HashMap<String, Signal>();
-            signalAndUser = new HashMap<Signal, HashMap<String, User>>();
+            signalNameAndSignalRecord = new HashMap<String, SignalTransport>();
+            signalAndUser = new HashMap<SignalTransport, HashMap<String, User>>();
+            pool = new TransportPool(Constant.POOL_VIRTUAL_NODES, Constant.POOL_LOAD_FACTOR, Constant.POOL_MESSAGES_PER_SESSION);
         }
-        accountDialogueRecords = new HashMap<String, List<DialogueRecord>>();
-        channelDialogueRecords = new HashMap<String, List<DialogueRecord>>();
     }
 
     public void run() {
         PrintToScreen.printToScreenLine("**************************************************");
         PrintToScreen.printToScreenLine("* Agora Signaling Tutorial  ---SDK version:1.2.0 *");
         PrintToScreen.printToScreenLine("**************************************************");
+        try {
+            dispatch();
+        } catch (NoSuchElementException e) {
+            // input closed
+            mainThreadStatus = false;
+            for (User user : new ArrayList<User>(users.values())) {
+                await(sessions.logout(user), user.getAccount(), false);
+            }
+        }
+    }
+
+    private void dispatch() {
         while (this.mainThreadStatus) {
             switch (currentStatus) {
                 case SIGNALINSTANCE:
@@ -120,9 +196,11 @@ public class WorkerThread implements Runnable {
     private ArrayList<String> signalName;
     private int signalCount = 0;
 
-    private HashMap<String, Signal> signalNameAndSignalRecord = null;
-    private HashMap<Signal, HashMap<String, User>> signalAndUser;
+    private HashMap<String, SignalTransport> signalNameAndSignalRecord = null;
+    private HashMap<SignalTransport, HashMap<String, User>> signalAndUser;
     private boolean isFirstMakeSignal = true;
+    private TransportPool pool;
+    private boolean autoPlacement = false;
 
 
     public void makeSignals() {
@@ -150,9 +228,8 @@ public class WorkerThread implements Runnable {
                 boolean appIdneedBreak = true;
 
                 while ((currentStatus == DialogueStatus.SIGNALINSTANCE) && appIdneedBreak) {
-                    if (Constant.CURRENT_APPID < Constant.app_ids.size()) {
-                        appId = Constant.app_ids.get(Constant.CURRENT_APPID);
-                        Constant.CURRENT_APPID++;
+                    appId = Constant.nextAppId();
+                    if (appId != null) {
                         appIdneedBreak = false;
                     } else {
                         PrintToScreen.printToScreenLine("There are no more appId,please input a new appId :");
@@ -164,19 +241,13 @@ public class WorkerThread implements Runnable {
                             PrintToScreen.printToScreenLine("***************************************************");
 
                         } else {
-                            Constant.app_ids.add(appId);
-                            Constant.CURRENT_APPID++;
+                            Constant.addAppId(appId);
                             appIdneedBreak = false;
                         }
                     }
                 }
 
-                Signal signal = new Signal(appId);
-                PrintToScreen.printToScreenLine("Current Signal Object appId = " + appId);
-                currentSignalName = "Signal " + signalCount;
-                signalName.add(currentSignalName);
-                signalNameAndSignalRecord.put(currentSignalName, signal);
-                signalCount++;
+                addSignal(appId);
                 PrintToScreen.printToScreenLine("**************************************************");
                 PrintToScreen.printToScreenLine("                    Success !                     ");
                 PrintToScreen.printToScreenLine("Current Signal Object is " + currentSignalName + ".             ");
@@ -191,6 +262,22 @@ public class WorkerThread implements Runnable {
     }
 
 
+    /**
+     * Creates the Signal Object for {@code appId} in the pool and makes it the current one.
+     */
+    private void addSignal(String appId) {
+        addSignal(appId, TransportFactory.create(appId));
+    }
+
+    private void addSignal(String appId, SignalTransport transport) {
+        SignalTransport signal = pool.add(appId, transport);
+        PrintToScreen.printToScreenLine("Current Signal Object appId = " + appId);
+        currentSignalName = "Signal " + signalCount;
+        signalName.add(currentSignalName);
+        signalNameAndSignalRecord.put(currentSignalName, signal);
+        signalCount++;
+    }
+
     public void chooseWhatToDo() {
         boolean needBreak = true;
         while ((currentStatus == DialogueStatus.SIGNALINSTANCE) && needBreak) {
@@ -199,12 +286,30 @@ public class WorkerThread implements Runnable {
             PrintToScreen.printToScreenLine("**************************************************************");
             PrintToScreen.printToScreenLine("*input '0' choose to create a Signal Objcet continue!        *");
             PrintToScreen.printToScreenLine("*input '1' chooose to create an Account in this Signal Object*");
+            PrintToScreen.printToScreenLine("*input '2' create Signal Objects for all remaining appIds    *");
             PrintToScreen.printToScreenLine("**************************************************************");
             PrintToScreen.printToScreen("Command: ");
             inputCommand = in.nextLine();
             if (inputCommand.equals(Constant.COMMAND_CREATE_SIGNAL)) {
                 makeSignals();
                 needBreak = false;
+            } else if (inputCommand.equals(Constant.COMMAND_CREATE_ALL_SIGNALS)) {
+                List<String> appIds = new ArrayList<String>();
+                String appId;
+                while ((appId = Constant.nextAppId()) != null) {
+                    appIds.add(appId);
+                }
+                // Signal objects take a while to create, so they are created side by side
+                BulkResult<SignalTransport> created = WarmUp.createTransports(appIds, TransportFactory::create,
+                        Constant.WARMUP_CREATE_CONCURRENCY);
+                for (Map.Entry<String, SignalTransport> signal : created.getSucceeded().entrySet()) {
+                    addSignal(signal.getKey(), signal.getValue());
+                }
+                for (Map.Entry<String, Throwable> failure : created.getFailed().entrySet()) {
+                    PrintToScreen.printToScreenLine("Signal Object for appId " + failure.getKey() + " failed: " + failure.getValue());
+                }
+                PrintToScreen.printToScreenLine("Here are all Signal Objects:                     ");
+                PrintToScreen.printToScreenLine(printAllSignalObject());
             } else if (inputCommand.equals(Constant.COMMAND_CREATE_ACCOUNT)) {
                 currentStatus = DialogueStatus.UNLOGIN;
                 needBreak = false;
@@ -237,6 +342,7 @@ public class WorkerThread implements Runnable {
         PrintToScreen.printToScreenLine(printAllSignalObject());
         String allSignalObject = printAllSignalObject();
         PrintToScreen.printToScreenLine("You can switch Signal Object by input the number of the Signal.... ");
+        PrintToScreen.printToScreenLine("or input '" + Constant.COMMAND_AUTO_SIGNAL + "' to let the pool choose one for each account.... ");
         PrintToScreen.printToScreen("Command: ");
 
         String inputCommand = in.nextLine();
@@ -245,10 +351,19 @@ public class WorkerThread implements Runnable {
     }
 
     private void checkTheNumberofSignalObject(String numberSignalObject) {
+        if (numberSignalObject.equals(Constant.COMMAND_AUTO_SIGNAL)) {
+            autoPlacement = true;
+            PrintToScreen.printToScreenLine("**************************************************************");
+            PrintToScreen.printToScreenLine("Accounts are now placed on the least loaded Signal Object");
+            PrintToScreen.printToScreenLine(pool.describe());
+            currentStatus = DialogueStatus.UNLOGIN;
+            return;
+        }
         for (int i = 0; i < signalName.size(); i++) {
             if (numberSignalObject.equals(i + 1 + "")) {
 
                 currentSignalName = signalName.get(i);
+                autoPlacement = false;
                 PrintToScreen.printToScreenLine("**************************************************************");
 
                 PrintToScreen.printToScreenLine("Current Signal Object is " + currentSignalName);
@@ -265,17 +380,29 @@ public class WorkerThread implements Runnable {
     public void dealWithUnLogin() {
         while (this.mainThreadStatus && (this.currentStatus == DialogueStatus.UNLOGIN)) {
             String inputCommand = "";
-            Signal currentSignal = null;
+            SignalTransport currentSignal = null;
             if (currentMode.equals(Constant.COMMAND_MULTI_SIGNAL_OBJECT)) {
                 PrintToScreen.printToScreenLine("**************************************************************");
-                PrintToScreen.printToScreenLine("Current Signal is :" + currentSignalName + "    " + signalNameAndSignalRecord.get(currentSignalName).toString());
+                if (autoPlacement) {
+                    PrintToScreen.printToScreenLine("Current Signal is chosen by account from :");
+                    PrintToScreen.printToScreenLine(pool.describe());
+                } else {
+                    PrintToScreen.printToScreenLine("Current Signal is :" + currentSignalName + "    " + signalNameAndSignalRecord.get(currentSignalName).toString());
+                }
                 PrintToScreen.printToScreenLine("You can input 'switch' to choose a Signal Object....");
                 PrintToScreen.printToScreenLine("Please enter your account to login....");
                 PrintToScreen.printToScreenLine("**************************************************************");
                 PrintToScreen.printToScreen("Account:");
                 inputCommand = in.nextLine();
                 checkWheatherSwitchSignalObject(inputCommand);
-                currentSignal = signalNameAndSignalRecord.get(currentSignalName);
+                if (autoPlacement) {
+                    if (currentStatus == DialogueStatus.UNLOGIN && sessions.get(inputCommand) == null
+                            && checkAccountName(inputCommand)) {
+                        currentSignal = pool.assign(inputCommand);
+                    }
+                } else {
+                    currentSignal = signalNameAndSignalRecord.get(currentSignalName);
+                }
             } else if (currentMode.equals(Constant.COMMAND_SINGLE_SIGNAL_OBJECT)) {
                 PrintToScreen.printToScreenLine("Current Signal is  :" + sig.toString());
                 PrintToScreen.printToScreen("Account:");
@@ -287,7 +414,11 @@ public class WorkerThread implements Runnable {
                 return;
             }
 
-            if (checkAccountName(inputCommand)) {
+            if (currentUser != null && inputCommand.equals(Constant.COMMAND_LEAVE_CHART)) {
+                currentStatus = DialogueStatus.LOGINED;
+            } else if (sessions.get(inputCommand) != null) {
+                PrintToScreen.printToScreenLine("..." + inputCommand + " is already logged in...");
+            } else if (checkAccountName(inputCommand)) {
                 login(inputCommand, currentSignal);
             } else {
                 PrintToScreen.printToScreenLine("Please recheck the account,it has format error");
@@ -307,30 +438,49 @@ public class WorkerThread implements Runnable {
             boolean loginedFlag = true;
             while (this.mainThreadStatus && loginedFlag) {
                 PrintToScreen.printToScreenLine("******************************************************");
-                PrintToScreen.printToScreenLine("you can input '" + Constant.COMMAND_LOGOUT + "' to logout....");
+                PrintToScreen.printToScreenLine("you can input '" + Constant.COMMAND_LOGOUT + "' to logout " + currentUser + "....");
+                if (users.size() > 1) {
+                    PrintToScreen.printToScreenLine("logged in: " + users.keySet() + ", input '" + Constant.COMMAND_USE_ACCOUNT
+                            + " <account>' to switch");
+                }
                 PrintToScreen.printToScreenLine("Please chose chart type.....");
                 PrintToScreen.printToScreenLine("****************************************************");
                 PrintToScreen.printToScreenLine("*input '2' choose single_point chart               *");
                 PrintToScreen.printToScreenLine("*input '3' choose channel chart                    *");
+                PrintToScreen.printToScreenLine("*input 'search <words>' to search history          *");
+                PrintToScreen.printToScreenLine("*input 'login' to login another account too        *");
                 PrintToScreen.printToScreenLine("****************************************************");
                 PrintToScreen.printToScreen("choose option:");
                 String command = in.nextLine();
                 if (command.equals(Constant.COMMAND_LOGOUT)) {
                     loginedFlag = false;
-                    if ((users != null) && (currentUser != null)) {
-                        users.get(currentUser).getSession().logout();
+                    User current = user();
+                    if (current != null) {
                         timeOutFlag = false;
-                        wait_time(users.get(currentUser).getLogoutLatch(), Constant.TIMEOUT, currentUser);
+                        await(sessions.logout(current), current.getAccount(), false);
                     } else {
 
                         currentStatus = DialogueStatus.UNLOGIN;
                     }
+                } else if (command.equals(Constant.COMMAND_ADD_ACCOUNT)) {
+                    loginedFlag = false;
+                    PrintToScreen.printToScreenLine("input '" + Constant.COMMAND_LEAVE_CHART + "' to go back to " + currentUser);
+                    currentStatus = DialogueStatus.UNLOGIN;
+                } else if (command.startsWith(Constant.COMMAND_USE_ACCOUNT + " ")) {
+                    String account = command.substring(Constant.COMMAND_USE_ACCOUNT.length() + 1).trim();
+                    if (users.containsKey(account)) {
+                        switchTo(account);
+                    } else {
+                        PrintToScreen.printToScreenLine("..." + account + " is not logged in here...");
+                    }
                 } else if (command.equals(Constant.COMMAND_TYPE_SINGLE_POINT)) {
                     loginedFlag = false;
                     currentStatus = DialogueStatus.SINGLE_POINT;
                 } else if (command.equals(Constant.COMMAND_TYPE_CHANNEL)) {
                     loginedFlag = false;
                     currentStatus = DialogueStatus.CHANNEL;
+                } else if (command.startsWith(Constant.COMMAND_SEARCH + " ")) {
+                    searchHistory(command.substring(Constant.COMMAND_SEARCH.length() + 1).trim());
                 } else {
                     PrintToScreen.printToScreenLine("************************************************");
                     PrintToScreen.printToScreenLine("...your command:" + command + " can't understand...");
@@ -354,30 +504,62 @@ public class WorkerThread implements Runnable {
         }
     }
 
-    public void queryUserStatus(String account) {
+    /**
+     * Prints whether {@code account} is online: at once if a shared channel or the presence
+     * cache knows, otherwise when the batched lookup answers.
+     */
+    public void queryUserStatus(final String account) {
+        User user = currentUser == null ? null : users.get(currentUser);
+        if (user == null) {
+            return;
+        }
+        PresenceCache presence = sessions.getPresence();
+        Boolean online = user.getMembership().isMemberAnywhere(account) ? Boolean.TRUE : presence.peek(account);
+        if (online != null) {
+            PrintToScreen.printToScreenLine("***************" + account + " status : " + statusText(online) + "******************");
+            return;
+        }
+        PrintToScreen.printToScreenLine("***************" + account + " status : checking...******************");
+        presence.query(user.getSession(), account).thenAccept(status ->
+                PrintToScreen.printEventLine("..." + account + " is " + statusText(status) + "..."));
+    }
 
+    private static String statusText(Boolean online) {
+        return online == null ? "unknown" : online ? "online" : "offline";
+    }
+
+    /**
+     * The channel members seen by the account on screen.
+     */
+    public ChannelMembership getMembership() {
+        return user().getMembership();
+    }
+
+    public PresenceCache getPresence() {
+        return sessions.getPresence();
+    }
+
+    public SessionManager getSessions() {
+        return sessions;
     }
 
     public void intoP2PConversation(String oppositeAccount) {
         boolean p2pFlag = true;
-        currentAccountDialogueRecords = initP2PRecord(oppositeAccount);
+        ConversationId conversation = ConversationId.p2p(oppositeAccount);
         PrintToScreen.printToScreenLine("**************************************************");
-        if (currentAccountDialogueRecords == null || currentAccountDialogueRecords.size() == 0) {
-            currentAccountDialogueRecords = new ArrayList<DialogueRecord>();
-        } else {
-            for (int i = 0; i < currentAccountDialogueRecords.size(); i++) {
-                PrintToScreen.printToScreenLine(currentAccountDialogueRecords.get(i).getAccount() + ":" + currentAccountDialogueRecords.get(i).getDialogue());
-            }
-        }
-        PrintToScreen.printToScreenLine("****above is history record :" + currentAccountDialogueRecords.size() + "**************");
+        viewing = conversation;
+        HistoryPage shown = replayHistory(conversation);
         PrintToScreen.printToScreenLine("you can send message now and input '" + Constant.COMMAND_LEAVE_CHART + "' to leave this session");
-        PrintToScreen.printToScreenLine("***************" + oppositeAccount + " status : " + "to do " + "******************");
-        while (this.mainThreadStatus && p2pFlag) {
+        queryUserStatus(oppositeAccount);
+        while (this.mainThreadStatus && p2pFlag && currentStatus == DialogueStatus.SINGLE_POINT) {
             String command = in.nextLine();
             if (command.equals(Constant.COMMAND_LEAVE_CHART)) {
                 p2pFlag = false;
                 currentStatus = DialogueStatus.LOGINED;
-                accountDialogueRecords.put(oppositeAccount, currentAccountDialogueRecords);
+                viewing = null;
+                markViewed(conversation);
+            } else if (command.equals(Constant.COMMAND_MORE_HISTORY)) {
+                shown = replayOlder(conversation, shown);
             } else {
                 sendMsg(command, oppositeAccount);
             }
@@ -385,7 +567,7 @@ public class WorkerThread implements Runnable {
     }
 
     public List<DialogueRecord> initP2PRecord(String oppositeAccount) {
-        return accountDialogueRecords.get(oppositeAccount);
+        return getHistory().snapshot(ConversationId.p2p(oppositeAccount));
     }
 
     public void dealWithChannel() {
@@ -411,26 +593,23 @@ public class WorkerThread implements Runnable {
 
     public void intoChannelConversation(String channelName) {
         boolean channelFlag = true;
-        currentChannelDialogueRecords = initChannelRecord(channelName);
+        ConversationId conversation = ConversationId.channel(channelName);
         PrintToScreen.printToScreenLine("*******************channel:" + channelName + "*****************");
-        if (currentChannelDialogueRecords == null || currentChannelDialogueRecords.size() == 0) {
-            currentChannelDialogueRecords = new ArrayList<DialogueRecord>();
-        } else {
-            for (int i = 0; i < currentChannelDialogueRecords.size(); i++) {
-                PrintToScreen.printToScreenLine(currentChannelDialogueRecords.get(i).getAccount() + ":" + currentChannelDialogueRecords.get(i).getDialogue());
-            }
-        }
-        PrintToScreen.printToScreenLine("****above is history record :" + currentChannelDialogueRecords.size() + "**************");
+        viewing = conversation;
+        HistoryPage shown = replayHistory(conversation);
         PrintToScreen.printToScreenLine("you can send message now and input '" + Constant.COMMAND_LEAVE_CHART + "' to leave this session");
 
-        while (this.mainThreadStatus && channelFlag) {
+        while (this.mainThreadStatus && channelFlag && currentStatus == DialogueStatus.CHANNEL) {
 
             String command = in.nextLine();
             if (command.equals(Constant.COMMAND_LEAVE_CHART)) {
                 channelFlag = false;
                 currentStatus = DialogueStatus.LOGINED;
-                users.get(currentUser).getChannel().channelLeave();
-                channelDialogueRecords.put(channelName, currentChannelDialogueRecords);
+                viewing = null;
+                markViewed(conversation);
+                sessions.leave(user(), channelName);
+            } else if (command.equals(Constant.COMMAND_MORE_HISTORY)) {
+                shown = replayOlder(conversation, shown);
             } else {
                 channelDeal(command, channelName);
             }
@@ -438,121 +617,120 @@ public class WorkerThread implements Runnable {
 
     }
 
-    public void channelDeal(String command, String channelName) {
-        users.get(currentUser).getChannel().messageChannelSend(command);
+    /**
+     * Prints the last page of the conversation, or on re-entry only what arrived since it was
+     * last left, and returns the oldest page shown so {@link #replayOlder} can go on from it.
+     */
+    private HistoryPage replayHistory(ConversationId conversation) {
+        HistoryStore history = getHistory();
+        HistoryPage viewed = lastViewed.get(conversation);
+        HistoryPage latest = history.page(conversation, 0, Long.MAX_VALUE, 0);
+        boolean delta = viewed != null && latest.continues(viewed.getEndSeq(), viewed.getGeneration());
+        HistoryPage page = history.page(conversation, delta ? viewed.getEndSeq() : 0, Long.MAX_VALUE,
+                Constant.HISTORY_PAGE_SIZE);
+        printRecords(page);
+        if (delta) {
+            long unseen = page.getFirstSeq() - viewed.getEndSeq();
+            PrintToScreen.printToScreenLine("****above is new record since last view :" + (unseen + page.getRecords().size())
+                    + (unseen > 0 ? ", " + unseen + " not shown" : "") + "**************");
+        } else {
+            PrintToScreen.printToScreenLine("****above is history record :" + page.getRecords().size() + "**************");
+        }
+        if (page.hasOlder()) {
+            PrintToScreen.printToScreenLine("input '" + Constant.COMMAND_MORE_HISTORY + "' to see older record");
+        }
+        lastViewed.put(conversation, page);
+        return page;
     }
 
-    public void joinChannel(String channelName) {
-        final CountDownLatch channelJoindLatch = new CountDownLatch(1);
-        Channel channel = users.get(currentUser).getSession().channelJoin(channelName, new Signal.ChannelCallback() {
-            @Override
-            public void onChannelJoined(Signal.LoginSession session, Signal.LoginSession.Channel channel) {
-                channelJoindLatch.countDown();
-            }
-
-            @Override
-            public void onChannelUserList(Signal.LoginSession session, Signal.LoginSession.Channel channel, List<String> users, List<Integer> uids) {
-            }
-
-
-            @Override
-            public void onMessageChannelReceive(Signal.LoginSession session, Signal.LoginSession.Channel channel, String account, int uid, String msg) {
-
-                if (currentChannelDialogueRecords != null && currentStatus == DialogueStatus.CHANNEL) {
-                    PrintToScreen.printToScreenLine(account + ":" + msg);
-                    DialogueRecord dialogueRecord = new DialogueRecord(account, msg, new Date());
-                    currentChannelDialogueRecords.add(dialogueRecord);
-                }
+    /**
+     * Prints the page before {@code shown}; the same page comes back if there is nothing older.
+     */
+    private HistoryPage replayOlder(ConversationId conversation, HistoryPage shown) {
+        HistoryPage older = getHistory().page(conversation, 0, shown.getFirstSeq(), Constant.HISTORY_PAGE_SIZE);
+        if (older.getGeneration() != shown.getGeneration() || older.getRecords().isEmpty()) {
+            PrintToScreen.printToScreenLine("****no older history record**************");
+            return shown;
+        }
+        PrintToScreen.printToScreenLine("****older history record :" + older.getRecords().size() + "**************");
+        printRecords(older);
+        PrintToScreen.printToScreenLine("****above is older history record"
+                + (older.hasOlder() ? ", input '" + Constant.COMMAND_MORE_HISTORY + "' for more" : "") + "**************");
+        return older;
+    }
 
-            }
+    /**
+     * Prints the newest records of any conversation containing every word of {@code text},
+     * or the exact phrase when it is quoted.
+     */
+    private void searchHistory(String text) {
+        boolean phrase = text.length() > 1 && text.startsWith("\"") && text.endsWith("\"");
+        HistoryQuery query = phrase ? HistoryQuery.matchingPhrase(text.substring(1, text.length() - 1))
+                : HistoryQuery.matching(text);
+        Iterator<LogEntry> found = getTextIndex().query(query.newestFirst().limit(Constant.HISTORY_PAGE_SIZE));
+        int count = 0;
+        while (found.hasNext()) {
+            LogEntry entry = found.next();
+            PrintToScreen.printToScreenLine("[" + entry.getConversation() + "] " + entry.getRecord().getAccount()
+                    + ":" + entry.getRecord().getDialogue());
+            count++;
+        }
+        PrintToScreen.printToScreenLine("****found record :" + count + "**************");
+    }
 
-            @Override
-            public void onChannelUserJoined(Signal.LoginSession session, Signal.LoginSession.Channel channel, String account, int uid) {
-                if (currentStatus == DialogueStatus.CHANNEL) {
-                    PrintToScreen.printToScreenLine("..." + account + " joined channel... ");
-                }
-            }
+    private void printRecords(HistoryPage page) {
+        for (DialogueRecord record : page.getRecords()) {
+            PrintToScreen.printToScreenLine(record.getAccount() + ":" + record.getDialogue());
+        }
+    }
 
-            @Override
-            public void onChannelUserLeaved(Signal.LoginSession session, Signal.LoginSession.Channel channel, String account, int uid) {
-                if (currentStatus == DialogueStatus.CHANNEL) {
-                    PrintToScreen.printToScreenLine("..." + account + " leave channel... ");
-                }
-            }
+    /**
+     * Remembers that everything recorded so far was seen, including what arrived live.
+     */
+    private void markViewed(ConversationId conversation) {
+        lastViewed.put(conversation, getHistory().page(conversation, Long.MAX_VALUE, Long.MAX_VALUE, 0));
+    }
 
-            @Override
-            public void onChannelLeaved(Signal.LoginSession session, Signal.LoginSession.Channel channel, int ecode) {
-                if (currentStatus == DialogueStatus.CHANNEL) {
-                    currentStatus = DialogueStatus.LOGINED;
-                }
-            }
+    public OutboundQueue.Admission channelDeal(String command, String channelName) {
+        return admitted(sessions.sendChannel(user(), channelName, command));
+    }
 
-        });
+    public void joinChannel(String channelName) {
+        CompletableFuture<TransportChannel> join = sessions.join(user(), channelName);
         timeOutFlag = false;
-        wait_time(channelJoindLatch, Constant.TIMEOUT, channelName);
-        if (timeOutFlag == false) {
-            users.get(currentUser).setChannel(channel);
-        }
-
+        await(join, channelName, true);
     }
 
-
     public List<DialogueRecord> initChannelRecord(String channelName) {
-        return channelDialogueRecords.get(channelName);
+        return getHistory().snapshot(ConversationId.channel(channelName));
     }
 
-    public void sendMsg(final String msg, String oppositeAccount) {
-        Signal.LoginSession currentSession = users.get(currentUser).getSession();
-        currentSession.messageInstantSend(oppositeAccount, msg, new Signal.MessageCallback() {
-            @Override
-            public void onMessageSendSuccess(Signal.LoginSession session) {
-                DialogueRecord dialogueRecord = new DialogueRecord(currentUser, msg, new Date());
-                currentAccountDialogueRecords.add(dialogueRecord);
-                PrintToScreen.printToScreenLine(currentUser + ":" + msg);
-            }
+    public OutboundQueue.Admission sendMsg(final String msg, final String oppositeAccount) {
+        return admitted(sessions.sendInstant(user(), oppositeAccount, msg));
+    }
 
-            @Override
-            public void onMessageSendError(Signal.LoginSession session, int ecode) {
-                PrintToScreen.printToScreenLine(currentUser + " msg send error");
-            }
-        });
+    private OutboundQueue.Admission admitted(OutboundQueue.Admission admission) {
+        if (admission == OutboundQueue.Admission.FULL) {
+            PrintToScreen.printEventLine("...sending too fast, message dropped, please wait...");
+        } else if (admission == OutboundQueue.Admission.CLOSED) {
+            PrintToScreen.printEventLine("...not logged in, message dropped...");
+        }
+        return admission;
     }
 
 
+    /**
+     * Makes sure the record log directory exists under the working directory.
+     */
     public boolean initRecordFile() {
-        boolean recordFileFlag = false;
-        File directory = new File(".");
-        String path = null;
-        String path_p2p = null;
-        String path_channel = null;
-        try {
-            path = directory.getCanonicalPath();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-            return recordFileFlag;
-        }
-        path_p2p = path + "\\" + Constant.RECORD_FILE_P2P;
-        path_channel = path + "\\" + Constant.RECORD_FILE_CHANEEL;
-        File file_p2p = new File(path_p2p);
-        File file_channel = new File(path_channel);
-        PrintToScreen.printToScreenLine(path);
-        if (file_p2p.exists()) {
-            file_p2p.delete();
-        }
-        if (file_channel.exists()) {
-            file_channel.delete();
-        }
-        try {
-            file_p2p.createNewFile();
-            file_channel.createNewFile();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-            return recordFileFlag;
-        }
-        recordFileFlag = true;
-        return recordFileFlag;
+        return SessionManager.initRecordDirectory();
+    }
+
+    /**
+     * Whether accounts logged in from now on keep their history in a record log.
+     */
+    public void setRecordLogEnabled(boolean enabled) {
+        sessions.setRecordLogEnabled(enabled);
     }
 
     public boolean checkAccountName(String accountName) {
@@ -569,81 +747,234 @@ public class WorkerThread implements Runnable {
         return returnFlag;
     }
 
-    public void login(final String accountName, Signal signal) {
+    public void login(final String accountName, SignalTransport signal) {
 
         sig = signal;
         PrintToScreen.printToScreenLine("Signal is a :  = " + sig + "   accountName  = " + accountName + "   token   = " + token);
 
-        final CountDownLatch loginLatch = new CountDownLatch(1);
+        this.timeOutFlag = false;
+        User user = await(sessions.login(sig, accountName, consoleEvents), accountName, false);
+        if (user == null && pool != null) {
+            // a login that timed out never reports back to the pool
+            pool.release(accountName);
+        }
+        if (user != null) {
+            synchronized (screen) {
+                users.put(accountName, user);
+                currentUser = accountName;
+                viewing = null;
+                lastViewed.clear();
+                currentStatus = DialogueStatus.LOGINED;
+            }
+            PrintToScreen.printToScreenLine("account:" + user.getAccount() + " login successd");
+        }
+    }
 
+    /**
+     * Shows {@code account} instead of the current account, which stays logged in and keeps
+     * recording what it receives.
+     */
+    private void switchTo(String account) {
+        synchronized (screen) {
+            currentUser = account;
+            viewing = null;
+            lastViewed.clear();
+            currentStatus = DialogueStatus.LOGINED;
+        }
+        PrintToScreen.printToScreenLine("Current account is " + account);
+    }
 
-        sig.login(accountName, this.token, new Signal.LoginCallback() {
-            @Override
-            public void onLoginSuccess(final Signal.LoginSession session, int uid) {
-                if (timeOutFlag == false) {
-                    currentUser = accountName;
-                    User user = new User(session, accountName, uid);
+    /**
+     * The account on screen.
+     */
+    private User user() {
+        String account = currentUser;
+        return account == null ? null : users.get(account);
+    }
 
-                    user.setLoginLatch(loginLatch);
-                    users.put(currentUser, new User(session, accountName, uid));
-                    PrintToScreen.printToScreenLine("account:" + users.get(accountName).getAccount() + " login successd");
-                    currentStatus = DialogueStatus.LOGINED;
-                    user.getLoginLatch().countDown();
-                }
+    private boolean isViewing(User user, ConversationId conversation) {
+        return user.getAccount().equals(currentUser) && conversation.equals(viewing);
+    }
+
+    /**
+     * Prints what happens to the accounts of this console. Recording already happened in the
+     * {@link SessionManager}, so only the conversation on screen prints live.
+     */
+    private class ConsoleEvents extends SessionListener {
+
+        @Override
+        public void onInstantMessage(User user, String peer, String msg) {
+            if (isViewing(user, ConversationId.p2p(peer))) {
+                PrintToScreen.printEventLine(peer + ":" + msg);
             }
-            
-            /*@Override
-            public void onLoginFailed(LoginSession session, int ecode) {
-            	// TODO Auto-generated method stub
-            	super.onLoginFailed(session, ecode);
-            PrintToScreen.printToScreenLine("account:"+users.get(accountName).getAccount()+" login failed");     	
-           
-            }*/
-
-
-            @Override
-            public void onLogout(Signal.LoginSession session, int ecode) {
-                if (currentStatus == DialogueStatus.LOGINED && timeOutFlag == false) {
-                    PrintToScreen.printToScreenLine("account:" + users.get(accountName).getAccount() + " logout successd");
-                    if (accountDialogueRecords != null) {
-                        accountDialogueRecords.clear();
-                    }
-                    if (currentChannelDialogueRecords != null) {
-                        currentChannelDialogueRecords.clear();
-                    }
-                    currentStatus = DialogueStatus.UNLOGIN;
-                    users.get(currentUser).getLogoutLatch().countDown();
-                    currentUser = null;
-                }
+        }
+
+        @Override
+        public void onInstantMessageSent(User user, String peer, String msg) {
+            if (user.getAccount().equals(currentUser)) {
+                PrintToScreen.printEventLine(user.getAccount() + ":" + msg);
+            }
+        }
+
+        @Override
+        public void onSendError(User user, String peer, int ecode) {
+            PrintToScreen.printEventLine(user.getAccount() + " msg send error");
+        }
+
+        @Override
+        public void onChannelMessage(User user, String channel, String peer, String msg) {
+            if (isViewing(user, ConversationId.channel(channel))) {
+                PrintToScreen.printEventLine(peer + ":" + msg);
+            }
+        }
+
+        @Override
+        public void onChannelUserList(User user, String channel, int count) {
+            if (user.getAccount().equals(currentUser) && currentStatus == DialogueStatus.CHANNEL) {
+                PrintToScreen.printEventLine("..." + count + " other users in channel " + channel + "...");
+            }
+        }
+
+        @Override
+        public void onChannelUserJoined(User user, String channel, String account) {
+            if (isViewing(user, ConversationId.channel(channel))) {
+                PrintToScreen.printEventLine("..." + account + " joined channel... ");
+            }
+        }
+
+        @Override
+        public void onChannelUserLeft(User user, String channel, String account) {
+            if (isViewing(user, ConversationId.channel(channel))) {
+                PrintToScreen.printEventLine("..." + account + " leave channel... ");
+            }
+        }
+
+        @Override
+        public void onChannelLeft(User user, String channel, int ecode) {
+            if (isViewing(user, ConversationId.channel(channel)) && currentStatus == DialogueStatus.CHANNEL) {
+                currentStatus = DialogueStatus.LOGINED;
+            }
+        }
+
+        @Override
+        public void onReconnecting(User user, String reason) {
+            PrintToScreen.printEventLine(prefix(user) + "connection lost (" + reason + "), reconnecting......");
+        }
+
+        @Override
+        public void onReconnected(User user, long nanos, Set<String> lostChannels) {
+            for (String channel : lostChannels) {
+                PrintToScreen.printEventLine(prefix(user) + "could not rejoin channel " + channel);
             }
+            PrintToScreen.printEventLine(prefix(user) + String.format("reconnected in %.1f ms", nanos / 1e6));
+        }
 
-            @Override
-            public void onMessageInstantReceive(Signal.LoginSession session, String account, int uid, String msg) {
-                if (currentAccountDialogueRecords != null && currentStatus == DialogueStatus.SINGLE_POINT) {
-                    PrintToScreen.printToScreenLine(account + ":" + msg);
-                    DialogueRecord dialogueRecord = new DialogueRecord(account, msg, new Date());
-                    currentAccountDialogueRecords.add(dialogueRecord);
+        @Override
+        public void onLoggedOut(User user, String reason) {
+            if (!users.remove(user.getAccount(), user)) {
+                return;
+            }
+            if (reason != null) {
+                PrintToScreen.printEventLine(reason);
+            }
+            PrintToScreen.printEventLine("account:" + user.getAccount() + " logout successd");
+            synchronized (screen) {
+                if (!user.getAccount().equals(currentUser)) {
+                    return;
+                }
+                viewing = null;
+                lastViewed.clear();
+                Iterator<String> others = users.keySet().iterator();
+                if (others.hasNext()) {
+                    currentUser = others.next();
+                    PrintToScreen.printEventLine("Current account is " + currentUser);
+                    currentStatus = DialogueStatus.LOGINED;
+                } else {
+                    currentUser = null;
+                    currentStatus = DialogueStatus.UNLOGIN;
                 }
             }
-        });
-        this.timeOutFlag = false;
-        wait_time(loginLatch, Constant.TIMEOUT, accountName);
+        }
+
+        private String prefix(User user) {
+            return user.getAccount().equals(currentUser) ? "" : user.getAccount() + ": ";
+        }
     }
 
+    void receiveInstantMessage(String account, String msg) {
+        sessions.instantMessageReceived(user(), account, msg);
+    }
 
-    public void wait_time(CountDownLatch x, int tInMS, String accountName) {
+    void receiveChannelMessage(String channelName, String account, String msg) {
+        sessions.channelMessageReceived(user(), channelName, account, msg);
+    }
+
+    void instantMessageSent(String oppositeAccount, String msg) {
+        sessions.instantMessageSent(user(), oppositeAccount, msg);
+    }
+
+    /**
+     * The history of the account on screen.
+     */
+    public HistoryStore getHistory() {
+        return user().getHistory();
+    }
+
+    public HistoryIndex getHistoryIndex() {
+        return user().getHistoryIndex();
+    }
+
+    public TextIndex getTextIndex() {
+        return user().getTextIndex();
+    }
+
+    DialogueStatus getCurrentStatus() {
+        return currentStatus;
+    }
+
+    void setCurrentStatus(DialogueStatus status) {
+        currentStatus = status;
+    }
+
+    public String getCurrentUser() {
+        return currentUser;
+    }
+
+    public boolean isTimeOut() {
+        return timeOutFlag;
+    }
+
+
+    /**
+     * Waits for an operation started through {@link AsyncSignalClient}; the timeout itself is
+     * enforced by the client. Returns null when the operation failed or timed out.
+     */
+    private <T> T await(CompletableFuture<T> operation, String accountName, boolean recoverOnTimeout) {
         try {
-            x.await(tInMS, TimeUnit.MILLISECONDS);
+            return operation.get();
         } catch (InterruptedException e) {
             currentStatus = DialogueStatus.UNLOGIN;
-        }
-        if (x.getCount() == 1) {
-            this.timeOutFlag = true;
-            PrintToScreen.printToScreenLine("connect time out ......");
-            currentStatus = DialogueStatus.UNLOGIN;
-            if (users.get(accountName) != null) {
-                users.get(accountName).getSession().logout();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                this.timeOutFlag = true;
+                PrintToScreen.printToScreenLine("connect time out ......");
+                if (recoverOnTimeout && user() != null) {
+                    sessions.recover(user(), "time out");
+                    return null;
+                }
+                User timedOut = users.get(accountName);
+                if (timedOut != null) {
+                    timedOut.getSession().logout();
+                }
+            } else {
+                PrintToScreen.printToScreenLine(e.getCause().getMessage());
+            }
+            // a failed login stays at the account prompt, anything else returns to the menu
+            synchronized (screen) {
+                currentStatus = currentUser == null || currentStatus == DialogueStatus.UNLOGIN
+                        ? DialogueStatus.UNLOGIN : DialogueStatus.LOGINED;
             }
         }
+        return null;
     }
 }
@@ -0,0 +1,76 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-min sketch: {@code depth} rows of {@code width} counters, every key adding to one
+ * counter per row. A key's estimate is the smallest of its counters, never below its true
+ * count and above it by at most {@code e / width} of the total with probability
+ * {@code 1 - e^-depth}. Memory is fixed whatever the number of keys; adding is one atomic
+ * increment per row.
+ * <p>
+ * Keys are given as a 64 bit {@link tool.StringHash#hash}, computed once per event and shared
+ * by all the sketches it is added to; row {@code i} uses {@code low + i * high} of it, which
+ * is as good as independent hashes for this purpose.
+ */
+public class CountMinSketch {
+
+    private final int depth;
+    private final int mask;
+    private final AtomicLongArray counters;
+
+    /**
+     * @param width counters per row, rounded up to a power of two
+     */
+    public CountMinSketch(int depth, int width) {
+        if (depth <= 0 || width <= 0) {
+            throw new IllegalArgumentException("depth and width must be positive");
+        }
+        int size = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+        this.depth = depth;
+        this.mask = size - 1;
+        this.counters = new AtomicLongArray(depth * size);
+    }
+
+    public void add(long hash, long count) {
+        for (int row = 0; row < depth; row++) {
+            counters.addAndGet(cell(row, hash), count);
+        }
+    }
+
+    public long estimate(long hash) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counters.get(cell(row, hash)));
+        }
+        return min;
+    }
+
+    public void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    int getCounters() {
+        return counters.length();
+    }
+
+    /**
+     * The key's counter in one row is {@code counter(cell(row, hash))}; for estimates over
+     * several sketches of the same shape, which share their cells.
+     */
+    long counter(int cell) {
+        return counters.get(cell);
+    }
+
+    int cell(int row, long hash) {
+        int low = (int) hash;
+        int high = (int) (hash >>> 32) | 1;
+        return row * (mask + 1) + ((low + row * high) & mask);
+    }
+}
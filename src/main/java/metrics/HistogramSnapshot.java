@@ -0,0 +1,56 @@
+package metrics;
+
+/**
+ * Point in time copy of a {@link LatencyHistogram}.
+ */
+public class HistogramSnapshot {
+
+    static final HistogramSnapshot EMPTY = new HistogramSnapshot(new long[LatencyHistogram.BUCKETS], 0, 0, 0);
+
+    private final long[] counts;
+    private final long count;
+    private final long sumMicros;
+    private final long maxMicros;
+
+    HistogramSnapshot(long[] counts, long count, long sumMicros, long maxMicros) {
+        this.counts = counts;
+        this.count = count;
+        this.sumMicros = sumMicros;
+        this.maxMicros = maxMicros;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    public double getMeanMicros() {
+        return count == 0 ? 0 : (double) sumMicros / count;
+    }
+
+    /**
+     * @param percentile in [0, 100]
+     * @return the upper bound of the bucket holding that percentile, 0 when empty
+     */
+    public long percentileMicros(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.highestValue(i), maxMicros);
+            }
+        }
+        return maxMicros;
+    }
+
+    public double percentileMillis(double percentile) {
+        return percentileMicros(percentile) / 1000.0;
+    }
+}
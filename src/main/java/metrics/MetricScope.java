@@ -0,0 +1,119 @@
+package metrics;
+
+/**
+ * What one session records into: the process wide set, its Signal instance and its account.
+ * Channel events also go to the channel's set. Messages are also counted in the registry's
+ * traffic trackers: per channel, and per account for the account that wrote them.
+ */
+public class MetricScope {
+
+    private final SignalMetrics registry;
+    private final String account;
+    private final MetricSet[] sets;
+
+    MetricScope(SignalMetrics registry, String account, MetricSet... sets) {
+        this.registry = registry;
+        this.account = account;
+        this.sets = sets;
+    }
+
+    public void recordLogin(long nanos) {
+        for (MetricSet set : sets) {
+            set.recordLogin(nanos);
+        }
+    }
+
+    public void loginFailed() {
+        for (MetricSet set : sets) {
+            set.loginFailed();
+        }
+    }
+
+    public void timedOut() {
+        for (MetricSet set : sets) {
+            set.timedOut();
+        }
+    }
+
+    public void recordJoin(String channel, long nanos) {
+        for (MetricSet set : sets) {
+            set.recordJoin(nanos);
+        }
+        registry.channel(channel).recordJoin(nanos);
+    }
+
+    public void joinFailed(String channel) {
+        for (MetricSet set : sets) {
+            set.joinFailed();
+        }
+        registry.channel(channel).joinFailed();
+    }
+
+    public void sent() {
+        for (MetricSet set : sets) {
+            set.sent();
+        }
+        registry.getAccountTraffic().record(account);
+    }
+
+    public void sentToChannel(String channel) {
+        sent();
+        registry.channel(channel).sent();
+        registry.getChannelTraffic().record(channel);
+    }
+
+    public void recordSendAck(long nanos) {
+        for (MetricSet set : sets) {
+            set.recordSendAck(nanos);
+        }
+    }
+
+    public void sendFailed() {
+        for (MetricSet set : sets) {
+            set.sendFailed();
+        }
+    }
+
+    /**
+     * @param peer the account that wrote the message
+     */
+    public void received(String peer) {
+        for (MetricSet set : sets) {
+            set.received();
+        }
+        if (peer != null && !peer.equals(account)) {
+            // the account's own channel messages come back, and were counted when sent
+            registry.getAccountTraffic().record(peer);
+        }
+    }
+
+    public void reconnectAttempted() {
+        for (MetricSet set : sets) {
+            set.reconnectAttempted();
+        }
+    }
+
+    public void recordRecovery(long nanos) {
+        for (MetricSet set : sets) {
+            set.recordRecovery(nanos);
+        }
+    }
+
+    public void recoveryFailed() {
+        for (MetricSet set : sets) {
+            set.recoveryFailed();
+        }
+    }
+
+    public void recordFirstConversation(long nanos) {
+        for (MetricSet set : sets) {
+            set.recordFirstConversation(nanos);
+        }
+    }
+
+    public void receivedFromChannel(String channel, String peer) {
+        received(peer);
+        registry.channel(channel).received();
+        registry.getChannelTraffic().record(channel);
+    }
+}
@@ -0,0 +1,344 @@
+package metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for one scope: the whole process, one Signal instance, one
+ * account or one channel. Histograms are only allocated once something is recorded, so
+ * scopes that never log in or send cost a few adders.
+ */
+public class MetricSet implements MetricSetMXBean {
+
+    private final String scope;
+    private final String name;
+
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder loginFailures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder joinFailures = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final RateMeter received = new RateMeter();
+    private final LongAdder reconnectAttempts = new LongAdder();
+    private final LongAdder recoveries = new LongAdder();
+    private final LongAdder recoveryFailures = new LongAdder();
+
+    private volatile LatencyHistogram loginLatency;
+    private volatile LatencyHistogram joinLatency;
+    private volatile LatencyHistogram sendAckLatency;
+    private volatile LatencyHistogram recoveryTime;
+    private volatile LatencyHistogram firstConversationTime;
+
+    public MetricSet(String scope, String name) {
+        this.scope = scope;
+        this.name = name;
+    }
+
+    public void recordLogin(long nanos) {
+        logins.increment();
+        loginHistogram().recordNanos(nanos);
+    }
+
+    public void loginFailed() {
+        loginFailures.increment();
+    }
+
+    public void timedOut() {
+        timeouts.increment();
+    }
+
+    public void recordJoin(long nanos) {
+        joins.increment();
+        joinHistogram().recordNanos(nanos);
+    }
+
+    public void joinFailed() {
+        joinFailures.increment();
+    }
+
+    public void sent() {
+        sent.increment();
+    }
+
+    public void recordSendAck(long nanos) {
+        acked.increment();
+        sendAckHistogram().recordNanos(nanos);
+    }
+
+    public void sendFailed() {
+        sendFailures.increment();
+    }
+
+    public void received() {
+        received.mark();
+    }
+
+    public void reconnectAttempted() {
+        reconnectAttempts.increment();
+    }
+
+    /**
+     * Time from losing a session to being logged in again with its channels rejoined.
+     */
+    public void recordRecovery(long nanos) {
+        recoveries.increment();
+        recoveryHistogram().recordNanos(nanos);
+    }
+
+    public void recoveryFailed() {
+        recoveryFailures.increment();
+    }
+
+    /**
+     * Time from starting to open an account's stored history to its first conversation being
+     * readable.
+     */
+    public void recordFirstConversation(long nanos) {
+        firstConversationHistogram().recordNanos(nanos);
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLoginCount() {
+        return logins.sum();
+    }
+
+    public long getLoginFailureCount() {
+        return loginFailures.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    public long getJoinCount() {
+        return joins.sum();
+    }
+
+    public long getJoinFailureCount() {
+        return joinFailures.sum();
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getAckedCount() {
+        return acked.sum();
+    }
+
+    public long getSendFailureCount() {
+        return sendFailures.sum();
+    }
+
+    public long getReceivedCount() {
+        return received.getCount();
+    }
+
+    public double getReceiveRatePerSecond() {
+        return received.getRate();
+    }
+
+    public long getReconnectAttemptCount() {
+        return reconnectAttempts.sum();
+    }
+
+    public long getRecoveryCount() {
+        return recoveries.sum();
+    }
+
+    public long getRecoveryFailureCount() {
+        return recoveryFailures.sum();
+    }
+
+    public HistogramSnapshot getLoginLatency() {
+        return snapshot(loginLatency);
+    }
+
+    public HistogramSnapshot getJoinLatency() {
+        return snapshot(joinLatency);
+    }
+
+    public HistogramSnapshot getSendAckLatency() {
+        return snapshot(sendAckLatency);
+    }
+
+    public HistogramSnapshot getRecoveryTime() {
+        return snapshot(recoveryTime);
+    }
+
+    public HistogramSnapshot getFirstConversationTime() {
+        return snapshot(firstConversationTime);
+    }
+
+    public double getLoginP50Millis() {
+        return getLoginLatency().percentileMillis(50);
+    }
+
+    public double getLoginP99Millis() {
+        return getLoginLatency().percentileMillis(99);
+    }
+
+    public double getJoinP50Millis() {
+        return getJoinLatency().percentileMillis(50);
+    }
+
+    public double getJoinP99Millis() {
+        return getJoinLatency().percentileMillis(99);
+    }
+
+    public double getSendAckP50Millis() {
+        return getSendAckLatency().percentileMillis(50);
+    }
+
+    public double getSendAckP99Millis() {
+        return getSendAckLatency().percentileMillis(99);
+    }
+
+    public double getSendAckMaxMillis() {
+        return getSendAckLatency().getMaxMicros() / 1000.0;
+    }
+
+    public double getRecoveryP50Millis() {
+        return getRecoveryTime().percentileMillis(50);
+    }
+
+    public double getRecoveryP99Millis() {
+        return getRecoveryTime().percentileMillis(99);
+    }
+
+    public long getFirstConversationCount() {
+        return getFirstConversationTime().getCount();
+    }
+
+    public double getFirstConversationP50Millis() {
+        return getFirstConversationTime().percentileMillis(50);
+    }
+
+    public double getFirstConversationP99Millis() {
+        return getFirstConversationTime().percentileMillis(99);
+    }
+
+    /**
+     * One line, e.g. {@code instance app0 login n=10 p50=12.1ms p99=40.3ms ...}.
+     */
+    public String toText() {
+        return String.format(Locale.ROOT, "%s %s login %s fail=%d timeout=%d | join %s fail=%d | send=%d ack %s fail=%d | recv=%d %.1f/s | recover %s fail=%d attempts=%d | first conversation %s",
+                scope, name, latencyText(getLoginLatency()), getLoginFailureCount(), getTimeoutCount(),
+                latencyText(getJoinLatency()), getJoinFailureCount(), getSentCount(), latencyText(getSendAckLatency()),
+                getSendFailureCount(), getReceivedCount(), getReceiveRatePerSecond(), latencyText(getRecoveryTime()),
+                getRecoveryFailureCount(), getReconnectAttemptCount(), latencyText(getFirstConversationTime()));
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"scope\":").append(SignalMetrics.quote(scope))
+                .append(",\"name\":").append(SignalMetrics.quote(name))
+                .append(",\"login\":").append(latencyJson(getLoginLatency()))
+                .append(",\"loginFailures\":").append(getLoginFailureCount())
+                .append(",\"timeouts\":").append(getTimeoutCount())
+                .append(",\"join\":").append(latencyJson(getJoinLatency()))
+                .append(",\"joinFailures\":").append(getJoinFailureCount())
+                .append(",\"sent\":").append(getSentCount())
+                .append(",\"sendAck\":").append(latencyJson(getSendAckLatency()))
+                .append(",\"sendFailures\":").append(getSendFailureCount())
+                .append(",\"received\":").append(getReceivedCount())
+                .append(",\"receivedPerSecond\":").append(String.format(Locale.ROOT, "%.2f", getReceiveRatePerSecond()))
+                .append(",\"recovery\":").append(latencyJson(getRecoveryTime()))
+                .append(",\"recoveryFailures\":").append(getRecoveryFailureCount())
+                .append(",\"reconnectAttempts\":").append(getReconnectAttemptCount())
+                .append(",\"firstConversation\":").append(latencyJson(getFirstConversationTime()))
+                .append('}');
+        return json.toString();
+    }
+
+    private static String latencyText(HistogramSnapshot latency) {
+        return String.format(Locale.ROOT, "n=%d p50=%.2fms p99=%.2fms max=%.2fms", latency.getCount(),
+                latency.percentileMillis(50), latency.percentileMillis(99), latency.getMaxMicros() / 1000.0);
+    }
+
+    private static String latencyJson(HistogramSnapshot latency) {
+        return String.format(Locale.ROOT, "{\"count\":%d,\"meanMs\":%.3f,\"p50Ms\":%.3f,\"p90Ms\":%.3f,\"p99Ms\":%.3f,\"p999Ms\":%.3f,\"maxMs\":%.3f}",
+                latency.getCount(), latency.getMeanMicros() / 1000.0, latency.percentileMillis(50),
+                latency.percentileMillis(90), latency.percentileMillis(99), latency.percentileMillis(99.9),
+                latency.getMaxMicros() / 1000.0);
+    }
+
+    private static HistogramSnapshot snapshot(LatencyHistogram histogram) {
+        return histogram == null ? HistogramSnapshot.EMPTY : histogram.snapshot();
+    }
+
+    private LatencyHistogram loginHistogram() {
+        LatencyHistogram histogram = loginLatency;
+        if (histogram == null) {
+            synchronized (this) {
+                if (loginLatency == null) {
+                    loginLatency = new LatencyHistogram();
+                }
+                histogram = loginLatency;
+            }
+        }
+        return histogram;
+    }
+
+    private LatencyHistogram joinHistogram() {
+        LatencyHistogram histogram = joinLatency;
+        if (histogram == null) {
+            synchronized (this) {
+                if (joinLatency == null) {
+                    joinLatency = new LatencyHistogram();
+                }
+                histogram = joinLatency;
+            }
+        }
+        return histogram;
+    }
+
+    private LatencyHistogram sendAckHistogram() {
+        LatencyHistogram histogram = sendAckLatency;
+        if (histogram == null) {
+            synchronized (this) {
+                if (sendAckLatency == null) {
+                    sendAckLatency = new LatencyHistogram();
+                }
+                histogram = sendAckLatency;
+            }
+        }
+        return histogram;
+    }
+
+    private LatencyHistogram firstConversationHistogram() {
+        LatencyHistogram histogram = firstConversationTime;
+        if (histogram == null) {
+            synchronized (this) {
+                if (firstConversationTime == null) {
+                    firstConversationTime = new LatencyHistogram();
+                }
+                histogram = firstConversationTime;
+            }
+        }
+        return histogram;
+    }
+
+    private LatencyHistogram recoveryHistogram() {
+        LatencyHistogram histogram = recoveryTime;
+        if (histogram == null) {
+            synchronized (this) {
+                if (recoveryTime == null) {
+                    recoveryTime = new LatencyHistogram();
+                }
+                histogram = recoveryTime;
+            }
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,61 @@
+package metrics;
+
+/**
+ * JMX view of one {@link MetricSet}. Latencies are in milliseconds.
+ */
+public interface MetricSetMXBean {
+
+    String getScope();
+
+    String getName();
+
+    long getLoginCount();
+
+    long getLoginFailureCount();
+
+    long getTimeoutCount();
+
+    long getJoinCount();
+
+    long getJoinFailureCount();
+
+    long getSentCount();
+
+    long getAckedCount();
+
+    long getSendFailureCount();
+
+    long getReceivedCount();
+
+    double getReceiveRatePerSecond();
+
+    double getLoginP50Millis();
+
+    double getLoginP99Millis();
+
+    double getJoinP50Millis();
+
+    double getJoinP99Millis();
+
+    double getSendAckP50Millis();
+
+    double getSendAckP99Millis();
+
+    double getSendAckMaxMillis();
+
+    long getReconnectAttemptCount();
+
+    long getRecoveryCount();
+
+    long getRecoveryFailureCount();
+
+    double getRecoveryP50Millis();
+
+    double getRecoveryP99Millis();
+
+    long getFirstConversationCount();
+
+    double getFirstConversationP50Millis();
+
+    double getFirstConversationP99Millis();
+}
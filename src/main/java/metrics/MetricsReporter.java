@@ -0,0 +1,56 @@
+package metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends a snapshot of a {@link SignalMetrics} to a file at a fixed interval: one JSON
+ * object per line, or the text form followed by a blank line.
+ */
+public class MetricsReporter {
+
+    private final SignalMetrics metrics;
+    private final File file;
+    private final boolean json;
+    private final ScheduledExecutorService timer;
+
+    private MetricsReporter(SignalMetrics metrics, File file, boolean json) {
+        this.metrics = metrics;
+        this.file = file;
+        this.json = json;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static MetricsReporter start(SignalMetrics metrics, long intervalMs, File file, boolean json) {
+        MetricsReporter reporter = new MetricsReporter(metrics, file, json);
+        reporter.timer.scheduleAtFixedRate(reporter::report, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        return reporter;
+    }
+
+    public void stop() {
+        timer.shutdown();
+    }
+
+    /**
+     * Writes one snapshot now.
+     */
+    public void report() {
+        String snapshot = json ? metrics.getSnapshotJson() + "\n" : metrics.getSnapshotText() + "\n\n";
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            out.write(snapshot);
+        } catch (IOException e) {
+            // keep reporting; the next interval may succeed
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events and reports their recent rate. Marking is a {@link LongAdder} increment; the
+ * rate is sampled when read, at most once a second, and smoothed over the last samples.
+ */
+public class RateMeter {
+
+    private final LongAdder count = new LongAdder();
+    private long sampledAt = System.nanoTime();
+    private long sampledCount;
+    private double rate;
+
+    public void mark() {
+        count.increment();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Events per second.
+     */
+    public synchronized double getRate() {
+        long now = System.nanoTime();
+        long elapsed = now - sampledAt;
+        if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+            long current = count.sum();
+            double sample = (current - sampledCount) * 1e9 / elapsed;
+            rate = elapsed >= TimeUnit.SECONDS.toNanos(10) ? sample : (rate + sample) / 2;
+            sampledCount = current;
+            sampledAt = now;
+        }
+        return rate;
+    }
+}
@@ -0,0 +1,234 @@
+package metrics;
+
+import tool.Constant;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process wide registry of {@link MetricSet}s, broken down by Signal instance, account and
+ * channel. The global set and each instance are registered as MXBeans under
+ * {@code agora.signal:type=Metrics}; accounts and channels are read through the registry's
+ * own bean. Each breakdown keeps at most {@link Constant#METRICS_MAX_KEYS} names, later ones
+ * share an {@code (other)} set.
+ * <p>
+ * Message traffic per channel and per account is also kept in two {@link TrafficTracker}s,
+ * which cover every name in fixed memory and know the heaviest ones over the last minute.
+ */
+public class SignalMetrics implements SignalMetricsMXBean {
+
+    public static final String DOMAIN = "agora.signal";
+    private static final String OTHER = "(other)";
+    private static final int TOP_SHOWN = 10;
+
+    private static volatile SignalMetrics instance;
+
+    private final int maxKeys;
+    private final MetricSet global = new MetricSet("global", "all");
+    private final ConcurrentHashMap<String, MetricSet> instances = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, MetricSet> accounts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, MetricSet> channels = new ConcurrentHashMap<>();
+    private final TrafficTracker channelTraffic;
+    private final TrafficTracker accountTraffic;
+    private final boolean registerBeans;
+
+    public SignalMetrics(int maxKeys, boolean registerBeans) {
+        this.maxKeys = maxKeys;
+        this.registerBeans = registerBeans;
+        this.channelTraffic = traffic("channels");
+        this.accountTraffic = traffic("accounts");
+        if (registerBeans) {
+            register(this, "type=Metrics,name=registry");
+            register(global, "type=Metrics,scope=global");
+        }
+    }
+
+    /**
+     * The registry the client records into; starts the periodic report when
+     * {@link Constant#METRICS_REPORT_INTERVAL} is set.
+     */
+    public static SignalMetrics get() {
+        SignalMetrics metrics = instance;
+        if (metrics == null) {
+            synchronized (SignalMetrics.class) {
+                if (instance == null) {
+                    instance = new SignalMetrics(Constant.METRICS_MAX_KEYS, true);
+                    if (Constant.METRICS_REPORT_INTERVAL > 0) {
+                        MetricsReporter.start(instance, Constant.METRICS_REPORT_INTERVAL,
+                                new File(Constant.METRICS_REPORT_FILE), Constant.METRICS_REPORT_JSON);
+                    }
+                }
+                metrics = instance;
+            }
+        }
+        return metrics;
+    }
+
+    public MetricScope scope(String instanceName, String account) {
+        return new MetricScope(this, account, global, instance(instanceName), account(account));
+    }
+
+    public TrafficTracker getChannelTraffic() {
+        return channelTraffic;
+    }
+
+    public TrafficTracker getAccountTraffic() {
+        return accountTraffic;
+    }
+
+    public MetricSet global() {
+        return global;
+    }
+
+    public MetricSet instance(String name) {
+        if (name == null) {
+            name = OTHER;
+        }
+        MetricSet set = instances.get(name);
+        if (set == null) {
+            set = lookup(instances, "instance", name);
+            if (registerBeans && set.getName().equals(name)) {
+                register(set, "type=Metrics,scope=instance,name=" + ObjectName.quote(name));
+            }
+        }
+        return set;
+    }
+
+    public MetricSet account(String name) {
+        if (name == null) {
+            name = OTHER;
+        }
+        MetricSet set = accounts.get(name);
+        return set != null ? set : lookup(accounts, "account", name);
+    }
+
+    public MetricSet channel(String name) {
+        if (name == null) {
+            name = OTHER;
+        }
+        MetricSet set = channels.get(name);
+        return set != null ? set : lookup(channels, "channel", name);
+    }
+
+    public String getSnapshotText() {
+        StringBuilder text = new StringBuilder(global.toText());
+        for (MetricSet set : sorted(instances).values()) {
+            text.append('\n').append(set.toText());
+        }
+        for (MetricSet set : sorted(channels).values()) {
+            text.append('\n').append(set.toText());
+        }
+        text.append('\n').append(channelTraffic.toText(TOP_SHOWN));
+        text.append('\n').append(accountTraffic.toText(TOP_SHOWN));
+        return text.toString();
+    }
+
+    /**
+     * Everything, accounts included, as one JSON object.
+     */
+    public String getSnapshotJson() {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"time\":").append(System.currentTimeMillis())
+                .append(",\"global\":").append(global.toJson());
+        appendJson(json, "instances", instances);
+        appendJson(json, "accounts", accounts);
+        appendJson(json, "channels", channels);
+        json.append(",\"topChannels\":").append(channelTraffic.topJson(TOP_SHOWN))
+                .append(",\"topAccounts\":").append(accountTraffic.topJson(TOP_SHOWN));
+        return json.append('}').toString();
+    }
+
+    public String accountJson(String account) {
+        MetricSet set = account == null ? null : accounts.get(account);
+        return set == null ? "null" : set.toJson();
+    }
+
+    public String channelJson(String channel) {
+        MetricSet set = channel == null ? null : channels.get(channel);
+        return set == null ? "null" : set.toJson();
+    }
+
+    public String topChannelsJson(int n) {
+        return channelTraffic.topJson(n);
+    }
+
+    public String topAccountsJson(int n) {
+        return accountTraffic.topJson(n);
+    }
+
+    /**
+     * Estimated messages and rate of one channel, and its count per slot of the window; works
+     * for any channel, tracked as a heavy hitter or not.
+     */
+    public String channelTrafficJson(String channel) {
+        return channel == null ? "null" : channelTraffic.keyJson(channel);
+    }
+
+    public String accountTrafficJson(String account) {
+        return account == null ? "null" : accountTraffic.keyJson(account);
+    }
+
+    private static TrafficTracker traffic(String name) {
+        return new TrafficTracker(name, Constant.TRAFFIC_SKETCH_DEPTH, Constant.TRAFFIC_SKETCH_WIDTH,
+                Constant.TRAFFIC_WINDOW_SLOTS, Constant.TRAFFIC_SLOT_MILLIS, Constant.TRAFFIC_TOP_K);
+    }
+
+    private MetricSet lookup(ConcurrentHashMap<String, MetricSet> sets, String scope, String name) {
+        if (sets.size() >= maxKeys && !sets.containsKey(name)) {
+            name = OTHER;
+        }
+        final String key = name;
+        return sets.computeIfAbsent(key, k -> new MetricSet(scope, key));
+    }
+
+    private static void appendJson(StringBuilder json, String field, Map<String, MetricSet> sets) {
+        json.append(",\"").append(field).append("\":[");
+        boolean first = true;
+        for (MetricSet set : sorted(sets).values()) {
+            if (!first) {
+                json.append(',');
+            }
+            json.append(set.toJson());
+            first = false;
+        }
+        json.append(']');
+    }
+
+    private static Map<String, MetricSet> sorted(Map<String, MetricSet> sets) {
+        return new TreeMap<>(sets);
+    }
+
+    private static void register(Object bean, String properties) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(bean, name);
+            }
+        } catch (JMException e) {
+            // metrics are best effort, a clash with another registry must not stop the client
+        }
+    }
+
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,23 @@
+package metrics;
+
+/**
+ * JMX entry point for the breakdowns that have too many members to register one bean each.
+ */
+public interface SignalMetricsMXBean {
+
+    String getSnapshotText();
+
+    String getSnapshotJson();
+
+    String accountJson(String account);
+
+    String channelJson(String channel);
+
+    String topChannelsJson(int n);
+
+    String topAccountsJson(int n);
+
+    String channelTrafficJson(String channel);
+
+    String accountTrafficJson(String account);
+}
@@ -0,0 +1,361 @@
+package metrics;
+
+import tool.StringHash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Traffic per key (channel or account) in fixed memory, however many keys there are. One
+ * {@link CountMinSketch} counts everything since start; a ring of {@code slots} more count
+ * the last few time slots, so any key's recent rate, and how it changed slot by slot, can be
+ * estimated without a counter per key. Each slot is tagged with the time slot its counts
+ * belong to: the first writer of a new time slot clears it under the slot's lock before
+ * counting, and readers skip slots whose tag is stale, so nothing is cleared while it counts
+ * and slots skipped while idle cost nothing. The window is the current slot and the
+ * {@code slots - 2} before it.
+ * <p>
+ * The heaviest keys of the window are tracked as up to {@code topK} candidates. A key is only
+ * looked up when it is not a candidate already, and only becomes one by beating the lightest
+ * candidate, so the hot keys pass with their sketch increments alone.
+ */
+public class TrafficTracker {
+
+    private final String name;
+    private final long slotNanos;
+    private final int topK;
+    private final long started = System.nanoTime();
+    private final CountMinSketch total;
+    private final CountMinSketch[] slots;
+    private final AtomicLongArray tags;
+    private final AtomicLong epoch;
+    private final ConcurrentHashMap<String, Long> candidates = new ConcurrentHashMap<>();
+    private volatile long floor;
+
+    /**
+     * @param slots     time slots kept, at least 3
+     * @param slotMillis length of one slot
+     * @param topK      heavy hitters tracked
+     */
+    public TrafficTracker(String name, int depth, int width, int slots, long slotMillis, int topK) {
+        if (slots < 3 || slotMillis <= 0 || topK <= 0) {
+            throw new IllegalArgumentException("need 3 or more slots, a positive slot length and top k");
+        }
+        this.name = name;
+        this.slotNanos = TimeUnit.MILLISECONDS.toNanos(slotMillis);
+        this.topK = topK;
+        this.total = new CountMinSketch(depth, width);
+        this.slots = new CountMinSketch[slots];
+        this.tags = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            this.slots[i] = new CountMinSketch(depth, width);
+            this.tags.set(i, Long.MIN_VALUE);
+        }
+        this.epoch = new AtomicLong(slotOf(started));
+    }
+
+    /**
+     * One message on {@code key}.
+     */
+    public void record(String key) {
+        if (key == null) {
+            return;
+        }
+        long hash = StringHash.hash(key);
+        long current = advance(System.nanoTime());
+        CountMinSketch slot = open(current);
+        if (slot != null) {
+            slot.add(hash, 1);
+        }
+        total.add(hash, 1);
+        if (candidates.containsKey(key)) {
+            return;
+        }
+        long recent = windowCount(hash, current);
+        if (recent > floor || candidates.size() < topK) {
+            admit(key, hash, recent);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Estimated messages on {@code key} since start.
+     */
+    public long count(String key) {
+        return total.estimate(StringHash.hash(key));
+    }
+
+    /**
+     * Estimated messages per second on {@code key} over the window.
+     */
+    public double rate(String key) {
+        long now = System.nanoTime();
+        long current = advance(now);
+        return windowCount(StringHash.hash(key), current) / windowSeconds(now, current);
+    }
+
+    /**
+     * Estimated messages on {@code key} in each slot of the window, oldest first; the last
+     * slot is still filling.
+     */
+    public long[] series(String key) {
+        long hash = StringHash.hash(key);
+        long current = advance(System.nanoTime());
+        long[] series = new long[slots.length - 1];
+        for (int i = 0; i < series.length; i++) {
+            long slot = current - series.length + 1 + i;
+            series[i] = tags.get(index(slot)) == slot ? slots[index(slot)].estimate(hash) : 0;
+        }
+        return series;
+    }
+
+    /**
+     * The {@code n} heaviest keys of the window, heaviest first.
+     */
+    public List<Hitter> top(int n) {
+        long now = System.nanoTime();
+        long current = advance(now);
+        double seconds = windowSeconds(now, current);
+        List<Hitter> hitters = new ArrayList<>();
+        for (Map.Entry<String, Long> candidate : candidates.entrySet()) {
+            long recent = windowCount(candidate.getValue(), current);
+            if (recent > 0) {
+                hitters.add(new Hitter(candidate.getKey(), recent, recent / seconds, total.estimate(candidate.getValue())));
+            }
+        }
+        Collections.sort(hitters, (a, b) -> Long.compare(b.windowCount, a.windowCount));
+        return hitters.size() > n ? new ArrayList<>(hitters.subList(0, n)) : hitters;
+    }
+
+    /**
+     * Length of the window in seconds.
+     */
+    public double getWindowSeconds() {
+        return (slots.length - 1) * slotNanos / 1e9;
+    }
+
+    /**
+     * Heap held by the sketches, which is all the tracker needs apart from its candidates.
+     */
+    public long getSketchBytes() {
+        return (slots.length + 1L) * total.getCounters() * 8;
+    }
+
+    /**
+     * {@code {"name":..,"windowSeconds":..,"top":[{"key":..,"window":..,"perSecond":..,"total":..}]}}
+     */
+    public String topJson(int n) {
+        StringBuilder json = new StringBuilder(128 + 96 * n);
+        json.append("{\"name\":").append(SignalMetrics.quote(name))
+                .append(",\"windowSeconds\":").append(String.format(Locale.ROOT, "%.1f", getWindowSeconds()))
+                .append(",\"top\":[");
+        boolean first = true;
+        for (Hitter hitter : top(n)) {
+            if (!first) {
+                json.append(',');
+            }
+            json.append(hitter.toJson());
+            first = false;
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * {@code {"key":..,"total":..,"perSecond":..,"slotMillis":..,"series":[..]}} for one key.
+     */
+    public String keyJson(String key) {
+        StringBuilder json = new StringBuilder(128);
+        json.append("{\"key\":").append(SignalMetrics.quote(key))
+                .append(",\"total\":").append(count(key))
+                .append(",\"perSecond\":").append(String.format(Locale.ROOT, "%.2f", rate(key)))
+                .append(",\"slotMillis\":").append(TimeUnit.NANOSECONDS.toMillis(slotNanos))
+                .append(",\"series\":[");
+        long[] series = series(key);
+        for (int i = 0; i < series.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(series[i]);
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * One line, e.g. {@code channels top lobby 120.5/s (7230), news 3.0/s (180)}.
+     */
+    public String toText(int n) {
+        StringBuilder text = new StringBuilder(name).append(" top");
+        boolean first = true;
+        for (Hitter hitter : top(n)) {
+            text.append(first ? " " : ", ").append(String.format(Locale.ROOT, "%s %.1f/s (%d)",
+                    hitter.key, hitter.perSecond, hitter.windowCount));
+            first = false;
+        }
+        return text.toString();
+    }
+
+    /**
+     * A heavy key: messages in the window, their rate, and messages since start.
+     */
+    public static class Hitter {
+        private final String key;
+        private final long windowCount;
+        private final double perSecond;
+        private final long total;
+
+        Hitter(String key, long windowCount, double perSecond, long total) {
+            this.key = key;
+            this.windowCount = windowCount;
+            this.perSecond = perSecond;
+            this.total = total;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getWindowCount() {
+            return windowCount;
+        }
+
+        public double getPerSecond() {
+            return perSecond;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        String toJson() {
+            return String.format(Locale.ROOT, "{\"key\":%s,\"window\":%d,\"perSecond\":%.2f,\"total\":%d}",
+                    SignalMetrics.quote(key), windowCount, perSecond, total);
+        }
+    }
+
+    /**
+     * Makes {@code now}'s slot current, refreshing the candidates when it changes, and
+     * returns its number.
+     */
+    private long advance(long now) {
+        long current = slotOf(now);
+        long seen = epoch.get();
+        while (current > seen) {
+            if (epoch.compareAndSet(seen, current)) {
+                refresh(current);
+                break;
+            }
+            seen = epoch.get();
+        }
+        return current;
+    }
+
+    /**
+     * The sketch counting time slot {@code slot}, cleared of an earlier slot's counts first if
+     * its ring position still holds them; null if a later slot has taken the position already.
+     */
+    private CountMinSketch open(long slot) {
+        int i = index(slot);
+        if (tags.get(i) < slot) {
+            synchronized (slots[i]) {
+                if (tags.get(i) < slot) {
+                    slots[i].clear();
+                    tags.set(i, slot);
+                }
+            }
+        }
+        return tags.get(i) == slot ? slots[i] : null;
+    }
+
+    /**
+     * A key's count over the window: per row the sum over the slots, then the smallest row,
+     * which is tighter than adding up per slot estimates. Slots still holding an older time
+     * slot's counts are skipped.
+     */
+    private long windowCount(long hash, long current) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < total.getDepth(); row++) {
+            int cell = total.cell(row, hash);
+            long sum = 0;
+            for (long slot = current; slot > current - (slots.length - 1); slot--) {
+                int i = index(slot);
+                if (tags.get(i) == slot) {
+                    sum += slots[i].counter(cell);
+                }
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    private double windowSeconds(long now, long current) {
+        long covered = (slots.length - 2) * slotNanos + (now - current * slotNanos);
+        return Math.max(1e-3, Math.min(covered, now - started) / 1e9);
+    }
+
+    private synchronized void admit(String key, long hash, long recent) {
+        if (candidates.containsKey(key)) {
+            return;
+        }
+        long current = epoch.get();
+        if (candidates.size() >= topK) {
+            String lightest = null;
+            long min = Long.MAX_VALUE;
+            for (Map.Entry<String, Long> candidate : candidates.entrySet()) {
+                long count = windowCount(candidate.getValue(), current);
+                if (count < min) {
+                    min = count;
+                    lightest = candidate.getKey();
+                }
+            }
+            if (recent <= min) {
+                floor = min;
+                return;
+            }
+            candidates.remove(lightest);
+        }
+        candidates.put(key, hash);
+        updateFloor(current);
+    }
+
+    /**
+     * Drops candidates that left the window and recomputes the admission floor.
+     */
+    private synchronized void refresh(long current) {
+        for (Map.Entry<String, Long> candidate : candidates.entrySet()) {
+            if (windowCount(candidate.getValue(), current) == 0) {
+                candidates.remove(candidate.getKey());
+            }
+        }
+        updateFloor(current);
+    }
+
+    private void updateFloor(long current) {
+        if (candidates.size() < topK) {
+            floor = 0;
+            return;
+        }
+        long min = Long.MAX_VALUE;
+        for (Long hash : candidates.values()) {
+            min = Math.min(min, windowCount(hash, current));
+        }
+        floor = min;
+    }
+
+    private long slotOf(long nanos) {
+        return Math.floorDiv(nanos, slotNanos);
+    }
+
+    private int index(long slot) {
+        return (int) Math.floorMod(slot, (long) slots.length);
+    }
+}
@@ -0,0 +1,46 @@
+package model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide dictionary of account names. Records keep the int id instead of their own
+ * String copy, so each distinct account name is held once no matter how many messages it sent.
+ */
+public class AccountDictionary {
+
+	private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private static volatile String[] names = new String[256];
+	private static int size;
+
+	public static int idOf(String account) {
+		Integer id = ids.get(account);
+		if (id != null) {
+			return id;
+		}
+		synchronized (AccountDictionary.class) {
+			id = ids.get(account);
+			if (id != null) {
+				return id;
+			}
+			String[] current = names;
+			if (size == current.length) {
+				current = Arrays.copyOf(current, size * 2);
+			}
+			current[size] = account;
+			names = current;
+			id = size++;
+			// publish the name before the id becomes visible to other threads
+			ids.put(account, id);
+			return id;
+		}
+	}
+
+	public static String nameOf(int id) {
+		return names[id];
+	}
+
+	public static synchronized int size() {
+		return size;
+	}
+}
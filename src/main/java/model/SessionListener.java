@@ -0,0 +1,50 @@
+package model;
+
+import java.util.Set;
+
+/**
+ * What happens to an account of a {@link mainclass.SessionManager}, for display. Everything
+ * has been recorded in the account's history before these are called, on SDK callback threads.
+ * Every method has an empty default so callers only override what they need.
+ */
+public abstract class SessionListener {
+
+	public void onInstantMessage(User user, String peer, String msg) {
+	}
+
+	public void onInstantMessageSent(User user, String peer, String msg) {
+	}
+
+	public void onSendError(User user, String peer, int ecode) {
+	}
+
+	public void onChannelMessage(User user, String channel, String peer, String msg) {
+	}
+
+	public void onChannelUserList(User user, String channel, int count) {
+	}
+
+	public void onChannelUserJoined(User user, String channel, String account) {
+	}
+
+	public void onChannelUserLeft(User user, String channel, String account) {
+	}
+
+	/**
+	 * The account is no longer in {@code channel}, because it left or was removed.
+	 */
+	public void onChannelLeft(User user, String channel, int ecode) {
+	}
+
+	public void onReconnecting(User user, String reason) {
+	}
+
+	public void onReconnected(User user, long nanos, Set<String> lostChannels) {
+	}
+
+	/**
+	 * The account is gone from the manager; {@code reason} is null for a requested logout.
+	 */
+	public void onLoggedOut(User user, String reason) {
+	}
+}
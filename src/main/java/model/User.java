@@ -1,32 +1,64 @@
-
 package model;
 
-import io.agora.signal.Signal;
-import io.agora.signal.Signal.LoginSession;
-import io.agora.signal.Signal.LoginSession.Channel;
+import history.HistoryBudget;
+import history.HistoryIndex;
+import history.HistoryStore;
+import history.MessageLog;
+import history.TextIndex;
+import metrics.MetricScope;
+import presence.ChannelMembership;
+import transport.OutboundQueue;
+import transport.SignalTransport;
+import transport.TransportChannel;
+import transport.TransportSession;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * One logged in account and everything it owns: its session, the channels it is in, its
+ * history with the indexes over it, and who is in its channels. Callbacks of the account
+ * update only its own User, so accounts never wait on each other.
+ */
 public class User {
 	
 
-	public User(LoginSession session, String account, int uid) {
+	/**
+	 * @param budget        memory budget the account's history shares with other accounts
+	 * @param indexCapacity most records kept by each of the account's history and text indexes,
+	 *                      which only take memory for the records they hold
+	 */
+	public User(String account, SignalTransport transport, HistoryBudget budget, int indexCapacity) {
 		super();
-		this.session = session;
 		this.account = account;
-		this.uid = uid;
+		this.transport = transport;
+		history = new HistoryStore(budget);
+		historyIndex = new HistoryIndex(indexCapacity);
+		history.addSink(historyIndex);
+		textIndex = new TextIndex(indexCapacity);
+		history.addSink(textIndex);
 	}
 	
-	private Signal.LoginSession session;
-	private Channel channel;
+	private volatile TransportSession session;
+	private final Map<String, TransportChannel> channels = new ConcurrentHashMap<String, TransportChannel>();
+	private OutboundQueue outbound;
 	private String account;
 	private int uid;
-    private CountDownLatch loginLatch;
-    private CountDownLatch logoutLatch = new CountDownLatch(1);
-	public Signal.LoginSession getSession() {
+	private final SignalTransport transport;
+	private final HistoryStore history;
+	private final HistoryIndex historyIndex;
+	private final TextIndex textIndex;
+	private final ChannelMembership membership = new ChannelMembership();
+	private MessageLog recordLog;
+	private MetricScope metrics;
+	private SessionListener listener;
+	private final AtomicBoolean reconnecting = new AtomicBoolean();
+	private volatile boolean logoutRequested;
+	public TransportSession getSession() {
 		return session;
 	}
-	public void setSession(Signal.LoginSession session) {
+	public void setSession(TransportSession session) {
 		this.session = session;
 	}
 	public String getAccount() {
@@ -41,20 +73,71 @@ public class User {
 	public void setUid(int uid) {
 		this.uid = uid;
 	}
-	public CountDownLatch getLoginLatch() {
-		return loginLatch;
+	/**
+	 * The joined channel called {@code name}, or null.
+	 */
+	public TransportChannel getChannel(String name) {
+		return channels.get(name);
+	}
+	public Map<String, TransportChannel> getChannels() {
+		return channels;
+	}
+	public void addChannel(TransportChannel channel) {
+		channels.put(channel.getName(), channel);
+	}
+	public TransportChannel removeChannel(String name) {
+		return channels.remove(name);
+	}
+	public OutboundQueue getOutbound() {
+		return outbound;
+	}
+	public void setOutbound(OutboundQueue outbound) {
+		this.outbound = outbound;
+	}
+	public SignalTransport getTransport() {
+		return transport;
+	}
+	public HistoryStore getHistory() {
+		return history;
+	}
+	public HistoryIndex getHistoryIndex() {
+		return historyIndex;
+	}
+	public TextIndex getTextIndex() {
+		return textIndex;
+	}
+	public ChannelMembership getMembership() {
+		return membership;
+	}
+	public MessageLog getRecordLog() {
+		return recordLog;
+	}
+	public void setRecordLog(MessageLog recordLog) {
+		this.recordLog = recordLog;
+	}
+	public MetricScope getMetrics() {
+		return metrics;
+	}
+	public void setMetrics(MetricScope metrics) {
+		this.metrics = metrics;
+	}
+	public SessionListener getListener() {
+		return listener;
 	}
-	public CountDownLatch getLogoutLatch() {
-		return logoutLatch;
+	public void setListener(SessionListener listener) {
+		this.listener = listener;
 	}
-	public void setLoginLatch(CountDownLatch loginLatch) {
-		this.loginLatch = loginLatch;
+	/**
+	 * Set while a lost session is being replaced, so that only one recovery runs.
+	 */
+	public AtomicBoolean getReconnecting() {
+		return reconnecting;
 	}
-	public Channel getChannel() {
-		return channel;
+	public boolean isLogoutRequested() {
+		return logoutRequested;
 	}
-	public void setChannel(Channel channel) {
-		this.channel = channel;
+	public void setLogoutRequested(boolean logoutRequested) {
+		this.logoutRequested = logoutRequested;
 	}
 	
 }
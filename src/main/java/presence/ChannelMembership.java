@@ -0,0 +1,102 @@
+package presence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who is in each joined channel. A channel's set is seeded from the user list the service
+ * sends after a join and kept current from join and leave events, so membership and count
+ * queries never go to the service. Events arrive on callback threads while the console
+ * reads, hence the concurrent sets.
+ */
+public class ChannelMembership {
+
+    private final ConcurrentHashMap<String, Set<String>> channels = new ConcurrentHashMap<>();
+
+    /**
+     * Replaces what is known about {@code channel} with the service's user list.
+     */
+    public void seed(String channel, Collection<String> users) {
+        Set<String> members = ConcurrentHashMap.newKeySet(Math.max(16, users.size() * 2));
+        members.addAll(users);
+        channels.put(channel, members);
+    }
+
+    public void joined(String channel, String account) {
+        members(channel).add(account);
+    }
+
+    public void left(String channel, String account) {
+        Set<String> members = channels.get(channel);
+        if (members != null) {
+            members.remove(account);
+        }
+    }
+
+    /**
+     * Forgets a channel this session left.
+     */
+    public void clear(String channel) {
+        channels.remove(channel);
+    }
+
+    public void clear() {
+        channels.clear();
+    }
+
+    public boolean contains(String channel, String account) {
+        Set<String> members = channels.get(channel);
+        return members != null && members.contains(account);
+    }
+
+    /**
+     * Members of {@code channel}, or -1 if its user list has not arrived and nobody joined since.
+     */
+    public int count(String channel) {
+        Set<String> members = channels.get(channel);
+        return members == null ? -1 : members.size();
+    }
+
+    /**
+     * True if {@code account} is in any known channel, i.e. seen online without asking.
+     */
+    public boolean isMemberAnywhere(String account) {
+        for (Set<String> members : channels.values()) {
+            if (members.contains(account)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<String> members(String channel, int limit) {
+        Set<String> members = channels.get(channel);
+        if (members == null) {
+            return Collections.emptyList();
+        }
+        List<String> list = new ArrayList<>(Math.min(limit, members.size()));
+        for (String member : members) {
+            if (list.size() >= limit) {
+                break;
+            }
+            list.add(member);
+        }
+        return list;
+    }
+
+    private Set<String> members(String channel) {
+        Set<String> members = channels.get(channel);
+        if (members == null) {
+            Set<String> created = ConcurrentHashMap.newKeySet();
+            members = channels.putIfAbsent(channel, created);
+            if (members == null) {
+                members = created;
+            }
+        }
+        return members;
+    }
+}
@@ -0,0 +1,248 @@
+package presence;
+
+import transport.AsyncSignalClient;
+import transport.PresenceListener;
+import transport.TransportSession;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Online status of P2P peers, kept for {@code ttlMs}. A status that is missing or expired is
+ * looked up, but not right away: lookups wait up to {@code batchDelayMs} so that everything
+ * asked for meanwhile goes out as one {@link TransportSession#queryUserStatus} call of at most
+ * {@code maxBatch} accounts, and an account asked for twice before the answer shares the
+ * first lookup. Events that prove an account online, like a message from it, refresh the
+ * cache without asking. Lookups need a session that can answer them; on one that cannot,
+ * like the Agora SDK's, statuses stay unknown unless such events tell.
+ */
+public class PresenceCache {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "signal-presence");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final long ttlMs;
+    private final long batchDelayMs;
+    private final int maxBatch;
+    private final long timeoutMs;
+    private final int maxEntries;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+    private final List<String> batch = new ArrayList<>();
+    private TransportSession batchSession;
+    private boolean flushScheduled;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+
+    public PresenceCache(long ttlMs, long batchDelayMs, int maxBatch, long timeoutMs, int maxEntries) {
+        this.ttlMs = ttlMs;
+        this.batchDelayMs = batchDelayMs;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.timeoutMs = timeoutMs;
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * The cached status of {@code account}: true or false while fresh, null if unknown or expired.
+     */
+    public Boolean peek(String account) {
+        Entry entry = entries.get(account);
+        return entry == null || entry.expiresAt < System.currentTimeMillis() ? null : entry.online;
+    }
+
+    /**
+     * The status of {@code account}, from the cache when fresh and otherwise from a batched
+     * lookup on {@code session}. Completes with null if the service does not know or does
+     * not answer in time, and at once if there is no session to ask on.
+     */
+    public CompletableFuture<Boolean> query(TransportSession session, String account) {
+        Boolean cached = peek(account);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(cached);
+        }
+        if (session == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Boolean> lookup = pending.get(account);
+        if (lookup != null) {
+            hits.incrementAndGet();
+            return lookup;
+        }
+        CompletableFuture<Boolean> created = new CompletableFuture<>();
+        lookup = pending.putIfAbsent(account, created);
+        if (lookup != null) {
+            hits.incrementAndGet();
+            return lookup;
+        }
+        lookups.incrementAndGet();
+        TransportSession previous = null;
+        List<String> previousBatch = null;
+        List<String> ready = null;
+        synchronized (this) {
+            if (batchSession != session) {
+                // the session was replaced, its batch goes out on its own
+                previous = batchSession;
+                previousBatch = drainBatch();
+                batchSession = session;
+            }
+            batch.add(account);
+            if (batch.size() >= maxBatch) {
+                ready = drainBatch();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                TIMER.schedule(this::flush, batchDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        send(previous, previousBatch);
+        send(session, ready);
+        return created;
+    }
+
+    /**
+     * Records a status learned without asking.
+     */
+    public void update(String account, boolean online) {
+        put(account, online);
+        CompletableFuture<Boolean> lookup = pending.remove(account);
+        if (lookup != null) {
+            lookup.complete(online);
+        }
+    }
+
+    public void invalidate(String account) {
+        entries.remove(account);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Queries answered from the cache or by joining a lookup already under way.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Accounts looked up at the service.
+     */
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /**
+     * Round trips to the service; each carries up to {@code maxBatch} lookups. Lookups on a
+     * session that cannot ask are not counted.
+     */
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    private void flush() {
+        List<String> accounts;
+        TransportSession session;
+        synchronized (this) {
+            flushScheduled = false;
+            session = batchSession;
+            accounts = drainBatch();
+        }
+        send(session, accounts);
+    }
+
+    private List<String> drainBatch() {
+        if (batch.isEmpty()) {
+            return null;
+        }
+        List<String> accounts = new ArrayList<>(batch);
+        batch.clear();
+        return accounts;
+    }
+
+    private void send(TransportSession session, final List<String> accounts) {
+        if (accounts == null) {
+            return;
+        }
+        final CompletableFuture<Map<String, Boolean>> answer = new CompletableFuture<>();
+        answer.whenComplete((online, error) -> {
+            if (online != null || error != null) {
+                queries.incrementAndGet();
+            }
+            for (String account : accounts) {
+                Boolean status = online == null ? null : online.get(account);
+                if (status != null) {
+                    put(account, status);
+                }
+                CompletableFuture<Boolean> lookup = pending.remove(account);
+                if (lookup != null) {
+                    lookup.complete(status);
+                }
+            }
+        });
+        if (session == null) {
+            // nobody to ask: leave no lookup waiting for an answer that cannot come
+            answer.complete(null);
+            return;
+        }
+        AsyncSignalClient.withTimeout(answer, "presence query", timeoutMs);
+        try {
+            session.queryUserStatus(accounts, new PresenceListener() {
+                @Override
+                public void onUserStatus(TransportSession s, Map<String, Boolean> online) {
+                    answer.complete(online);
+                }
+            });
+        } catch (RuntimeException e) {
+            answer.completeExceptionally(e);
+        }
+    }
+
+    private void put(String account, boolean online) {
+        long now = System.currentTimeMillis();
+        if (entries.size() >= maxEntries && !entries.containsKey(account)) {
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                if (it.next().expiresAt < now) {
+                    it.remove();
+                }
+            }
+            if (entries.size() >= maxEntries) {
+                // all fresh: make room for a while at the cost of a few more lookups later
+                Iterator<String> any = entries.keySet().iterator();
+                for (int i = maxEntries / 8 + 1; i > 0 && any.hasNext(); i--) {
+                    any.next();
+                    any.remove();
+                }
+            }
+        }
+        entries.put(account, new Entry(online, now + ttlMs));
+    }
+
+    private static class Entry {
+        final boolean online;
+        final long expiresAt;
+
+        Entry(boolean online, long expiresAt) {
+            this.online = online;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package tool;
+
+import java.io.InterruptedIOException;
+import java.nio.CharBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Console input for a session that has no console: lines offered here are read by the
+ * session's {@link java.util.Scanner} as if typed. Reading blocks until a line arrives;
+ * after {@link #close()} the reader sees end of input.
+ */
+public class CommandQueue implements Readable {
+
+	private static final String END = new String("end of input");
+
+	private final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+	private String current;
+	private int position;
+	private boolean ended;
+
+	public void offer(String line) {
+		lines.add(line + "\n");
+	}
+
+	public void close() {
+		lines.add(END);
+	}
+
+	public int pending() {
+		return lines.size();
+	}
+
+	public int read(CharBuffer target) throws InterruptedIOException {
+		if (ended) {
+			return -1;
+		}
+		if (current == null || position == current.length()) {
+			String next;
+			try {
+				next = lines.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for input");
+			}
+			if (next == END) {
+				ended = true;
+				return -1;
+			}
+			current = next;
+			position = 0;
+		}
+		int n = Math.min(target.remaining(), current.length() - position);
+		target.put(current, position, position + n);
+		position += n;
+		return n;
+	}
+}
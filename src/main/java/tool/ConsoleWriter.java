@@ -0,0 +1,178 @@
+package tool;
+
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Console output on its own thread. Callers only enqueue; the writer thread drains the queue
+ * in batches, encodes each batch into one buffer and writes it to {@code System.out} with a
+ * single call, flushing when the batch reaches {@code flushBytes}, when the queue runs dry or
+ * at least every {@code flushIntervalMs}.
+ * <p>
+ * Two kinds of output: console lines (prompts, menus) wait for room and are never lost;
+ * event lines from SDK callbacks never wait. Events beyond {@code maxEventsPerSecond} or
+ * arriving while the queue is more than three quarters full are counted instead of printed,
+ * and the writer reports them at most once a second as one "N messages suppressed" line.
+ */
+public class ConsoleWriter {
+
+    private final BlockingQueue<Object> queue;
+    private final int highWatermark;
+    private final int flushBytes;
+    private final long flushIntervalNanos;
+    private final int maxEventsPerSecond;
+    private final Charset charset = Charset.defaultCharset();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong suppressedTotal = new AtomicLong();
+    private final Thread thread;
+
+    private long windowStart = System.nanoTime();
+    private int windowEvents;
+
+    public ConsoleWriter(int capacity, int flushBytes, long flushIntervalMs, int maxEventsPerSecond) {
+        this.queue = new ArrayBlockingQueue<Object>(capacity);
+        this.highWatermark = capacity - capacity / 4;
+        this.flushBytes = flushBytes;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        this.maxEventsPerSecond = maxEventsPerSecond;
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "console-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues console output, waiting for room if the writer is behind.
+     */
+    public void print(String text) {
+        put(text);
+    }
+
+    /**
+     * Queues output from a callback thread; never blocks. Returns false if it was suppressed.
+     */
+    public boolean printEvent(String text) {
+        if (!admitEvent() || queue.size() >= highWatermark || !queue.offer(text)) {
+            suppressed.incrementAndGet();
+            suppressedTotal.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Blocks until everything queued before the call has been written.
+     */
+    public void flush() {
+        CountDownLatch written = new CountDownLatch(1);
+        if (Thread.currentThread() == thread || !put(written)) {
+            return;
+        }
+        try {
+            written.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getSuppressedCount() {
+        return suppressedTotal.get();
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    private boolean put(Object item) {
+        try {
+            queue.put(item);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private synchronized boolean admitEvent() {
+        if (maxEventsPerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+            windowStart = now;
+            windowEvents = 0;
+        }
+        return ++windowEvents <= maxEventsPerSecond;
+    }
+
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<Object>();
+        StringBuilder pending = new StringBuilder();
+        long lastFlush = System.nanoTime();
+        long lastReport = lastFlush;
+        while (true) {
+            Object first;
+            try {
+                first = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (first != null) {
+                batch.add(first);
+                queue.drainTo(batch);
+            }
+            List<CountDownLatch> waiting = null;
+            for (Object item : batch) {
+                if (item instanceof CountDownLatch) {
+                    if (waiting == null) {
+                        waiting = new ArrayList<CountDownLatch>();
+                    }
+                    waiting.add((CountDownLatch) item);
+                } else {
+                    pending.append((String) item);
+                }
+                if (pending.length() >= flushBytes) {
+                    write(pending);
+                    lastFlush = System.nanoTime();
+                }
+            }
+            batch.clear();
+            long dropped = 0;
+            if (waiting != null || System.nanoTime() - lastReport >= TimeUnit.SECONDS.toNanos(1)) {
+                dropped = suppressed.getAndSet(0);
+            }
+            if (dropped > 0) {
+                lastReport = System.nanoTime();
+                pending.append("... ").append(dropped).append(" messages suppressed ...").append(System.lineSeparator());
+            }
+            if (pending.length() > 0 && (queue.isEmpty() || waiting != null
+                    || System.nanoTime() - lastFlush >= flushIntervalNanos)) {
+                write(pending);
+                lastFlush = System.nanoTime();
+            }
+            if (waiting != null) {
+                for (CountDownLatch written : waiting) {
+                    written.countDown();
+                }
+            }
+        }
+    }
+
+    private void write(StringBuilder pending) {
+        PrintStream out = System.out;
+        byte[] bytes = pending.toString().getBytes(charset);
+        out.write(bytes, 0, bytes.length);
+        out.flush();
+        pending.setLength(0);
+    }
+}
@@ -3,27 +3,114 @@ package tool;
 import java.util.ArrayList;
 
 public class Constant {
-	public static int CURRENT_APPID = 0;
+	private static int CURRENT_APPID = 0;
 	public static ArrayList <String>app_ids = new ArrayList<String>();
 	static {
 		//app_ids.add("Your_appId");
 		//app_ids.add("Your_appId");
 	}
+	/**
+	 * Hands out the next configured appId, or null when every one is in use.
+	 */
+	public static synchronized String nextAppId(){
+		if (CURRENT_APPID < app_ids.size()) {
+			return app_ids.get(CURRENT_APPID++);
+		}
+		return null;
+	}
+	/**
+	 * Adds an appId typed in by the user and marks it as in use.
+	 */
+	public static synchronized void addAppId(String appId){
+		app_ids.add(appId);
+		CURRENT_APPID = app_ids.size();
+	}
 	public static String COMMAND_LOGOUT="logout";
 	public static String COMMAND_LEAVE_CHART="leave";
+	public static String COMMAND_MORE_HISTORY="more";
+	//'search word ...' or 'search "a phrase"' after login
+	public static String COMMAND_SEARCH="search";
+	//'login' logs in another account without logging out, 'use account' shows it instead
+	public static String COMMAND_ADD_ACCOUNT="login";
+	public static String COMMAND_USE_ACCOUNT="use";
 	
 	//11public static String COMMAND
 	public static String COMMAND_TYPE_SINGLE_POINT="2";
 	public static String COMMAND_TYPE_CHANNEL="3";
 	
-	public static String RECORD_FILE_P2P="test_p2p.tmp";
-	public static String RECORD_FILE_CHANEEL="test_channel.tmp";
+	public static String RECORD_LOG_DIRECTORY="record";
+	public static long RECORD_SEGMENT_BYTES=64L*1024*1024;
+	public static long RECORD_COMPACTION_INTERVAL=10*60*1000;
+	//upper bound of every wait; the wait itself adapts to the round trips seen, see transport.RttEstimator
 	public static int TIMEOUT=20000;
+	public static long RTT_INITIAL_TIMEOUT=3000;
+	public static long RTT_MIN_TIMEOUT=500;
+	//times a login or join is sent while earlier attempts are still pending, 1 for never
+	public static int HEDGE_MAX_ATTEMPTS=3;
+	//file every session event is recorded to, see capture.TrafficRecorder; null records nothing
+	public static String CAPTURE_FILE=null;
+	public static long RECONNECT_INITIAL_DELAY=500;
+	public static long RECONNECT_MAX_DELAY=30000;
+	public static int RECONNECT_MAX_ATTEMPTS=10;
+	//accounts WarmStartMain logs in at startup, each "account" or "account:channel,channel"
+	public static String[] WARMUP_SESSIONS={};
+	public static int WARMUP_CREATE_CONCURRENCY=8;
+	public static int WARMUP_LOGIN_CONCURRENCY=64;
+	public static int WARMUP_JOIN_CONCURRENCY=8;
+	public static int RECONNECT_REJOIN_CONCURRENCY=8;
+	//local line protocol gateway, see gateway.SignalGateway
+	public static String GATEWAY_HOST="127.0.0.1";
+	public static int GATEWAY_PORT=7070;
+	public static int GATEWAY_MAX_LINE=16*1024;
+	public static long GATEWAY_MAX_OUTBOX_BYTES=4L*1024*1024;
+	public static long GATEWAY_IDLE_LOGOUT=60*1000;
+	//logout ecodes that must not trigger a reconnect; 4 is a loopback session kicked by a newer login
+	public static int[] RECONNECT_FATAL_ECODES={4};
+	
+	public static int HISTORY_CONVERSATION_CAPACITY=1000;
+	public static long HISTORY_MEMORY_BUDGET=64L*1024*1024;
+	//records kept per account by each history index, allocated as they arrive; entries of
+	//conversations evicted from history are dropped with them
+	public static int HISTORY_INDEX_CAPACITY=16*1024;
+	public static int HISTORY_PAGE_SIZE=20;
+	
+	public static int CONSOLE_QUEUE_CAPACITY=8192;
+	public static int CONSOLE_FLUSH_BYTES=64*1024;
+	public static long CONSOLE_FLUSH_INTERVAL=50;
+	public static int CONSOLE_MAX_EVENTS_PER_SECOND=200;
+	
+	public static int OUTBOUND_QUEUE_CAPACITY=1024;
+	public static int OUTBOUND_WINDOW=32;
+	public static int OUTBOUND_RATE_PER_SECOND=100;
+	public static int OUTBOUND_MAX_RETRIES=3;
+	public static long OUTBOUND_RETRY_DELAY=200;
+	public static long OUTBOUND_ACK_TIMEOUT=10000;
+	
+	public static int POOL_VIRTUAL_NODES=160;
+	public static long PRESENCE_TTL=30000;
+	public static long PRESENCE_BATCH_DELAY=20;
+	public static int PRESENCE_MAX_BATCH=64;
+	public static int PRESENCE_MAX_ENTRIES=10000;
+	
+	public static double POOL_LOAD_FACTOR=1.25;
+	public static double POOL_MESSAGES_PER_SESSION=10;
+	
+	public static int METRICS_MAX_KEYS=1000;
+	public static long METRICS_REPORT_INTERVAL=0;
+	public static String METRICS_REPORT_FILE="metrics.log";
+	public static boolean METRICS_REPORT_JSON=true;
+	public static int TRAFFIC_SKETCH_DEPTH=4;
+	public static int TRAFFIC_SKETCH_WIDTH=2048;
+	public static int TRAFFIC_WINDOW_SLOTS=13;
+	public static long TRAFFIC_SLOT_MILLIS=5000;
+	public static int TRAFFIC_TOP_K=32;
 	
 	
 	//add by
 	public static String COMMAND_CREATE_SIGNAL="0";
 	public static String COMMAND_CREATE_ACCOUNT="1";
+	public static String COMMAND_CREATE_ALL_SIGNALS="2";
+	public static String COMMAND_AUTO_SIGNAL="auto";
 	
 	public static String COMMAND_SINGLE_SIGNAL_OBJECT = "0";
 	public static String COMMAND_MULTI_SIGNAL_OBJECT = "1";
@@ -0,0 +1,43 @@
+package tool;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples and reports percentiles. Thread safe; meant for reports, not for
+ * hot paths.
+ */
+public class LatencySamples {
+
+    private long[] samples = new long[1024];
+    private int count;
+
+    public synchronized void add(long valueNanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = valueNanos;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile in [0, 100]
+     * @return the sample at that percentile in nanoseconds, 0 when empty
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    public String summary() {
+        return String.format("n=%d p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms", getCount(),
+                percentile(50) / 1e6, percentile(90) / 1e6, percentile(99) / 1e6, percentile(100) / 1e6);
+    }
+}
@@ -1,11 +1,54 @@
 package tool;
 
+/**
+ * All console output goes through one {@link ConsoleWriter}, so a slow terminal or a
+ * redirected log never stalls the thread that prints.
+ */
 public class PrintToScreen {
+	private static final ConsoleWriter writer = new ConsoleWriter(Constant.CONSOLE_QUEUE_CAPACITY,
+			Constant.CONSOLE_FLUSH_BYTES, Constant.CONSOLE_FLUSH_INTERVAL, Constant.CONSOLE_MAX_EVENTS_PER_SECOND);
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+	private static final ThreadLocal<Boolean> quiet = new ThreadLocal<Boolean>();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				writer.flush();
+			}
+		}, "console-flush"));
+	}
+
 	public static void printToScreen(String msg){
-		System.out.print(msg);	
+		if (quiet.get() == null) {
+			writer.print(msg);
+		}
 	}
 	public static void printToScreenLine(String msg){
-		System.out.println(msg);	
+		if (quiet.get() == null) {
+			writer.print(msg + LINE_SEPARATOR);
+		}
+	}
+	/**
+	 * Silences prompts printed by the calling thread, for sessions driven by a script.
+	 */
+	public static void setQuiet(boolean enabled){
+		if (enabled) {
+			quiet.set(Boolean.TRUE);
+		} else {
+			quiet.remove();
+		}
+	}
+	/**
+	 * For SDK callback threads: never blocks, and is rate limited when a channel floods.
+	 */
+	public static void printEventLine(String msg){
+		writer.printEvent(msg + LINE_SEPARATOR);
+	}
+	public static void flush(){
+		writer.flush();
+	}
+	public static ConsoleWriter getWriter(){
+		return writer;
 	}
 
 }
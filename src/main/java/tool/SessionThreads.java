@@ -0,0 +1,54 @@
+package tool;
+
+import java.lang.reflect.Method;
+
+/**
+ * Starts the thread that runs one session. On a JDK with virtual threads (21 and later) this
+ * is a virtual thread, looked up reflectively because the build targets Java 8; otherwise it
+ * is a daemon platform thread with a small stack.
+ */
+public class SessionThreads {
+
+	private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method START;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method start = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			start = builder.getMethod("start", Runnable.class);
+			// on JDK 19 and 20 virtual threads are a preview feature and ofVirtual throws
+			ofVirtual.invoke(null);
+		} catch (Throwable e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		START = start;
+	}
+
+	public static boolean isVirtualAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	public static Thread start(String name, Runnable task) {
+		if (OF_VIRTUAL != null) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) START.invoke(builder, task);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("can't start virtual thread " + name, e);
+			}
+		}
+		Thread thread = new Thread(null, task, name, PLATFORM_STACK_SIZE);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}
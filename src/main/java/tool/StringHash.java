@@ -0,0 +1,28 @@
+package tool;
+
+/**
+ * The 64 bit hash of keys such as account and channel names, shared by the transport pool's
+ * hash ring and the traffic sketches.
+ */
+public final class StringHash {
+
+    private StringHash() {
+    }
+
+    /**
+     * FNV-1a of the key's characters, finished with the MurmurHash3 mix so that similar keys
+     * spread out and the low and high halves are both usable.
+     */
+    public static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
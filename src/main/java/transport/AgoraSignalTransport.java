@@ -0,0 +1,170 @@
+package transport;
+
+import io.agora.signal.Signal;
+
+import java.util.List;
+
+/**
+ * {@link SignalTransport} backed by the Agora signaling SDK.
+ */
+public class AgoraSignalTransport implements SignalTransport {
+
+    private final String appId;
+    private final Signal signal;
+
+    public AgoraSignalTransport(String appId) {
+        this.appId = appId;
+        this.signal = new Signal(appId);
+    }
+
+    public Signal getSignal() {
+        return signal;
+    }
+
+    public String getName() {
+        return appId;
+    }
+
+    public void login(final String account, String token, final LoginListener listener) {
+        signal.login(account, token, new Signal.LoginCallback() {
+            private AgoraSession wrapped;
+
+            private AgoraSession wrap(Signal.LoginSession session, int uid) {
+                if (wrapped == null) {
+                    wrapped = new AgoraSession(session, account, uid);
+                }
+                return wrapped;
+            }
+
+            @Override
+            public void onLoginSuccess(Signal.LoginSession session, int uid) {
+                listener.onLoginSuccess(wrap(session, uid), uid);
+            }
+
+            @Override
+            public void onLoginFailed(Signal.LoginSession session, int ecode) {
+                listener.onLoginFailed(wrap(session, 0), ecode);
+            }
+
+            @Override
+            public void onLogout(Signal.LoginSession session, int ecode) {
+                listener.onLogout(wrap(session, 0), ecode);
+            }
+
+            @Override
+            public void onMessageInstantReceive(Signal.LoginSession session, String peer, int uid, String msg) {
+                listener.onMessageInstantReceive(wrap(session, 0), peer, uid, msg);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "AgoraSignalTransport[" + signal + "]";
+    }
+
+    static class AgoraSession implements TransportSession {
+
+        private final Signal.LoginSession session;
+        private final String account;
+        private final int uid;
+
+        AgoraSession(Signal.LoginSession session, String account, int uid) {
+            this.session = session;
+            this.account = account;
+            this.uid = uid;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        public int getUid() {
+            return uid;
+        }
+
+        public void logout() {
+            session.logout();
+        }
+
+        public void messageInstantSend(String peerAccount, String msg, final MessageListener listener) {
+            session.messageInstantSend(peerAccount, msg, new Signal.MessageCallback() {
+                @Override
+                public void onMessageSendSuccess(Signal.LoginSession s) {
+                    listener.onMessageSendSuccess(AgoraSession.this);
+                }
+
+                @Override
+                public void onMessageSendError(Signal.LoginSession s, int ecode) {
+                    listener.onMessageSendError(AgoraSession.this, ecode);
+                }
+            });
+        }
+
+        public TransportChannel channelJoin(String channelName, final ChannelListener listener) {
+            final AgoraChannel wrapped = new AgoraChannel(channelName);
+            Signal.LoginSession.Channel channel = session.channelJoin(channelName, new Signal.ChannelCallback() {
+                @Override
+                public void onChannelJoined(Signal.LoginSession s, Signal.LoginSession.Channel c) {
+                    wrapped.bind(c);
+                    listener.onChannelJoined(AgoraSession.this, wrapped);
+                }
+
+                @Override
+                public void onChannelUserList(Signal.LoginSession s, Signal.LoginSession.Channel c, List<String> users, List<Integer> uids) {
+                    listener.onChannelUserList(AgoraSession.this, wrapped, users, uids);
+                }
+
+                @Override
+                public void onMessageChannelReceive(Signal.LoginSession s, Signal.LoginSession.Channel c, String peer, int uid, String msg) {
+                    listener.onMessageChannelReceive(AgoraSession.this, wrapped, peer, uid, msg);
+                }
+
+                @Override
+                public void onChannelUserJoined(Signal.LoginSession s, Signal.LoginSession.Channel c, String peer, int uid) {
+                    listener.onChannelUserJoined(AgoraSession.this, wrapped, peer, uid);
+                }
+
+                @Override
+                public void onChannelUserLeaved(Signal.LoginSession s, Signal.LoginSession.Channel c, String peer, int uid) {
+                    listener.onChannelUserLeaved(AgoraSession.this, wrapped, peer, uid);
+                }
+
+                @Override
+                public void onChannelLeaved(Signal.LoginSession s, Signal.LoginSession.Channel c, int ecode) {
+                    listener.onChannelLeaved(AgoraSession.this, wrapped, ecode);
+                }
+            });
+            wrapped.bind(channel);
+            return wrapped;
+        }
+    }
+
+    static class AgoraChannel implements TransportChannel {
+
+        private final String name;
+        private volatile Signal.LoginSession.Channel channel;
+
+        AgoraChannel(String name) {
+            this.name = name;
+        }
+
+        void bind(Signal.LoginSession.Channel c) {
+            if (c != null) {
+                channel = c;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void messageChannelSend(String msg) {
+            channel.messageChannelSend(msg);
+        }
+
+        public void channelLeave() {
+            channel.channelLeave();
+        }
+    }
+}
@@ -0,0 +1,781 @@
+package transport;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Future based login, channel join and logout on top of a {@link SignalTransport}. Timeouts
+ * are scheduled on a shared timer instead of parking the caller, so any number of operations
+ * can be outstanding at once. A login or join that succeeds after its timeout is undone, the
+ * same way the console used to log out a session that answered too late.
+ * <p>
+ * With an {@link RttEstimator} the wait adapts to each operation on each Signal instance.
+ * A login or join whose answer is overdue is sent again while the first attempt stays
+ * pending, up to {@code hedgeAttempts} times with the wait doubling each time, and the
+ * operation only fails when the last attempt is overdue too. A lost answer then costs about
+ * one round trip more instead of the whole timeout, and a slow answer still counts.
+ * <p>
+ * The service keeps only the newest login of an account and the newest join of a channel,
+ * and attempts may reach it in any order, so the caller never gets an attempt's session or
+ * channel itself but a handle that follows whichever attempt the service confirmed last. An
+ * older attempt arriving after the operation completed replaces the session or channel under
+ * the handle, and the logout or leave this causes is not passed on. Channels are only joined
+ * on a session once its login has no attempt left in flight before its deadline, so only a
+ * login attempt answered later than that can still leave them.
+ * {@code timeoutMs} stays the upper bound of every wait.
+ */
+public class AsyncSignalClient {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "signal-timeouts");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static final String OP_LOGIN = "login";
+    public static final String OP_JOIN = "join";
+    public static final String OP_LOGOUT = "logout";
+
+    private final long timeoutMs;
+    private final RttEstimator rtt;
+    private final int hedgeAttempts;
+    private final Map<TransportSession, CompletableFuture<Integer>> pendingLogouts = new ConcurrentHashMap<>();
+    private final Map<TransportSession, String> instances = new ConcurrentHashMap<>();
+
+    /**
+     * Waits {@code timeoutMs} for every answer and never sends an operation twice.
+     */
+    public AsyncSignalClient(long timeoutMs) {
+        this(timeoutMs, null, 1);
+    }
+
+    /**
+     * @param rtt           estimates the wait of each operation, or null to always wait {@code timeoutMs}
+     * @param hedgeAttempts times a login or join may be sent, 1 for no hedging
+     */
+    public AsyncSignalClient(long timeoutMs, RttEstimator rtt, int hedgeAttempts) {
+        this.timeoutMs = timeoutMs;
+        this.rtt = rtt;
+        this.hedgeAttempts = Math.max(1, hedgeAttempts);
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
+    /**
+     * Logs in {@code account}. {@code events} keeps receiving the session's later events
+     * (instant messages, logout) once the future has completed.
+     */
+    public CompletableFuture<TransportSession> login(final SignalTransport transport, final String account, final String token,
+                                                     final LoginListener events) {
+        final String instance = transport.getName();
+        final Hedge<TransportSession> hedge = new Hedge<>(RttEstimator.key(instance, OP_LOGIN), "login " + account,
+                hedgeAttempts, TransportSession::logout);
+        final HedgedSession handle = new HedgedSession(account, hedge);
+        // known before the caller hears of the session, its first join needs it
+        instances.put(handle, instance);
+        hedge.result.whenComplete((session, error) -> {
+            if (error != null) {
+                instances.remove(handle);
+            }
+        });
+        hedge.start(handle, attempt -> transport.login(account, token, new LoginListener() {
+            @Override
+            public void onLoginSuccess(TransportSession session, final int uid) {
+                hedge.succeeded(attempt, session, () -> events.onLoginSuccess(handle, uid));
+            }
+
+            @Override
+            public void onLoginFailed(TransportSession session, final int ecode) {
+                hedge.failed(attempt, new SignalException("login failed", ecode), () -> events.onLoginFailed(handle, ecode));
+            }
+
+            @Override
+            public void onLogout(TransportSession session, final int ecode) {
+                hedge.lost(attempt, new SignalException("logged out", ecode), () -> {
+                    instances.remove(handle);
+                    events.onLogout(handle, ecode);
+                    CompletableFuture<Integer> logout = pendingLogouts.remove(handle);
+                    if (logout != null) {
+                        logout.complete(ecode);
+                    }
+                });
+            }
+
+            @Override
+            public void onMessageInstantReceive(TransportSession session, String peer, int uid, String msg) {
+                if (hedge.isLive(attempt)) {
+                    events.onMessageInstantReceive(handle, peer, uid, msg);
+                }
+            }
+        }));
+        return hedge.result;
+    }
+
+    /**
+     * Joins {@code channelName}; {@code events} receives the channel's later events.
+     */
+    public CompletableFuture<TransportChannel> join(final TransportSession session, final String channelName,
+                                                    final ChannelListener events) {
+        final Hedge<TransportChannel> hedge = new Hedge<>(RttEstimator.key(instanceOf(session), OP_JOIN),
+                "join " + channelName, hedgeAttempts, TransportChannel::channelLeave);
+        final HedgedChannel handle = new HedgedChannel(channelName, hedge);
+        Runnable start = () -> hedge.start(handle, attempt -> session.channelJoin(channelName, new ChannelListener() {
+            @Override
+            public void onChannelJoined(TransportSession s, TransportChannel channel) {
+                hedge.succeeded(attempt, channel, () -> events.onChannelJoined(session, handle));
+            }
+
+            @Override
+            public void onChannelUserList(TransportSession s, TransportChannel channel, List<String> users, List<Integer> uids) {
+                if (hedge.isLive(attempt)) {
+                    events.onChannelUserList(session, handle, users, uids);
+                }
+            }
+
+            @Override
+            public void onMessageChannelReceive(TransportSession s, TransportChannel channel, String account, int uid, String msg) {
+                if (hedge.isLive(attempt)) {
+                    events.onMessageChannelReceive(session, handle, account, uid, msg);
+                }
+            }
+
+            @Override
+            public void onChannelUserJoined(TransportSession s, TransportChannel channel, String account, int uid) {
+                if (hedge.isLive(attempt)) {
+                    events.onChannelUserJoined(session, handle, account, uid);
+                }
+            }
+
+            @Override
+            public void onChannelUserLeaved(TransportSession s, TransportChannel channel, String account, int uid) {
+                if (hedge.isLive(attempt)) {
+                    events.onChannelUserLeaved(session, handle, account, uid);
+                }
+            }
+
+            @Override
+            public void onChannelLeaved(TransportSession s, TransportChannel channel, final int ecode) {
+                hedge.lost(attempt, new SignalException("left channel " + channelName, ecode),
+                        () -> events.onChannelLeaved(session, handle, ecode));
+            }
+        }));
+        if (session instanceof HedgedSession) {
+            // a login attempt still in flight would replace the session and leave the channel
+            ((HedgedSession) session).hedge.whenSettled(start);
+        } else {
+            start.run();
+        }
+        return hedge.result;
+    }
+
+    /**
+     * Logs out a session obtained from {@link #login}; completes with the logout ecode.
+     */
+    public CompletableFuture<Integer> logout(TransportSession session) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        CompletableFuture<Integer> previous = pendingLogouts.putIfAbsent(session, result);
+        if (previous != null) {
+            return previous;
+        }
+        final String key = RttEstimator.key(instanceOf(session), OP_LOGOUT);
+        final long started = System.nanoTime();
+        result.whenComplete((ecode, error) -> {
+            if (error == null && rtt != null) {
+                rtt.sample(key, System.nanoTime() - started);
+            } else if (error instanceof TimeoutException && rtt != null) {
+                rtt.timedOut(key);
+            }
+        });
+        session.logout();
+        return withTimeout(result, "logout " + session.getAccount(), waitMs(key))
+                .whenComplete((ecode, error) -> pendingLogouts.remove(session, result));
+    }
+
+    /**
+     * Logs in every account with at most {@code maxConcurrency} logins outstanding. The
+     * returned future never fails; failures are listed in the result.
+     */
+    public CompletableFuture<BulkResult<TransportSession>> loginAll(SignalTransport transport, List<String> accounts,
+                                                                    String token, Function<String, LoginListener> events,
+                                                                    int maxConcurrency) {
+        return bounded(accounts, account -> login(transport, account, token, events.apply(account)), maxConcurrency);
+    }
+
+    /**
+     * Joins every channel on {@code session} with at most {@code maxConcurrency} joins outstanding.
+     */
+    public CompletableFuture<BulkResult<TransportChannel>> joinAll(TransportSession session, List<String> channels,
+                                                                   Function<String, ChannelListener> events,
+                                                                   int maxConcurrency) {
+        return bounded(channels, channel -> join(session, channel, events.apply(channel)), maxConcurrency);
+    }
+
+    /**
+     * Completes {@code future} with a {@link TimeoutException} unless it finishes within the
+     * client timeout.
+     */
+    public <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> future, final String what) {
+        return withTimeout(future, what, timeoutMs);
+    }
+
+    public static <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> future, final String what, long timeoutMs) {
+        if (future.isDone()) {
+            return future;
+        }
+        final ScheduledFuture<?> timer = TIMER.schedule(
+                () -> future.completeExceptionally(new TimeoutException(what + " timed out after " + timeoutMs + "ms")),
+                timeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((value, error) -> timer.cancel(false));
+        return future;
+    }
+
+    /**
+     * How long an operation on {@code key} may wait in total: the time a hedged operation
+     * needs to send every attempt and wait for the last.
+     */
+    private long waitMs(String key) {
+        if (rtt == null) {
+            return timeoutMs;
+        }
+        return Math.min(timeoutMs, rtt.timeout(key) * ((1L << hedgeAttempts) - 1));
+    }
+
+    private String instanceOf(TransportSession session) {
+        String instance = instances.get(session);
+        return instance == null ? "unknown" : instance;
+    }
+
+    /**
+     * One login or join, sent again each time the newest attempt is overdue. The first attempt
+     * that succeeds completes the operation; it fails once every attempt sent has failed, or
+     * when the last one is overdue.
+     * <p>
+     * An attempt that succeeds later was confirmed by the service after the live one, which it
+     * replaced there, so it becomes the live one. The loss of the live attempt is held back
+     * while another attempt is unanswered, as that attempt is probably its cause: until it
+     * fails, or for another {@code waitMs} once it is overdue. An attempt that succeeds after
+     * the operation failed, or after the caller let go of the handle, is undone.
+     */
+    private class Hedge<T> {
+
+        private static final int PENDING = 0;
+        private static final int SUCCEEDED = 1;
+        private static final int FAILED = 2;
+        private static final int LOST = 3;
+        private static final int OVERDUE = 4;
+
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        private final String key;
+        private final String what;
+        private final int maxAttempts;
+        private final long attemptMs;
+        private final long waitMs;
+        private final Consumer<T> undo;
+        private final List<Attempt<T>> attempts = new ArrayList<>();
+        private T handle;
+        private Consumer<Attempt<T>> send;
+        private ScheduledFuture<?> nextAttempt;
+        private ScheduledFuture<?> deadline;
+        private ScheduledFuture<?> grace;
+        private volatile Attempt<T> live;
+        private boolean done;
+        private boolean closed;
+        private Runnable heldLoss;
+        private List<Runnable> whenSettled = new ArrayList<>();
+
+        Hedge(String key, String what, int maxAttempts, Consumer<T> undo) {
+            this.key = key;
+            this.what = what;
+            this.maxAttempts = rtt == null ? 1 : maxAttempts;
+            this.attemptMs = rtt == null ? timeoutMs : rtt.timeout(key);
+            this.waitMs = waitMs(key);
+            this.undo = undo;
+        }
+
+        /**
+         * Sends the first attempt; {@link #result} completes with {@code handle}.
+         */
+        void start(T handle, Consumer<Attempt<T>> send) {
+            this.handle = handle;
+            this.send = send;
+            synchronized (this) {
+                deadline = TIMER.schedule(this::expire, waitMs, TimeUnit.MILLISECONDS);
+            }
+            launch();
+        }
+
+        private void launch() {
+            Attempt<T> attempt;
+            synchronized (this) {
+                if (done || attempts.size() >= maxAttempts) {
+                    return;
+                }
+                attempt = new Attempt<>(attempts.size());
+                attempts.add(attempt);
+                if (attempts.size() < maxAttempts) {
+                    nextAttempt = TIMER.schedule(this::launch, attemptMs << attempt.index, TimeUnit.MILLISECONDS);
+                }
+            }
+            try {
+                send.accept(attempt);
+            } catch (RuntimeException e) {
+                failed(attempt, e, null);
+            }
+        }
+
+        /**
+         * The service confirmed {@code attempt}, replacing the live one if there is one.
+         */
+        void succeeded(Attempt<T> attempt, T value, Runnable onWin) {
+            if (rtt != null) {
+                rtt.sample(key, System.nanoTime() - attempt.startNanos);
+            }
+            boolean keep;
+            boolean first;
+            List<Runnable> settled;
+            synchronized (this) {
+                if (attempt.gone) {
+                    // logged out or left before its confirmation was handled
+                    return;
+                }
+                attempt.value = value;
+                keep = !closed && (!done || live != null);
+                first = keep && !done;
+                if (keep) {
+                    attempt.state = SUCCEEDED;
+                    live = attempt;
+                    done = true;
+                    // the live one was lost to this attempt
+                    heldLoss = null;
+                    if (nextAttempt != null) {
+                        nextAttempt.cancel(false);
+                    }
+                    if (grace != null) {
+                        grace.cancel(false);
+                    }
+                } else {
+                    attempt.state = LOST;
+                }
+                settled = settledLocked();
+            }
+            if (!keep) {
+                // the caller has given up on this operation, or let go of its handle
+                undo.accept(value);
+            } else if (first) {
+                result.complete(handle);
+                if (onWin != null) {
+                    onWin.run();
+                }
+            }
+            runAll(settled);
+        }
+
+        /**
+         * An unanswered attempt failed.
+         */
+        void failed(Attempt<T> attempt, Throwable error, Runnable onFail) {
+            boolean fail = false;
+            Runnable loss = null;
+            List<Runnable> settled;
+            synchronized (this) {
+                if (attempt.state != PENDING && attempt.state != OVERDUE) {
+                    return;
+                }
+                attempt.state = FAILED;
+                if (!unansweredLocked()) {
+                    if (!done) {
+                        done = true;
+                        fail = true;
+                    } else {
+                        loss = releaseLossLocked();
+                    }
+                }
+                settled = settledLocked();
+            }
+            if (fail) {
+                result.completeExceptionally(error);
+                if (onFail != null) {
+                    onFail.run();
+                }
+            }
+            if (loss != null) {
+                loss.run();
+            }
+            runAll(settled);
+        }
+
+        /**
+         * A confirmed attempt was logged out or left; an unanswered one that ends this way
+         * failed. {@code onLost} runs when the loss is passed on to the caller.
+         */
+        void lost(Attempt<T> attempt, Throwable error, Runnable onLost) {
+            boolean refused;
+            synchronized (this) {
+                attempt.gone = true;
+                refused = attempt.state == PENDING || attempt.state == OVERDUE;
+                if (attempt.state == SUCCEEDED) {
+                    attempt.state = LOST;
+                    if (live != attempt) {
+                        // replaced by a newer confirmation already
+                        return;
+                    }
+                    if (!closed && unansweredLocked()) {
+                        heldLoss = onLost;
+                        if (!pendingLocked()) {
+                            graceLocked();
+                        }
+                        return;
+                    }
+                    closed = true;
+                } else if (!refused) {
+                    return;
+                }
+            }
+            if (refused) {
+                failed(attempt, error, null);
+            } else {
+                onLost.run();
+            }
+        }
+
+        /**
+         * The caller let go of the handle: attempts that still succeed are undone, and a loss
+         * being held back is passed on now.
+         */
+        void close() {
+            Runnable loss;
+            synchronized (this) {
+                loss = releaseLossLocked();
+                closed = true;
+            }
+            if (loss != null) {
+                loss.run();
+            }
+        }
+
+        /**
+         * Runs {@code action} once the operation is decided and no attempt is in flight.
+         */
+        void whenSettled(Runnable action) {
+            synchronized (this) {
+                if (whenSettled != null) {
+                    whenSettled.add(action);
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        /**
+         * The session or channel of the attempt confirmed last, null before the first.
+         */
+        T current() {
+            Attempt<T> attempt = live;
+            return attempt == null ? null : attempt.value;
+        }
+
+        /**
+         * Whether events of {@code attempt} are passed on.
+         */
+        boolean isLive(Attempt<T> attempt) {
+            return live == attempt;
+        }
+
+        private void expire() {
+            boolean timeout = false;
+            List<Runnable> settled;
+            synchronized (this) {
+                for (Attempt<T> attempt : attempts) {
+                    if (attempt.state == PENDING) {
+                        // still able to replace the live one if the operation succeeded
+                        attempt.state = done ? OVERDUE : FAILED;
+                    }
+                }
+                if (!done) {
+                    done = true;
+                    timeout = true;
+                } else if (heldLoss != null) {
+                    graceLocked();
+                }
+                settled = settledLocked();
+            }
+            if (timeout) {
+                if (rtt != null) {
+                    rtt.timedOut(key);
+                }
+                result.completeExceptionally(new TimeoutException(what + " timed out after " + waitMs + "ms"
+                        + (attempts.size() > 1 ? ", " + attempts.size() + " attempts" : "")));
+            }
+            runAll(settled);
+        }
+
+        /**
+         * Passes the held loss on unless an overdue attempt succeeds within {@code waitMs}.
+         */
+        private void graceLocked() {
+            if (grace != null && !grace.isDone()) {
+                return;
+            }
+            grace = TIMER.schedule(() -> {
+                Runnable loss;
+                synchronized (this) {
+                    for (Attempt<T> attempt : attempts) {
+                        if (attempt.state == OVERDUE) {
+                            attempt.state = FAILED;
+                        }
+                    }
+                    loss = releaseLossLocked();
+                }
+                if (loss != null) {
+                    loss.run();
+                }
+            }, waitMs, TimeUnit.MILLISECONDS);
+        }
+
+        private boolean unansweredLocked() {
+            for (Attempt<T> attempt : attempts) {
+                if (attempt.state == PENDING || attempt.state == OVERDUE) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean pendingLocked() {
+            for (Attempt<T> attempt : attempts) {
+                if (attempt.state == PENDING) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Runnable releaseLossLocked() {
+            Runnable loss = heldLoss;
+            heldLoss = null;
+            if (loss != null) {
+                closed = true;
+            }
+            return loss;
+        }
+
+        /**
+         * Once decided with nothing in flight: stops the timers and hands out the actions
+         * waiting for that.
+         */
+        private List<Runnable> settledLocked() {
+            if (!done || pendingLocked() || whenSettled == null) {
+                return null;
+            }
+            if (nextAttempt != null) {
+                nextAttempt.cancel(false);
+            }
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            List<Runnable> actions = whenSettled;
+            whenSettled = null;
+            return actions;
+        }
+
+        private void runAll(List<Runnable> actions) {
+            if (actions != null) {
+                for (Runnable action : actions) {
+                    action.run();
+                }
+            }
+        }
+    }
+
+    private static class Attempt<T> {
+        final int index;
+        final long startNanos = System.nanoTime();
+        volatile int state;
+        T value;
+        boolean gone;
+
+        Attempt(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * What the caller of {@link #login} holds: the session of the login attempt the service
+     * confirmed last.
+     */
+    private static class HedgedSession implements TransportSession {
+        private final String account;
+        private final Hedge<TransportSession> hedge;
+
+        HedgedSession(String account, Hedge<TransportSession> hedge) {
+            this.account = account;
+            this.hedge = hedge;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        public int getUid() {
+            return hedge.current().getUid();
+        }
+
+        public void logout() {
+            hedge.close();
+            hedge.current().logout();
+        }
+
+        public void messageInstantSend(String peerAccount, String msg, MessageListener listener) {
+            hedge.current().messageInstantSend(peerAccount, msg, listener);
+        }
+
+        public TransportChannel channelJoin(String channelName, ChannelListener listener) {
+            return hedge.current().channelJoin(channelName, listener);
+        }
+
+        @Override
+        public void queryUserStatus(List<String> accounts, PresenceListener listener) {
+            hedge.current().queryUserStatus(accounts, listener);
+        }
+
+        @Override
+        public String toString() {
+            return "session " + account;
+        }
+    }
+
+    /**
+     * What the caller of {@link #join} holds: the channel of the join attempt the service
+     * confirmed last.
+     */
+    private static class HedgedChannel implements TransportChannel {
+        private final String name;
+        private final Hedge<TransportChannel> hedge;
+
+        HedgedChannel(String name, Hedge<TransportChannel> hedge) {
+            this.name = name;
+            this.hedge = hedge;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void messageChannelSend(String msg) {
+            hedge.current().messageChannelSend(msg);
+        }
+
+        public void channelLeave() {
+            hedge.close();
+            hedge.current().channelLeave();
+        }
+
+        @Override
+        public String toString() {
+            return "channel " + name;
+        }
+    }
+
+    /**
+     * Runs {@code operation} for every key with at most {@code maxConcurrency} outstanding.
+     */
+    static <T> CompletableFuture<BulkResult<T>> bounded(List<String> keys,
+                                                        Function<String, CompletableFuture<T>> operation,
+                                                        int maxConcurrency) {
+        BulkResult<T> result = new BulkResult<>();
+        CompletableFuture<BulkResult<T>> done = new CompletableFuture<>();
+        if (keys.isEmpty()) {
+            done.complete(result);
+            return done;
+        }
+        new BoundedRun<>(keys, operation, result, done).start(Math.max(1, maxConcurrency));
+        return done;
+    }
+
+    /**
+     * Keeps up to N operations in flight; each completion launches the next key. Launches are
+     * drained in a loop so operations that complete synchronously do not recurse.
+     */
+    private static class BoundedRun<T> {
+
+        private final Iterator<String> pending;
+        private final Function<String, CompletableFuture<T>> operation;
+        private final BulkResult<T> result;
+        private final CompletableFuture<BulkResult<T>> done;
+        private final AtomicInteger wanted = new AtomicInteger();
+        private int remaining;
+
+        BoundedRun(List<String> keys, Function<String, CompletableFuture<T>> operation,
+                   BulkResult<T> result, CompletableFuture<BulkResult<T>> done) {
+            this.pending = keys.iterator();
+            this.operation = operation;
+            this.result = result;
+            this.done = done;
+            this.remaining = keys.size();
+        }
+
+        void start(int concurrency) {
+            request(concurrency);
+        }
+
+        private void request(int n) {
+            if (wanted.getAndAdd(n) != 0) {
+                return;
+            }
+            do {
+                launchNext();
+            } while (wanted.decrementAndGet() > 0);
+        }
+
+        private void launchNext() {
+            String key;
+            synchronized (this) {
+                if (!pending.hasNext()) {
+                    return;
+                }
+                key = pending.next();
+            }
+            CompletableFuture<T> future;
+            try {
+                future = operation.apply(key);
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            future.whenComplete((value, error) -> {
+                if (error == null) {
+                    result.success(key, value);
+                } else {
+                    result.failure(key, error);
+                }
+                boolean finished;
+                synchronized (this) {
+                    finished = --remaining == 0;
+                }
+                if (finished) {
+                    done.complete(result);
+                } else {
+                    request(1);
+                }
+            });
+        }
+    }
+}
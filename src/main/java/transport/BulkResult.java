@@ -0,0 +1,35 @@
+package transport;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of a bulk login or join: what came up and why the rest did not.
+ */
+public class BulkResult<T> {
+
+    private final Map<String, T> succeeded = new LinkedHashMap<>();
+    private final Map<String, Throwable> failed = new LinkedHashMap<>();
+
+    synchronized void success(String key, T value) {
+        succeeded.put(key, value);
+    }
+
+    synchronized void failure(String key, Throwable cause) {
+        failed.put(key, cause);
+    }
+
+    public synchronized Map<String, T> getSucceeded() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(succeeded));
+    }
+
+    public synchronized Map<String, Throwable> getFailed() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(failed));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "succeeded=" + succeeded.size() + " failed=" + failed.size();
+    }
+}
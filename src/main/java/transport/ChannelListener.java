@@ -0,0 +1,27 @@
+package transport;
+
+import java.util.List;
+
+/**
+ * Channel events, mirrors {@code Signal.ChannelCallback}.
+ */
+public abstract class ChannelListener {
+
+    public void onChannelJoined(TransportSession session, TransportChannel channel) {
+    }
+
+    public void onChannelUserList(TransportSession session, TransportChannel channel, List<String> users, List<Integer> uids) {
+    }
+
+    public void onMessageChannelReceive(TransportSession session, TransportChannel channel, String account, int uid, String msg) {
+    }
+
+    public void onChannelUserJoined(TransportSession session, TransportChannel channel, String account, int uid) {
+    }
+
+    public void onChannelUserLeaved(TransportSession session, TransportChannel channel, String account, int uid) {
+    }
+
+    public void onChannelLeaved(TransportSession session, TransportChannel channel, int ecode) {
+    }
+}
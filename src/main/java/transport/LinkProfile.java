@@ -0,0 +1,57 @@
+package transport;
+
+/**
+ * Network conditions simulated by a {@link LoopbackBroker}.
+ */
+public class LinkProfile {
+
+    private long latencyMs;
+    private long jitterMs;
+    private double lossRate;
+    private long bandwidthBytesPerSecond;
+
+    /**
+     * @param latencyMs              one way delay added to every delivery
+     * @param jitterMs               random extra delay in [0, jitterMs]
+     * @param lossRate               probability in [0, 1] that a delivery is dropped
+     * @param bandwidthBytesPerSecond uplink of each session, 0 for unlimited
+     */
+    public LinkProfile(long latencyMs, long jitterMs, double lossRate, long bandwidthBytesPerSecond) {
+        if (latencyMs < 0 || jitterMs < 0 || bandwidthBytesPerSecond < 0) {
+            throw new IllegalArgumentException("latency, jitter and bandwidth must not be negative");
+        }
+        if (lossRate < 0 || lossRate > 1) {
+            throw new IllegalArgumentException("lossRate must be in [0, 1]: " + lossRate);
+        }
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        this.lossRate = lossRate;
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    }
+
+    public static LinkProfile perfect() {
+        return new LinkProfile(0, 0, 0, 0);
+    }
+
+    public long getLatencyMs() {
+        return latencyMs;
+    }
+
+    public long getJitterMs() {
+        return jitterMs;
+    }
+
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    public long getBandwidthBytesPerSecond() {
+        return bandwidthBytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "latency=" + latencyMs + "ms jitter=" + jitterMs + "ms loss=" + lossRate
+                + " bandwidth=" + (bandwidthBytesPerSecond == 0 ? "unlimited" : bandwidthBytesPerSecond + "B/s");
+    }
+}
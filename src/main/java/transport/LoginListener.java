@@ -0,0 +1,20 @@
+package transport;
+
+/**
+ * Login session events. Every method has an empty default so callers only override what
+ * they need, the same way {@code Signal.LoginCallback} is used.
+ */
+public abstract class LoginListener {
+
+    public void onLoginSuccess(TransportSession session, int uid) {
+    }
+
+    public void onLoginFailed(TransportSession session, int ecode) {
+    }
+
+    public void onLogout(TransportSession session, int ecode) {
+    }
+
+    public void onMessageInstantReceive(TransportSession session, String account, int uid, String msg) {
+    }
+}
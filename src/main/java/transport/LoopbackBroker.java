@@ -0,0 +1,361 @@
+package transport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-JVM stand-in for the signaling service. Routes logins, instant messages and channel
+ * messages between local {@link LoopbackTransport} sessions, applying the configured
+ * {@link LinkProfile} to every delivery. Callbacks run on the broker's delivery threads,
+ * the same way SDK callbacks run on SDK threads.
+ */
+public class LoopbackBroker {
+
+    public static final int ECODE_PEER_OFFLINE = 1;
+    public static final int ECODE_LOST = 2;
+    public static final int ECODE_SESSION_CLOSED = 3;
+    public static final int ECODE_KICKED = 4;
+
+    private final ConcurrentHashMap<String, LoopbackSession> sessions = new ConcurrentHashMap<String, LoopbackSession>();
+    private final ConcurrentHashMap<String, Map<LoopbackChannel, Boolean>> channels = new ConcurrentHashMap<String, Map<LoopbackChannel, Boolean>>();
+    private final ScheduledExecutorService scheduler;
+    private final Random random = new Random();
+    private final AtomicInteger nextUid = new AtomicInteger(1);
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile LinkProfile profile;
+
+    public LoopbackBroker() {
+        this(LinkProfile.perfect(), 1);
+    }
+
+    public LoopbackBroker(LinkProfile profile, int deliveryThreads) {
+        this.profile = profile;
+        this.scheduler = new ScheduledThreadPoolExecutor(deliveryThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "loopback-delivery-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public LinkProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Changes the simulated network conditions; applies to deliveries scheduled afterwards.
+     */
+    public void setProfile(LinkProfile profile) {
+        this.profile = profile;
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public int getOnlineCount() {
+        return sessions.size();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Drops the session of {@code account} the way a broken connection would: its channels
+     * are left and its listener hears a logout with {@link #ECODE_LOST}.
+     */
+    public boolean disconnect(String account) {
+        final LoopbackSession session = sessions.get(account);
+        if (session == null) {
+            return false;
+        }
+        scheduler.execute(new Runnable() {
+            public void run() {
+                session.close(ECODE_LOST);
+            }
+        });
+        return true;
+    }
+
+    void login(final LoopbackTransport transport, final String account, final LoginListener listener) {
+        final LoopbackSession session = new LoopbackSession(transport, account, nextUid.getAndIncrement(), listener);
+        // a lost login is never answered, the caller has to time out like it would against the service
+        deliver(0, new Runnable() {
+            public void run() {
+                LoopbackSession previous = sessions.put(account, session);
+                if (previous != null && previous != session) {
+                    previous.close(ECODE_KICKED);
+                }
+                listener.onLoginSuccess(session, session.uid);
+            }
+        });
+    }
+
+    private boolean deliver(long uplinkNanos, Runnable action) {
+        LinkProfile p = profile;
+        long delayNanos = uplinkNanos + TimeUnit.MILLISECONDS.toNanos(p.getLatencyMs());
+        if (p.getJitterMs() > 0) {
+            delayNanos += TimeUnit.MILLISECONDS.toNanos(nextLong(p.getJitterMs() + 1));
+        }
+        if (p.getLossRate() > 0 && nextDouble() < p.getLossRate()) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        try {
+            if (delayNanos <= 0) {
+                scheduler.execute(action);
+            } else {
+                scheduler.schedule(action, delayNanos, TimeUnit.NANOSECONDS);
+            }
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private long nextLong(long bound) {
+        synchronized (random) {
+            return (long) (random.nextDouble() * bound);
+        }
+    }
+
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    /**
+     * Approximate wire size of a message; exact UTF-8 length is not worth computing here.
+     */
+    private static int sizeOf(String account, String msg) {
+        return account.length() + msg.length();
+    }
+
+    class LoopbackSession implements TransportSession {
+
+        private final LoopbackTransport transport;
+        private final String account;
+        private final int uid;
+        private final LoginListener listener;
+        private final Map<String, LoopbackChannel> joined = new ConcurrentHashMap<String, LoopbackChannel>();
+        private volatile boolean closed;
+        private long uplinkFreeAt;
+
+        LoopbackSession(LoopbackTransport transport, String account, int uid, LoginListener listener) {
+            this.transport = transport;
+            this.account = account;
+            this.uid = uid;
+            this.listener = listener;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        public int getUid() {
+            return uid;
+        }
+
+        LoopbackTransport getTransport() {
+            return transport;
+        }
+
+        /**
+         * Time the message spends queued on this session's uplink, 0 when bandwidth is unlimited.
+         */
+        synchronized long reserveUplink(int bytes) {
+            long bytesPerSecond = profile.getBandwidthBytesPerSecond();
+            if (bytesPerSecond <= 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            long start = Math.max(now, uplinkFreeAt);
+            uplinkFreeAt = start + bytes * 1000000000L / bytesPerSecond;
+            return uplinkFreeAt - now;
+        }
+
+        public void logout() {
+            deliver(0, new Runnable() {
+                public void run() {
+                    close(0);
+                }
+            });
+        }
+
+        void close(int ecode) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            sessions.remove(account, this);
+            for (LoopbackChannel channel : new ArrayList<LoopbackChannel>(joined.values())) {
+                channel.leave(ecode);
+            }
+            listener.onLogout(this, ecode);
+        }
+
+        public void messageInstantSend(final String peerAccount, final String msg, final MessageListener messageListener) {
+            sent.incrementAndGet();
+            if (closed) {
+                messageListener.onMessageSendError(this, ECODE_SESSION_CLOSED);
+                return;
+            }
+            boolean accepted = deliver(reserveUplink(sizeOf(account, msg)), new Runnable() {
+                public void run() {
+                    LoopbackSession peer = sessions.get(peerAccount);
+                    if (peer == null) {
+                        messageListener.onMessageSendError(LoopbackSession.this, ECODE_PEER_OFFLINE);
+                        return;
+                    }
+                    delivered.incrementAndGet();
+                    peer.listener.onMessageInstantReceive(peer, account, uid, msg);
+                    messageListener.onMessageSendSuccess(LoopbackSession.this);
+                }
+            });
+            if (!accepted) {
+                messageListener.onMessageSendError(this, ECODE_LOST);
+            }
+        }
+
+        @Override
+        public void queryUserStatus(final List<String> accounts, final PresenceListener presenceListener) {
+            deliver(0, new Runnable() {
+                public void run() {
+                    Map<String, Boolean> online = new HashMap<String, Boolean>();
+                    for (String peer : accounts) {
+                        online.put(peer, sessions.containsKey(peer));
+                    }
+                    presenceListener.onUserStatus(LoopbackSession.this, online);
+                }
+            });
+        }
+
+        public TransportChannel channelJoin(final String channelName, ChannelListener channelListener) {
+            final LoopbackChannel channel = new LoopbackChannel(this, channelName, channelListener);
+            deliver(0, new Runnable() {
+                public void run() {
+                    if (!closed) {
+                        channel.join();
+                    }
+                }
+            });
+            return channel;
+        }
+    }
+
+    class LoopbackChannel implements TransportChannel {
+
+        private final LoopbackSession session;
+        private final String name;
+        private final ChannelListener listener;
+        private volatile boolean joined;
+
+        LoopbackChannel(LoopbackSession session, String name, ChannelListener listener) {
+            this.session = session;
+            this.name = name;
+            this.listener = listener;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        void join() {
+            Map<LoopbackChannel, Boolean> members = channels.get(name);
+            if (members == null) {
+                Map<LoopbackChannel, Boolean> created = new ConcurrentHashMap<LoopbackChannel, Boolean>();
+                members = channels.putIfAbsent(name, created);
+                if (members == null) {
+                    members = created;
+                }
+            }
+            LoopbackChannel previous = session.joined.put(name, this);
+            if (previous != null && previous != this) {
+                previous.leave(0);
+            }
+            List<String> accounts = new ArrayList<String>();
+            List<Integer> uids = new ArrayList<Integer>();
+            for (LoopbackChannel member : members.keySet()) {
+                accounts.add(member.session.account);
+                uids.add(member.session.uid);
+                member.listener.onChannelUserJoined(member.session, member, session.account, session.uid);
+            }
+            members.put(this, Boolean.TRUE);
+            joined = true;
+            listener.onChannelJoined(session, this);
+            listener.onChannelUserList(session, this, accounts, uids);
+        }
+
+        void leave(int ecode) {
+            if (!joined) {
+                return;
+            }
+            joined = false;
+            session.joined.remove(name, this);
+            Map<LoopbackChannel, Boolean> members = channels.get(name);
+            if (members != null) {
+                members.remove(this);
+                for (LoopbackChannel member : members.keySet()) {
+                    member.listener.onChannelUserLeaved(member.session, member, session.account, session.uid);
+                }
+            }
+            listener.onChannelLeaved(session, this, ecode);
+        }
+
+        public void messageChannelSend(final String msg) {
+            sent.incrementAndGet();
+            Map<LoopbackChannel, Boolean> members = channels.get(name);
+            if (!joined || members == null) {
+                return;
+            }
+            // the service fans out, so the sender's uplink is only used once per message
+            long uplinkNanos = session.reserveUplink(sizeOf(session.account, msg));
+            for (final LoopbackChannel member : members.keySet()) {
+                deliver(uplinkNanos, new Runnable() {
+                    public void run() {
+                        if (member.joined) {
+                            delivered.incrementAndGet();
+                            member.listener.onMessageChannelReceive(member.session, member, session.account, session.uid, msg);
+                        }
+                    }
+                });
+            }
+        }
+
+        public void channelLeave() {
+            deliver(0, new Runnable() {
+                public void run() {
+                    leave(0);
+                }
+            });
+        }
+    }
+}
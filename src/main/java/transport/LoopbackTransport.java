@@ -0,0 +1,34 @@
+package transport;
+
+/**
+ * {@link SignalTransport} that logs in to an in-process {@link LoopbackBroker} instead of
+ * the Agora service. Several transports may share one broker, which is how multiple Signal
+ * instances talking to the same service are simulated.
+ */
+public class LoopbackTransport implements SignalTransport {
+
+    private final String name;
+    private final LoopbackBroker broker;
+
+    public LoopbackTransport(String name, LoopbackBroker broker) {
+        this.name = name;
+        this.broker = broker;
+    }
+
+    public LoopbackBroker getBroker() {
+        return broker;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void login(String account, String token, LoginListener listener) {
+        broker.login(this, account, listener);
+    }
+
+    @Override
+    public String toString() {
+        return "LoopbackTransport[" + name + "]";
+    }
+}
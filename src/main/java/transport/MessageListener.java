@@ -0,0 +1,13 @@
+package transport;
+
+/**
+ * Outcome of a single instant message, mirrors {@code Signal.MessageCallback}.
+ */
+public abstract class MessageListener {
+
+    public void onMessageSendSuccess(TransportSession session) {
+    }
+
+    public void onMessageSendError(TransportSession session, int ecode) {
+    }
+}
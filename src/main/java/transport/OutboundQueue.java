@@ -0,0 +1,402 @@
+package transport;
+
+import metrics.MetricScope;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Send queue of one session. First attempts leave in the order messages were queued, limited
+ * by three things:
+ * <ul>
+ * <li>an in-flight window: at most {@code window} instant messages without a
+ * {@link MessageListener} answer; an ack that never comes counts as an error after
+ * {@code ackTimeoutMs};</li>
+ * <li>a token bucket of {@code ratePerSecond} sends, so bursts stay under the service quota;</li>
+ * <li>the queue capacity: a full queue rejects the message instead of queueing it, which is
+ * the producer's signal to slow down.</li>
+ * </ul>
+ * Failed instant messages are retried up to {@code maxRetries} times with doubling delay,
+ * which means a late ack can produce a duplicate. A retry goes back to the head of the queue
+ * once its delay is over, by which time later messages to the same peer have usually been
+ * sent, so a retried message can reach the peer after messages queued behind it. Channel
+ * messages have no ack, so they only take a token. Every message is a send of its own: the
+ * protocol has no framing that would let receivers split joined messages apart.
+ * <p>
+ * While the session is being replaced, see {@link ReconnectManager}, the queue is suspended:
+ * it keeps accepting messages, and attempts that fail meanwhile go back to the head of the
+ * queue without using up a retry. They go back in the order they fail, which need not be the
+ * order they were queued in.
+ */
+public class OutboundQueue {
+
+    public static final int ECODE_QUEUE_CLOSED = -1;
+    public static final int ECODE_ACK_TIMEOUT = -2;
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "signal-outbound");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public enum Admission {
+        ACCEPTED, FULL, CLOSED
+    }
+
+    private volatile TransportSession session;
+    private final int capacity;
+    private final int window;
+    private final int ratePerSecond;
+    private final int maxRetries;
+    private final long retryDelayMs;
+    private final long ackTimeoutMs;
+
+    private final ArrayDeque<Outbound> queue = new ArrayDeque<>();
+    private final AtomicInteger wanted = new AtomicInteger();
+    private int inFlight;
+    private boolean closed;
+    private boolean suspended;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private boolean wakeUpScheduled;
+    private volatile MetricScope metrics;
+
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public OutboundQueue(TransportSession session, int capacity, int window, int ratePerSecond,
+                         int maxRetries, long retryDelayMs, long ackTimeoutMs) {
+        this.session = session;
+        this.capacity = capacity;
+        this.window = Math.max(1, window);
+        this.ratePerSecond = ratePerSecond;
+        this.maxRetries = maxRetries;
+        this.retryDelayMs = retryDelayMs;
+        this.ackTimeoutMs = ackTimeoutMs;
+        this.tokens = ratePerSecond;
+    }
+
+    public TransportSession getSession() {
+        return session;
+    }
+
+    /**
+     * Records send-to-ack latency, ack timeouts and final failures into {@code metrics}.
+     */
+    public void setMetrics(MetricScope metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queues an instant message; {@code listener} hears the final outcome after any retries.
+     */
+    public Admission sendInstant(String peerAccount, String msg, MessageListener listener) {
+        return admit(new Outbound(peerAccount, null, msg, listener));
+    }
+
+    /**
+     * Queues a channel message.
+     */
+    public Admission sendChannel(TransportChannel channel, String msg) {
+        return admit(new Outbound(null, channel, msg, null));
+    }
+
+    /**
+     * True while the queue is at most half full; producers that got {@link Admission#FULL}
+     * can poll this before offering more.
+     */
+    public synchronized boolean isWritable() {
+        return !closed && queue.size() <= capacity / 2;
+    }
+
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    public long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    public long getSucceededCount() {
+        return succeeded.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getRetriedCount() {
+        return retried.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Stops sending. Queued instant messages fail with {@link #ECODE_QUEUE_CLOSED}; answers for
+     * messages already in flight are still passed on.
+     */
+    public void close() {
+        List<Outbound> abandoned;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            abandoned = new ArrayList<>(queue);
+            queue.clear();
+        }
+        for (Outbound message : abandoned) {
+            fail(message, ECODE_QUEUE_CLOSED);
+        }
+    }
+
+    /**
+     * Holds queued messages until {@link #resume}.
+     */
+    public synchronized void suspend() {
+        suspended = true;
+    }
+
+    /**
+     * Sends the held messages on {@code session}. Channel messages move to the channel of the
+     * same name in {@code channels}; those whose channel was not rejoined are dropped.
+     */
+    public void resume(TransportSession session, Map<String, TransportChannel> channels) {
+        List<Outbound> dropped = new ArrayList<>();
+        synchronized (this) {
+            this.session = session;
+            suspended = false;
+            for (Iterator<Outbound> it = queue.iterator(); it.hasNext(); ) {
+                Outbound message = it.next();
+                if (!message.isInstant()) {
+                    TransportChannel channel = channels.get(message.channel.getName());
+                    if (channel == null) {
+                        it.remove();
+                        dropped.add(message);
+                    } else {
+                        message.channel = channel;
+                    }
+                }
+            }
+        }
+        for (Outbound message : dropped) {
+            fail(message, ECODE_QUEUE_CLOSED);
+        }
+        drain();
+    }
+
+    public synchronized boolean isSuspended() {
+        return suspended;
+    }
+
+    private Admission admit(Outbound message) {
+        synchronized (this) {
+            if (closed) {
+                return Admission.CLOSED;
+            }
+            if (queue.size() >= capacity) {
+                rejected.incrementAndGet();
+                return Admission.FULL;
+            }
+            queue.addLast(message);
+        }
+        drain();
+        return Admission.ACCEPTED;
+    }
+
+    /**
+     * Sends whatever the window and the bucket allow. Acks that arrive synchronously call back
+     * in here, so the work is looped rather than recursed, as in AsyncSignalClient's bounded runs.
+     */
+    private void drain() {
+        if (wanted.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            Outbound next;
+            while ((next = poll()) != null) {
+                dispatch(next);
+            }
+        } while (wanted.decrementAndGet() != 0);
+    }
+
+    private synchronized Outbound poll() {
+        Outbound head = queue.peekFirst();
+        if (closed || suspended || head == null) {
+            return null;
+        }
+        if (head.isInstant() && inFlight >= window) {
+            return null;
+        }
+        if (!takeToken()) {
+            return null;
+        }
+        queue.pollFirst();
+        if (head.isInstant()) {
+            inFlight++;
+        }
+        return head;
+    }
+
+    private boolean takeToken() {
+        if (ratePerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(ratePerSecond, tokens + (now - refilledAt) * ratePerSecond / 1e9);
+        refilledAt = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        if (!wakeUpScheduled) {
+            wakeUpScheduled = true;
+            long waitNanos = (long) ((1 - tokens) * 1e9 / ratePerSecond) + 1;
+            TIMER.schedule(() -> {
+                synchronized (OutboundQueue.this) {
+                    wakeUpScheduled = false;
+                }
+                drain();
+            }, waitNanos, TimeUnit.NANOSECONDS);
+        }
+        return false;
+    }
+
+    private void dispatch(final Outbound message) {
+        dispatched.incrementAndGet();
+        if (!message.isInstant()) {
+            try {
+                message.channel.messageChannelSend(message.msg);
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+            }
+            return;
+        }
+        message.attempts++;
+        message.dispatchedAt = System.nanoTime();
+        final AtomicBoolean answered = new AtomicBoolean();
+        final ScheduledFuture<?> timer = ackTimeoutMs <= 0 ? null : TIMER.schedule(
+                () -> answered(message, answered, null, ECODE_ACK_TIMEOUT), ackTimeoutMs, TimeUnit.MILLISECONDS);
+        try {
+            session.messageInstantSend(message.peer, message.msg, new MessageListener() {
+                @Override
+                public void onMessageSendSuccess(TransportSession s) {
+                    answered(message, answered, timer, 0);
+                }
+
+                @Override
+                public void onMessageSendError(TransportSession s, int ecode) {
+                    answered(message, answered, timer, ecode);
+                }
+            });
+        } catch (RuntimeException e) {
+            answered(message, answered, timer, ECODE_QUEUE_CLOSED);
+        }
+    }
+
+    /**
+     * First answer for an attempt wins: the ack, the error or the ack timeout.
+     */
+    private void answered(final Outbound message, AtomicBoolean answered, ScheduledFuture<?> timer, int ecode) {
+        if (!answered.compareAndSet(false, true)) {
+            return;
+        }
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        MetricScope recorder = metrics;
+        if (recorder != null) {
+            if (ecode == 0) {
+                recorder.recordSendAck(System.nanoTime() - message.dispatchedAt);
+            } else if (ecode == ECODE_ACK_TIMEOUT) {
+                recorder.timedOut();
+            }
+        }
+        boolean retry;
+        boolean hold;
+        synchronized (this) {
+            inFlight--;
+            hold = ecode != 0 && !closed && suspended;
+            retry = ecode != 0 && !closed && message.attempts <= maxRetries;
+        }
+        if (hold) {
+            // lost with the old session, not the message's fault
+            message.attempts--;
+            requeue(message);
+            return;
+        } else if (ecode == 0) {
+            succeeded.incrementAndGet();
+            message.listener.onMessageSendSuccess(session);
+        } else if (retry) {
+            retried.incrementAndGet();
+            long delay = retryDelayMs << Math.min(message.attempts - 1, 16);
+            TIMER.schedule(() -> requeue(message), delay, TimeUnit.MILLISECONDS);
+        } else {
+            fail(message, ecode);
+        }
+        drain();
+    }
+
+    private void requeue(Outbound message) {
+        synchronized (this) {
+            if (!closed) {
+                queue.addFirst(message);
+                message = null;
+            }
+        }
+        if (message != null) {
+            fail(message, ECODE_QUEUE_CLOSED);
+        }
+        drain();
+    }
+
+    private void fail(Outbound message, int ecode) {
+        failed.incrementAndGet();
+        MetricScope recorder = metrics;
+        if (recorder != null) {
+            recorder.sendFailed();
+        }
+        if (message.isInstant()) {
+            message.listener.onMessageSendError(session, ecode);
+        }
+    }
+
+    private static class Outbound {
+        final String peer;
+        TransportChannel channel;
+        final MessageListener listener;
+        final String msg;
+        int attempts;
+        long dispatchedAt;
+
+        Outbound(String peer, TransportChannel channel, String msg, MessageListener listener) {
+            this.peer = peer;
+            this.channel = channel;
+            this.msg = msg;
+            this.listener = listener;
+        }
+
+        boolean isInstant() {
+            return channel == null;
+        }
+    }
+}
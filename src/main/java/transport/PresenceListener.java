@@ -0,0 +1,14 @@
+package transport;
+
+import java.util.Map;
+
+/**
+ * Answer to {@link TransportSession#queryUserStatus}: online or not for each account the
+ * service knows about. Accounts missing from the map are unknown; a null map means the session
+ * cannot ask at all.
+ */
+public abstract class PresenceListener {
+
+    public void onUserStatus(TransportSession session, Map<String, Boolean> online) {
+    }
+}
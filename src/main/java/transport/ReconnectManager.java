@@ -0,0 +1,166 @@
+package transport;
+
+import metrics.MetricScope;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Logs a session back in after it was lost. Attempts are spaced by exponential backoff with
+ * full jitter: before attempt n the manager waits a random time between 0 and
+ * {@code initialDelayMs * 2^(n-1)}, capped at {@code maxDelayMs}, so clients that lost the
+ * service at the same moment do not all come back at the same moment.
+ * <p>
+ * Once logged in, the previously joined channels are rejoined in parallel and the session's
+ * {@link OutboundQueue} is pointed at the new session, so messages queued during the outage
+ * are sent instead of lost. The time from the loss to that point is recorded as the
+ * recovery time.
+ */
+public class ReconnectManager {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "signal-reconnect");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AsyncSignalClient client;
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final int maxAttempts;
+    private final int rejoinConcurrency;
+
+    /**
+     * @param maxAttempts logins tried before giving up, 0 for no limit
+     */
+    public ReconnectManager(AsyncSignalClient client, long initialDelayMs, long maxDelayMs, int maxAttempts,
+                            int rejoinConcurrency) {
+        this.client = client;
+        this.initialDelayMs = Math.max(1, initialDelayMs);
+        this.maxDelayMs = Math.max(this.initialDelayMs, maxDelayMs);
+        this.maxAttempts = maxAttempts;
+        this.rejoinConcurrency = Math.max(1, rejoinConcurrency);
+    }
+
+    /**
+     * Replaces a lost session: logs in again, retrying any failure, then rejoins
+     * {@code channels}. {@code outbound}, if given, holds its messages until then and is
+     * closed if the manager gives up. Channels that cannot be rejoined are listed in the
+     * result; the recovery itself only fails if no login succeeds.
+     */
+    public CompletableFuture<Recovery> recover(SignalTransport transport, String account, String token,
+                                               LoginListener events, final List<String> channels,
+                                               Function<String, ChannelListener> channelEvents,
+                                               final OutboundQueue outbound, final MetricScope metrics) {
+        final long lostAt = System.nanoTime();
+        if (outbound != null) {
+            outbound.suspend();
+        }
+        final CompletableFuture<TransportSession> login = new CompletableFuture<>();
+        TIMER.schedule(() -> attempt(transport, account, token, events, metrics, 1, login),
+                delayBefore(1), TimeUnit.MILLISECONDS);
+        CompletableFuture<Recovery> recovery = login.thenCompose(session -> client
+                .joinAll(session, channels, channelEvents, rejoinConcurrency)
+                .thenApply(joined -> {
+                    if (outbound != null) {
+                        outbound.resume(session, joined.getSucceeded());
+                    }
+                    Recovery done = new Recovery(session, joined, System.nanoTime() - lostAt);
+                    if (metrics != null) {
+                        metrics.recordRecovery(done.getNanos());
+                    }
+                    return done;
+                }));
+        recovery.whenComplete((done, error) -> {
+            if (error != null) {
+                if (outbound != null) {
+                    outbound.close();
+                }
+                if (metrics != null) {
+                    metrics.recoveryFailed();
+                }
+            }
+        });
+        return recovery;
+    }
+
+    /**
+     * Upper bound of the random wait before attempt {@code n}, counting from 1.
+     */
+    long backoffCeiling(int attempt) {
+        int shift = Math.min(Math.max(0, attempt - 1), 30);
+        return Math.min(maxDelayMs, initialDelayMs << shift);
+    }
+
+    private long delayBefore(int attempt) {
+        return ThreadLocalRandom.current().nextLong(backoffCeiling(attempt) + 1);
+    }
+
+    private void attempt(final SignalTransport transport, final String account, final String token,
+                         final LoginListener events, final MetricScope metrics, final int attempt, final CompletableFuture<TransportSession> result) {
+        if (metrics != null) {
+            metrics.reconnectAttempted();
+        }
+        CompletableFuture<TransportSession> login;
+        try {
+            login = client.login(transport, account, token, events);
+        } catch (RuntimeException e) {
+            login = new CompletableFuture<>();
+            login.completeExceptionally(e);
+        }
+        login.whenComplete((session, error) -> {
+            if (error == null) {
+                result.complete(session);
+                return;
+            }
+            if (maxAttempts > 0 && attempt >= maxAttempts) {
+                result.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                return;
+            }
+            TIMER.schedule(() -> attempt(transport, account, token, events, metrics, attempt + 1, result),
+                    delayBefore(attempt + 1), TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * A recovered session and the channels it is back in.
+     */
+    public static class Recovery {
+        private final TransportSession session;
+        private final BulkResult<TransportChannel> channels;
+        private final long nanos;
+
+        Recovery(TransportSession session, BulkResult<TransportChannel> channels, long nanos) {
+            this.session = session;
+            this.channels = channels;
+            this.nanos = nanos;
+        }
+
+        public TransportSession getSession() {
+            return session;
+        }
+
+        public Map<String, TransportChannel> getChannels() {
+            return channels == null ? Collections.<String, TransportChannel>emptyMap() : channels.getSucceeded();
+        }
+
+        public Map<String, Throwable> getLostChannels() {
+            return channels == null ? Collections.<String, Throwable>emptyMap() : channels.getFailed();
+        }
+
+        /**
+         * Time from the loss to the end of the recovery.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+    }
+}
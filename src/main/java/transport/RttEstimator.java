@@ -0,0 +1,120 @@
+package transport;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip time of each kind of operation on each Signal instance, kept like TCP keeps its
+ * retransmission timeout (RFC 6298): a smoothed mean and mean deviation of the answers seen,
+ * the timeout being the mean plus four deviations. Until the first answer the timeout is
+ * {@code initialMs}; an operation that times out doubles it until the next answer, so a
+ * service that got slower is not hammered at the old pace. Timeouts stay within
+ * {@code minMs} and {@code maxMs}.
+ */
+public class RttEstimator {
+
+    private final long initialMs;
+    private final long minMs;
+    private final long maxMs;
+    private final Map<String, Estimate> estimates = new ConcurrentHashMap<>();
+
+    public RttEstimator(long initialMs, long minMs, long maxMs) {
+        this.maxMs = Math.max(1, maxMs);
+        this.minMs = Math.min(Math.max(1, minMs), this.maxMs);
+        this.initialMs = clamp(initialMs);
+    }
+
+    public static String key(String instance, String operation) {
+        return instance + "/" + operation;
+    }
+
+    /**
+     * How long an answer for {@code key} may take before it is presumed lost, in ms.
+     */
+    public long timeout(String key) {
+        Estimate estimate = estimates.get(key);
+        return estimate == null ? initialMs : estimate.timeoutMs();
+    }
+
+    /**
+     * Records an answer that took {@code nanos} since its own request was sent.
+     */
+    public void sample(String key, long nanos) {
+        estimate(key).sample(nanos);
+    }
+
+    /**
+     * Records an operation that got no answer in time.
+     */
+    public void timedOut(String key) {
+        estimate(key).backOff();
+    }
+
+    /**
+     * One line per key: smoothed round trip, deviation and current timeout, in ms.
+     */
+    public String describe() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Estimate> entry : new TreeMap<>(estimates).entrySet()) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        return text.toString();
+    }
+
+    private Estimate estimate(String key) {
+        Estimate estimate = estimates.get(key);
+        if (estimate == null) {
+            Estimate created = new Estimate();
+            estimate = estimates.putIfAbsent(key, created);
+            if (estimate == null) {
+                estimate = created;
+            }
+        }
+        return estimate;
+    }
+
+    private long clamp(long ms) {
+        return Math.max(minMs, Math.min(maxMs, ms));
+    }
+
+    private class Estimate {
+        private long srttNanos = -1;
+        private long rttvarNanos;
+        private long timeoutMs = initialMs;
+        private long samples;
+        private long timeouts;
+
+        synchronized void sample(long nanos) {
+            if (srttNanos < 0) {
+                srttNanos = nanos;
+                rttvarNanos = nanos / 2;
+            } else {
+                rttvarNanos += (Math.abs(srttNanos - nanos) - rttvarNanos) / 4;
+                srttNanos += (nanos - srttNanos) / 8;
+            }
+            samples++;
+            timeoutMs = clamp(TimeUnit.NANOSECONDS.toMillis(srttNanos + 4 * rttvarNanos) + 1);
+        }
+
+        synchronized void backOff() {
+            timeouts++;
+            timeoutMs = clamp(timeoutMs * 2);
+        }
+
+        synchronized long timeoutMs() {
+            return timeoutMs;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ROOT, "srtt=%.1fms rttvar=%.1fms timeout=%dms samples=%d timeouts=%d",
+                    Math.max(0, srttNanos) / 1e6, rttvarNanos / 1e6, timeoutMs, samples, timeouts);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package transport;
+
+/**
+ * A signaling operation that the service answered with an error code.
+ */
+public class SignalException extends Exception {
+
+    private final int ecode;
+
+    public SignalException(String message, int ecode) {
+        super(message + " (ecode " + ecode + ")");
+        this.ecode = ecode;
+    }
+
+    public int getEcode() {
+        return ecode;
+    }
+}
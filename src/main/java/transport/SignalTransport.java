@@ -0,0 +1,19 @@
+package transport;
+
+/**
+ * Entry point of a signaling backend, the equivalent of one {@code io.agora.signal.Signal}
+ * instance. {@code WorkerThread} and {@link model.User} only talk to this interface so the
+ * Agora SDK can be swapped for the in-process {@link LoopbackTransport}.
+ */
+public interface SignalTransport {
+
+    /**
+     * Starts an asynchronous login. The outcome is reported through {@code listener}.
+     */
+    void login(String account, String token, LoginListener listener);
+
+    /**
+     * Identifier of the backend instance, the app id for Agora.
+     */
+    String getName();
+}
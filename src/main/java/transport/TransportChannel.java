@@ -0,0 +1,13 @@
+package transport;
+
+/**
+ * A joined channel, the equivalent of {@code Signal.LoginSession.Channel}.
+ */
+public interface TransportChannel {
+
+    String getName();
+
+    void messageChannelSend(String msg);
+
+    void channelLeave();
+}
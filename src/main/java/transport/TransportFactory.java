@@ -0,0 +1,37 @@
+package transport;
+
+/**
+ * Creates the {@link SignalTransport} for an app id. The Agora SDK is used unless the
+ * {@code signal.transport} system property is {@code loopback}, in which case every
+ * transport shares one in-process {@link LoopbackBroker} whose link can be shaped with
+ * {@code loopback.latency}, {@code loopback.jitter} (ms), {@code loopback.loss} (0..1) and
+ * {@code loopback.bandwidth} (bytes/s).
+ */
+public class TransportFactory {
+
+    public static final String PROPERTY_TRANSPORT = "signal.transport";
+    public static final String TRANSPORT_AGORA = "agora";
+    public static final String TRANSPORT_LOOPBACK = "loopback";
+
+    private static LoopbackBroker sharedBroker;
+
+    public static SignalTransport create(String appId) {
+        String kind = System.getProperty(PROPERTY_TRANSPORT, TRANSPORT_AGORA);
+        if (kind.equals(TRANSPORT_LOOPBACK)) {
+            return new LoopbackTransport(appId, getSharedBroker());
+        }
+        return new AgoraSignalTransport(appId);
+    }
+
+    public static synchronized LoopbackBroker getSharedBroker() {
+        if (sharedBroker == null) {
+            LinkProfile profile = new LinkProfile(
+                    Long.getLong("loopback.latency", 0L),
+                    Long.getLong("loopback.jitter", 0L),
+                    Double.parseDouble(System.getProperty("loopback.loss", "0")),
+                    Long.getLong("loopback.bandwidth", 0L));
+            sharedBroker = new LoopbackBroker(profile, Integer.getInteger("loopback.threads", 1));
+        }
+        return sharedBroker;
+    }
+}
@@ -0,0 +1,460 @@
+package transport;
+
+import metrics.RateMeter;
+import tool.StringHash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads accounts over one {@link SignalTransport} per app id. Accounts are placed by
+ * consistent hashing with bounded loads: each instance owns {@code virtualNodes} points on a
+ * hash ring, and an account goes to the first instance clockwise from its hash whose load
+ * stays within {@code loadFactor} times the average. Load is the number of placed sessions
+ * plus the instance's recent message rate divided by {@code messagesPerSession}, so a few
+ * busy sessions weigh as much as many idle ones.
+ * <p>
+ * The transports handed out are wrappers that track this load themselves: a placement ends
+ * when the last session of the account on its instance logs out, or a login fails while the
+ * account has none. Sessions that replace each other, such as the attempts of a hedged login,
+ * keep it placed throughout, and a session that logs in after its account was released is
+ * placed again. A caller that gives up on a login that never answers should {@link #release} the
+ * account.
+ */
+public class TransportPool {
+
+    private final int virtualNodes;
+    private final double loadFactor;
+    private final double messagesPerSession;
+
+    private final List<Member> members = new CopyOnWriteArrayList<>();
+    private final Map<String, Member> placements = new ConcurrentHashMap<>();
+    private volatile TreeMap<Long, Member> ring = new TreeMap<>();
+
+    public TransportPool(int virtualNodes, double loadFactor, double messagesPerSession) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+        this.loadFactor = Math.max(1, loadFactor);
+        this.messagesPerSession = messagesPerSession;
+    }
+
+    /**
+     * Creates a transport through {@link TransportFactory} for each app id.
+     */
+    public static TransportPool forAppIds(List<String> appIds, int virtualNodes, double loadFactor,
+                                          double messagesPerSession) {
+        TransportPool pool = new TransportPool(virtualNodes, loadFactor, messagesPerSession);
+        for (String appId : appIds) {
+            pool.add(appId, TransportFactory.create(appId));
+        }
+        return pool;
+    }
+
+    /**
+     * Adds an instance and returns its load tracking wrapper. Only accounts placed after this
+     * call can land on it; see {@link #rebalance}.
+     */
+    public synchronized SignalTransport add(String appId, SignalTransport transport) {
+        Member member = new Member(appId, transport);
+        members.add(member);
+        TreeMap<Long, Member> next = new TreeMap<>(ring);
+        for (int i = 0; i < virtualNodes; i++) {
+            next.put(StringHash.hash(appId + "#" + i), member);
+        }
+        ring = next;
+        return member.pooled;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * Returns the transport {@code account} should log in on. An account that is already
+     * placed keeps its instance.
+     */
+    public SignalTransport assign(String account) {
+        Member placed = placements.get(account);
+        if (placed != null) {
+            return placed.pooled;
+        }
+        Member chosen = choose(account);
+        placed = placements.putIfAbsent(account, chosen);
+        if (placed != null) {
+            return placed.pooled;
+        }
+        chosen.sessions.incrementAndGet();
+        return chosen.pooled;
+    }
+
+    /**
+     * Forgets the placement of {@code account}; a no-op if it is not placed.
+     */
+    public void release(String account) {
+        Member member = placements.remove(account);
+        if (member != null) {
+            member.sessions.decrementAndGet();
+        }
+    }
+
+    /**
+     * Lists the accounts that should move so that every instance is back within the load
+     * bound, for example after an instance was added or a few sessions became very busy.
+     * Nothing moves by itself: the caller logs each account out, releases it and assigns it
+     * again.
+     */
+    public List<String> rebalance() {
+        if (members.size() < 2) {
+            return Collections.emptyList();
+        }
+        Map<Member, List<String>> byMember = new HashMap<>();
+        for (Map.Entry<String, Member> placement : placements.entrySet()) {
+            byMember.computeIfAbsent(placement.getValue(), m -> new ArrayList<>()).add(placement.getKey());
+        }
+        double bound = bound(0);
+        List<String> moves = new ArrayList<>();
+        for (Member member : members) {
+            List<String> accounts = byMember.get(member);
+            double excess = member.load() - bound;
+            if (accounts == null || excess <= 0) {
+                continue;
+            }
+            double perSession = member.load() / accounts.size();
+            for (int i = accounts.size() - 1; i >= 0 && excess > 0; i--) {
+                moves.add(accounts.get(i));
+                excess -= perSession;
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * One line per instance: app id, placed sessions and message rate.
+     */
+    public String describe() {
+        StringBuilder builder = new StringBuilder();
+        for (Member member : members) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(member.appId).append(": sessions=").append(member.sessions.get())
+                    .append(String.format(" msgs/s=%.1f load=%.1f", member.messages.getRate(), member.load()));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Placed sessions per app id.
+     */
+    public Map<String, Integer> getSessionCounts() {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (Member member : members) {
+            counts.put(member.appId, member.sessions.get());
+        }
+        return counts;
+    }
+
+    private Member choose(String account) {
+        TreeMap<Long, Member> current = ring;
+        if (current.isEmpty()) {
+            throw new IllegalStateException("no transports in the pool");
+        }
+        double bound = bound(1);
+        long point = StringHash.hash(account);
+        Member lightest = null;
+        double lightestLoad = Double.MAX_VALUE;
+        Set<Member> seen = new HashSet<>();
+        Iterator<Member> clockwise = new Clockwise(current, point);
+        while (clockwise.hasNext() && seen.size() < members.size()) {
+            Member member = clockwise.next();
+            if (!seen.add(member)) {
+                continue;
+            }
+            double load = member.load();
+            if (load + 1 <= bound) {
+                return member;
+            }
+            if (load < lightestLoad) {
+                lightest = member;
+                lightestLoad = load;
+            }
+        }
+        return lightest != null ? lightest : current.firstEntry().getValue();
+    }
+
+    private double bound(int adding) {
+        double total = adding;
+        for (Member member : members) {
+            total += member.load();
+        }
+        return Math.max(1, loadFactor * total / members.size());
+    }
+
+    /**
+     * Ring points from {@code point} to the end, then from the start back to {@code point}.
+     */
+    private static class Clockwise implements Iterator<Member> {
+        private final TreeMap<Long, Member> ring;
+        private final long point;
+        private Iterator<Member> current;
+        private boolean wrapped;
+
+        Clockwise(TreeMap<Long, Member> ring, long point) {
+            this.ring = ring;
+            this.point = point;
+            this.current = ring.tailMap(point, true).values().iterator();
+        }
+
+        public boolean hasNext() {
+            if (!current.hasNext() && !wrapped) {
+                wrapped = true;
+                current = ring.headMap(point, false).values().iterator();
+            }
+            return current.hasNext();
+        }
+
+        public Member next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+    }
+
+    private class Member {
+        final String appId;
+        final SignalTransport transport;
+        final SignalTransport pooled;
+        final AtomicInteger sessions = new AtomicInteger();
+        final RateMeter messages = new RateMeter();
+        // sessions of each account logged in on this instance
+        final Map<String, Integer> online = new ConcurrentHashMap<>();
+
+        Member(String appId, SignalTransport transport) {
+            this.appId = appId;
+            this.transport = transport;
+            this.pooled = new PooledTransport(this);
+        }
+
+        double load() {
+            double busy = messagesPerSession > 0 ? messages.getRate() / messagesPerSession : 0;
+            return sessions.get() + busy;
+        }
+    }
+
+    private class PooledTransport implements SignalTransport {
+        private final Member member;
+
+        PooledTransport(Member member) {
+            this.member = member;
+        }
+
+        public void login(final String account, String token, final LoginListener listener) {
+            member.transport.login(account, token, new LoginListener() {
+                private PooledSession pooled;
+                private boolean counted;
+                private boolean gone;
+
+                private synchronized PooledSession wrap(TransportSession session) {
+                    if (pooled == null) {
+                        pooled = new PooledSession(member, session);
+                    }
+                    return pooled;
+                }
+
+                @Override
+                public void onLoginSuccess(TransportSession session, int uid) {
+                    synchronized (this) {
+                        // a session logged out before its login was handled is not counted
+                        if (!gone && !counted) {
+                            counted = true;
+                            online(account, 1);
+                        }
+                    }
+                    listener.onLoginSuccess(wrap(session), uid);
+                }
+
+                @Override
+                public void onLoginFailed(TransportSession session, int ecode) {
+                    synchronized (this) {
+                        gone = true;
+                        online(account, 0);
+                    }
+                    listener.onLoginFailed(wrap(session), ecode);
+                }
+
+                @Override
+                public void onLogout(TransportSession session, int ecode) {
+                    synchronized (this) {
+                        gone = true;
+                        online(account, counted ? -1 : 0);
+                        counted = false;
+                    }
+                    listener.onLogout(wrap(session), ecode);
+                }
+
+                @Override
+                public void onMessageInstantReceive(TransportSession session, String peer, int uid, String msg) {
+                    member.messages.mark();
+                    listener.onMessageInstantReceive(wrap(session), peer, uid, msg);
+                }
+            });
+        }
+
+        /**
+         * Adds {@code delta} to the sessions of {@code account}, placing it on this instance
+         * when one logs in and releasing it when none is left.
+         */
+        private void online(String account, int delta) {
+            member.online.compute(account, (key, count) -> {
+                int sessions = (count == null ? 0 : count) + delta;
+                if (sessions > 0) {
+                    if (delta > 0 && placements.putIfAbsent(account, member) == null) {
+                        member.sessions.incrementAndGet();
+                    }
+                    return sessions;
+                }
+                releaseIfPlaced(account);
+                return null;
+            });
+        }
+
+        private void releaseIfPlaced(String account) {
+            if (placements.remove(account, member)) {
+                member.sessions.decrementAndGet();
+            }
+        }
+
+        public String getName() {
+            return member.transport.getName();
+        }
+
+        @Override
+        public String toString() {
+            return member.transport.toString();
+        }
+    }
+
+    private static class PooledSession implements TransportSession {
+        private final Member member;
+        private final TransportSession session;
+
+        PooledSession(Member member, TransportSession session) {
+            this.member = member;
+            this.session = session;
+        }
+
+        public String getAccount() {
+            return session.getAccount();
+        }
+
+        public int getUid() {
+            return session.getUid();
+        }
+
+        public void logout() {
+            session.logout();
+        }
+
+        public void messageInstantSend(String peerAccount, String msg, MessageListener listener) {
+            member.messages.mark();
+            session.messageInstantSend(peerAccount, msg, listener);
+        }
+
+        @Override
+        public void queryUserStatus(List<String> accounts, final PresenceListener listener) {
+            final PooledSession pooled = this;
+            session.queryUserStatus(accounts, new PresenceListener() {
+                @Override
+                public void onUserStatus(TransportSession s, Map<String, Boolean> online) {
+                    listener.onUserStatus(pooled, online);
+                }
+            });
+        }
+
+        public TransportChannel channelJoin(String channelName, final ChannelListener listener) {
+            final PooledSession pooled = this;
+            final PooledChannel[] joined = new PooledChannel[1];
+            TransportChannel channel = session.channelJoin(channelName, new ChannelListener() {
+                @Override
+                public void onChannelJoined(TransportSession s, TransportChannel channel) {
+                    listener.onChannelJoined(pooled, wrap(channel));
+                }
+
+                @Override
+                public void onChannelUserList(TransportSession s, TransportChannel channel, List<String> users, List<Integer> uids) {
+                    listener.onChannelUserList(pooled, wrap(channel), users, uids);
+                }
+
+                @Override
+                public void onMessageChannelReceive(TransportSession s, TransportChannel channel, String account, int uid, String msg) {
+                    member.messages.mark();
+                    listener.onMessageChannelReceive(pooled, wrap(channel), account, uid, msg);
+                }
+
+                @Override
+                public void onChannelUserJoined(TransportSession s, TransportChannel channel, String account, int uid) {
+                    listener.onChannelUserJoined(pooled, wrap(channel), account, uid);
+                }
+
+                @Override
+                public void onChannelUserLeaved(TransportSession s, TransportChannel channel, String account, int uid) {
+                    listener.onChannelUserLeaved(pooled, wrap(channel), account, uid);
+                }
+
+                @Override
+                public void onChannelLeaved(TransportSession s, TransportChannel channel, int ecode) {
+                    listener.onChannelLeaved(pooled, wrap(channel), ecode);
+                }
+
+                private TransportChannel wrap(TransportChannel channel) {
+                    synchronized (joined) {
+                        if (joined[0] == null) {
+                            joined[0] = new PooledChannel(member, channel);
+                        }
+                        return joined[0];
+                    }
+                }
+            });
+            synchronized (joined) {
+                if (joined[0] == null) {
+                    joined[0] = new PooledChannel(member, channel);
+                }
+                return joined[0];
+            }
+        }
+    }
+
+    private static class PooledChannel implements TransportChannel {
+        private final Member member;
+        private final TransportChannel channel;
+
+        PooledChannel(Member member, TransportChannel channel) {
+            this.member = member;
+            this.channel = channel;
+        }
+
+        public String getName() {
+            return channel.getName();
+        }
+
+        public void messageChannelSend(String msg) {
+            member.messages.mark();
+            channel.messageChannelSend(msg);
+        }
+
+        public void channelLeave() {
+            channel.channelLeave();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package transport;
+
+import java.util.List;
+
+/**
+ * A logged in account, the equivalent of {@code Signal.LoginSession}.
+ */
+public interface TransportSession {
+
+    String getAccount();
+
+    int getUid();
+
+    void logout();
+
+    void messageInstantSend(String peerAccount, String msg, MessageListener listener);
+
+    TransportChannel channelJoin(String channelName, ChannelListener listener);
+
+    /**
+     * Asks in one round trip which of {@code accounts} are online. Only the loopback session
+     * answers: the Agora SDK session has no such query, so by default the answer is null
+     * and presence is known there only from what the session sees.
+     */
+    default void queryUserStatus(List<String> accounts, PresenceListener listener) {
+        listener.onUserStatus(this, null);
+    }
+}
@@ -0,0 +1,213 @@
+package transport;
+
+import metrics.SignalMetrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Brings a node up without a console: creates the transport of every app id in parallel,
+ * then logs in a set of accounts and joins their channels. Creating a Signal object blocks,
+ * so creations run on a small pool of their own. Each account joins its channels as soon as
+ * its own login succeeds instead of waiting for every login, with at most
+ * {@code loginConcurrency} accounts in progress and {@code joinConcurrency} joins per account.
+ * <p>
+ * The {@link Result} reports when each stage was done, measured from the start: transports
+ * created, every login finished and every join finished, i.e. ready to serve.
+ */
+public class WarmUp {
+
+    private final AsyncSignalClient client;
+    private final int createConcurrency;
+    private final int loginConcurrency;
+    private final int joinConcurrency;
+
+    public WarmUp(AsyncSignalClient client, int createConcurrency, int loginConcurrency, int joinConcurrency) {
+        this.client = client;
+        this.createConcurrency = Math.max(1, createConcurrency);
+        this.loginConcurrency = Math.max(1, loginConcurrency);
+        this.joinConcurrency = Math.max(1, joinConcurrency);
+    }
+
+    /**
+     * Creates a transport for every app id with at most {@code concurrency} creations at a
+     * time and waits for all of them. Succeeded transports are listed in app id order.
+     */
+    public static BulkResult<SignalTransport> createTransports(List<String> appIds,
+                                                               final Function<String, SignalTransport> factory,
+                                                               int concurrency) {
+        int threads = Math.max(1, Math.min(concurrency, appIds.size()));
+        final ExecutorService creators = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "signal-create");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            BulkResult<SignalTransport> created = AsyncSignalClient.<SignalTransport>bounded(appIds,
+                    appId -> CompletableFuture.supplyAsync(() -> factory.apply(appId), creators), threads).join();
+            BulkResult<SignalTransport> ordered = new BulkResult<>();
+            Map<String, SignalTransport> succeeded = created.getSucceeded();
+            for (String appId : appIds) {
+                if (succeeded.containsKey(appId)) {
+                    ordered.success(appId, succeeded.get(appId));
+                }
+            }
+            for (Map.Entry<String, Throwable> failure : created.getFailed().entrySet()) {
+                ordered.failure(failure.getKey(), failure.getValue());
+            }
+            return ordered;
+        } finally {
+            creators.shutdown();
+        }
+    }
+
+    /**
+     * Creates the transports for {@code appIds}, adds them to {@code pool}, then logs in
+     * every account of {@code sessions} on the transport the pool assigns it and joins the
+     * channels listed for it. The future completes once everything succeeded or failed.
+     */
+    public CompletableFuture<Result> start(TransportPool pool, List<String> appIds,
+                                           final Map<String, List<String>> sessions, final String token,
+                                           final Function<String, LoginListener> loginEvents,
+                                           final BiFunction<String, String, ChannelListener> channelEvents) {
+        final Result result = new Result();
+        final long start = System.nanoTime();
+        BulkResult<SignalTransport> created = createTransports(appIds, TransportFactory::create, createConcurrency);
+        for (Map.Entry<String, SignalTransport> transport : created.getSucceeded().entrySet()) {
+            pool.add(transport.getKey(), transport.getValue());
+        }
+        result.transports = created;
+        result.transportNanos = System.nanoTime() - start;
+        if (pool.size() == 0) {
+            result.readyNanos = result.loginNanos = result.transportNanos;
+            return CompletableFuture.completedFuture(result);
+        }
+
+        final AtomicLong lastLogin = new AtomicLong(start + result.transportNanos);
+        List<String> accounts = new ArrayList<>(sessions.keySet());
+        return AsyncSignalClient.<TransportSession>bounded(accounts, account -> {
+            SignalTransport transport = pool.assign(account);
+            final long started = System.nanoTime();
+            CompletableFuture<TransportSession> login = client.login(transport, account, token, loginEvents.apply(account));
+            login.whenComplete((session, error) -> {
+                long now = System.nanoTime();
+                lastLogin.accumulateAndGet(now, Math::max);
+                if (error == null) {
+                    SignalMetrics.get().scope(transport.getName(), account).recordLogin(now - started);
+                } else {
+                    pool.release(account);
+                    SignalMetrics.get().scope(transport.getName(), account).loginFailed();
+                }
+            });
+            return login.thenCompose(session -> join(session, sessions.get(account), channelEvents, result)
+                    .thenApply(joined -> session));
+        }, loginConcurrency).thenApply(logins -> {
+            result.sessions = logins;
+            result.loginNanos = lastLogin.get() - start;
+            result.readyNanos = System.nanoTime() - start;
+            return result;
+        });
+    }
+
+    private CompletableFuture<BulkResult<TransportChannel>> join(final TransportSession session, List<String> channels,
+                                                                  final BiFunction<String, String, ChannelListener> channelEvents,
+                                                                  final Result result) {
+        if (channels == null || channels.isEmpty()) {
+            return CompletableFuture.completedFuture(new BulkResult<TransportChannel>());
+        }
+        final String account = session.getAccount();
+        return AsyncSignalClient.<TransportChannel>bounded(channels, channel -> {
+            final long started = System.nanoTime();
+            return client.join(session, channel, channelEvents.apply(account, channel)).whenComplete((joined, error) -> {
+                if (error == null) {
+                    SignalMetrics.get().scope(null, account).recordJoin(channel, System.nanoTime() - started);
+                } else {
+                    SignalMetrics.get().scope(null, account).joinFailed(channel);
+                }
+            });
+        }, joinConcurrency).whenComplete((joined, error) -> result.channels.put(account, joined));
+    }
+
+    /**
+     * What came up, what did not, and when each stage was done.
+     */
+    public static class Result {
+        private BulkResult<SignalTransport> transports = new BulkResult<>();
+        private BulkResult<TransportSession> sessions = new BulkResult<>();
+        private final Map<String, BulkResult<TransportChannel>> channels = new ConcurrentHashMap<>();
+        private long transportNanos;
+        private long loginNanos;
+        private long readyNanos;
+
+        public BulkResult<SignalTransport> getTransports() {
+            return transports;
+        }
+
+        public BulkResult<TransportSession> getSessions() {
+            return sessions;
+        }
+
+        /**
+         * The channels joined and failed per logged in account.
+         */
+        public Map<String, BulkResult<TransportChannel>> getChannels() {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(channels));
+        }
+
+        public int getJoinedCount() {
+            int joined = 0;
+            for (BulkResult<TransportChannel> result : channels.values()) {
+                joined += result.getSucceeded().size();
+            }
+            return joined;
+        }
+
+        public int getJoinFailedCount() {
+            int failed = 0;
+            for (BulkResult<TransportChannel> result : channels.values()) {
+                failed += result.getFailed().size();
+            }
+            return failed;
+        }
+
+        /**
+         * From the start until every transport was created.
+         */
+        public long getTransportNanos() {
+            return transportNanos;
+        }
+
+        /**
+         * From the start until the last login succeeded or failed.
+         */
+        public long getLoginNanos() {
+            return loginNanos;
+        }
+
+        /**
+         * From the start until the last join succeeded or failed.
+         */
+        public long getReadyNanos() {
+            return readyNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "transports %s in %.0fms | logins %s at %.0fms | joins succeeded=%d failed=%d, ready at %.0fms",
+                    transports, transportNanos / 1e6, sessions, loginNanos / 1e6, getJoinedCount(),
+                    getJoinFailedCount(), readyNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import transport.LoopbackBroker;
+import transport.LoopbackTransport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Channel messages from accounts that were not recorded, as seen by several recorded members.
+ */
+public class TrafficReplayerTest {
+
+    private LoopbackBroker broker;
+    private TrafficReplayer replayer;
+    private final List<TrafficEvent> events = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        broker = new LoopbackBroker();
+        replayer = new TrafficReplayer(new LoopbackTransport("app", broker), 2000, 0);
+    }
+
+    @After
+    public void tearDown() {
+        broker.shutdown();
+    }
+
+    @Test
+    public void repeatedMessagesAreReplayedOnceEach() {
+        for (String member : new String[]{"alice", "bob"}) {
+            add(TrafficEvent.Type.LOGIN, member, null, null);
+            add(TrafficEvent.Type.JOIN, member, null, "lobby");
+        }
+        add(TrafficEvent.Type.RECEIVE_CHANNEL, "alice", "carol", "lobby");
+        add(TrafficEvent.Type.RECEIVE_CHANNEL, "bob", "carol", "lobby");
+        add(TrafficEvent.Type.RECEIVE_CHANNEL, "alice", "carol", "lobby");
+        add(TrafficEvent.Type.RECEIVE_CHANNEL, "bob", "carol", "lobby");
+        add(TrafficEvent.Type.RECEIVE_CHANNEL, "bob", "dave", "lobby");
+
+        TrafficReplayer.Result result = replayer.replay(events);
+
+        assertEquals(0, result.getErrorCount());
+        assertEquals("bob's stream, which has the most messages", 3, result.getSentCount());
+    }
+
+    private void add(TrafficEvent.Type type, String account, String peer, String channel) {
+        // all within one second, with the same text
+        events.add(new TrafficEvent(events.size() * 1000L, type, account, peer, channel,
+                type == TrafficEvent.Type.RECEIVE_CHANNEL ? "hi" : null, 0));
+    }
+}
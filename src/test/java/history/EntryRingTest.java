@@ -0,0 +1,70 @@
+package history;
+
+import model.DialogueRecord;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Index rings that allocate as records arrive.
+ */
+public class EntryRingTest {
+
+    private static final ConversationId LOBBY = ConversationId.channel("lobby");
+
+    @Test
+    public void indexStartsSmallAndKeepsEveryRecordWhileGrowing() {
+        HistoryIndex index = new HistoryIndex(1 << 20);
+        TextIndex text = new TextIndex(1 << 20);
+        for (int i = 0; i < 5000; i++) {
+            DialogueRecord record = new DialogueRecord("alice", "hello " + i, i);
+            index.add(LOBBY, record);
+            text.add(LOBBY, record);
+        }
+
+        assertEquals(5000, count(index.query(HistoryQuery.inConversation(LOBBY))));
+        assertEquals(5000, count(text.query(HistoryQuery.matching("hello"))));
+        assertEquals(1, count(text.query(HistoryQuery.matching("17"))));
+    }
+
+    @Test
+    public void ringStopsGrowingAtItsCapacity() {
+        EntryRing ring = new EntryRing(4096);
+        assertEquals(EntryRing.INITIAL_SLOTS, ring.allocated());
+        for (long id = 0; id < 10000; id++) {
+            ring.put(id, new LogEntry(id, LOBBY, new DialogueRecord("alice", "m", id)));
+        }
+
+        assertEquals(4096, ring.allocated());
+        assertNull(ring.get(10000 - 4097));
+        assertEquals(10000 - 4096, ring.get(10000 - 4096).getSeq());
+    }
+
+    @Test
+    public void clearGoesBackToTheInitialSize() {
+        EntryRing ring = new EntryRing(1 << 20);
+        for (long id = 0; id < 3000; id++) {
+            ring.put(id, new LogEntry(id, LOBBY, new DialogueRecord("alice", "m", id)));
+        }
+        ring.clear();
+        for (long id = 1 << 20; id < (1 << 20) + 100; id++) {
+            ring.put(id, new LogEntry(id, LOBBY, new DialogueRecord("alice", "m", id)));
+        }
+
+        assertEquals(EntryRing.INITIAL_SLOTS, ring.allocated());
+        assertNull(ring.get(2999));
+        assertEquals((1 << 20) + 99, ring.get((1 << 20) + 99).getSeq());
+    }
+
+    private static int count(Iterator<LogEntry> entries) {
+        int count = 0;
+        while (entries.hasNext()) {
+            entries.next();
+            count++;
+        }
+        return count;
+    }
+}
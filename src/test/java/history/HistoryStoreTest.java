@@ -0,0 +1,139 @@
+package history;
+
+import model.DialogueRecord;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Conversations read from a {@link HistorySource}, and evicted from memory again by the
+ * budget of their own store or of several.
+ */
+public class HistoryStoreTest {
+
+    private static final ConversationId ALICE = ConversationId.p2p("alice");
+
+    private StoredHistory stored;
+    private HistoryStore store;
+
+    @Before
+    public void setUp() {
+        stored = new StoredHistory();
+        stored.appended(ALICE, record("stored0"));
+        stored.appended(ALICE, record("stored1"));
+        store = new HistoryStore(100, 2000, null);
+        store.addSink(stored);
+        store.setSource(stored);
+    }
+
+    @Test
+    public void evictedConversationIsReadAgainFromTheSource() {
+        store.append(ALICE, record("new0"));
+        evictAlice();
+
+        store.append(ALICE, record("new1"));
+
+        assertEquals(Arrays.asList("stored0", "stored1", "new0", "new1"), dialogues(store.snapshot(ALICE)));
+        assertEquals(5, store.getLoadedCount());
+    }
+
+    @Test
+    public void removedConversationIsNotReadAgain() {
+        store.append(ALICE, record("new0"));
+        store.remove(ALICE);
+
+        store.append(ALICE, record("new1"));
+
+        assertEquals(Collections.singletonList("new1"), dialogues(store.snapshot(ALICE)));
+    }
+
+    @Test
+    public void indexesLetGoOfEvictedConversations() {
+        HistoryIndex index = new HistoryIndex(1024);
+        TextIndex text = new TextIndex(1024);
+        store.addSink(index);
+        store.addSink(text);
+        store.append(ALICE, record("new0"));
+        evictAlice();
+        store.append(ConversationId.p2p("bob"), record("later"));
+
+        assertFalse(index.query(HistoryQuery.inConversation(ALICE)).hasNext());
+        assertFalse(text.query(HistoryQuery.matching("new0")).hasNext());
+        assertTrue(text.query(HistoryQuery.matching("later")).hasNext());
+    }
+
+    @Test
+    public void storesSharingABudgetEvictTheLeastRecentlyUsedOfEither() {
+        HistoryBudget budget = new HistoryBudget(2000);
+        HistoryStore first = new HistoryStore(100, budget, null);
+        HistoryStore second = new HistoryStore(100, budget, null);
+        first.append(ALICE, record("old"));
+
+        for (int i = 0; i < 100; i++) {
+            second.append(ConversationId.p2p("peer" + i), record("filler" + i));
+        }
+
+        assertEquals(0, first.size(ALICE));
+        assertEquals(1, first.getEvictionCount());
+        assertTrue(budget.getFootprintBytes() <= budget.getBytes());
+        assertEquals(budget.getFootprintBytes(), first.getFootprintBytes() + second.getFootprintBytes());
+    }
+
+    /**
+     * Uses other conversations until the least recently used one, alice, is pushed out.
+     */
+    private void evictAlice() {
+        for (int i = 0; store.size(ALICE) > 0; i++) {
+            assertTrue("alice never evicted", i < 1000);
+            store.append(ConversationId.p2p("peer" + i), record("filler" + i));
+        }
+        assertTrue(store.getEvictionCount() > 0);
+    }
+
+    private static DialogueRecord record(String dialogue) {
+        return new DialogueRecord("alice", dialogue, 0L);
+    }
+
+    private static List<String> dialogues(List<DialogueRecord> records) {
+        List<String> dialogues = new ArrayList<>();
+        for (DialogueRecord record : records) {
+            dialogues.add(record.getDialogue());
+        }
+        return dialogues;
+    }
+
+    /**
+     * Keeps what the store appends and hands it back, like a {@link MessageLog} that has
+     * written everything.
+     */
+    private static class StoredHistory implements HistorySink, HistorySource {
+        private final Map<ConversationId, List<DialogueRecord>> records = new ConcurrentHashMap<>();
+
+        public synchronized void appended(ConversationId id, DialogueRecord record) {
+            List<DialogueRecord> conversation = records.get(id);
+            if (conversation == null) {
+                conversation = new ArrayList<>();
+                records.put(id, conversation);
+            }
+            conversation.add(record);
+        }
+
+        public synchronized List<DialogueRecord> load(ConversationId id, int max) {
+            List<DialogueRecord> conversation = records.get(id);
+            if (conversation == null) {
+                return Collections.emptyList();
+            }
+            return new ArrayList<>(conversation.subList(Math.max(0, conversation.size() - max), conversation.size()));
+        }
+    }
+}
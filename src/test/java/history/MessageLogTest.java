@@ -0,0 +1,81 @@
+package history;
+
+import model.DialogueRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Records that do not fit in a log entry.
+ */
+public class MessageLogTest {
+
+    private static final ConversationId ALICE = ConversationId.p2p("alice");
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("message-log").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void oversizedRecordsAreRefusedAndTheRestSurvivesReopening() throws Exception {
+        char[] huge = new char[(1 << 20) + 1];
+        Arrays.fill(huge, 'x');
+        char[] longName = new char[0x10000];
+        Arrays.fill(longName, 'a');
+
+        MessageLog log = MessageLog.open(directory);
+        log.append(ALICE, record("before")).get(5, TimeUnit.SECONDS);
+        assertRefused(log, ALICE, record(new String(huge)));
+        assertRefused(log, ALICE, new DialogueRecord(new String(longName), "hi", 0L));
+        log.append(ALICE, record("after")).get(5, TimeUnit.SECONDS);
+        assertEquals(2, log.getRejectedCount());
+        log.close();
+
+        MessageLog reopened = MessageLog.open(directory);
+        List<DialogueRecord> records = reopened.load(ALICE, 10);
+        reopened.close();
+        assertEquals(0, reopened.getTruncatedBytes());
+        assertEquals(2, records.size());
+        assertEquals("before", records.get(0).getDialogue());
+        assertEquals("after", records.get(1).getDialogue());
+    }
+
+    private static void assertRefused(MessageLog log, ConversationId id, DialogueRecord record) throws Exception {
+        try {
+            log.append(id, record).get(5, TimeUnit.SECONDS);
+            fail("appended a record that does not fit in an entry");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private static DialogueRecord record(String dialogue) {
+        return new DialogueRecord("alice", dialogue, 0L);
+    }
+}
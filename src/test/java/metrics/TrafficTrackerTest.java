@@ -0,0 +1,56 @@
+package metrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Slots that turn while writers count into them, and slots skipped while idle.
+ */
+public class TrafficTrackerTest {
+
+    @Test
+    public void writersLoseNothingWhileSlotsTurn() throws Exception {
+        final TrafficTracker tracker = new TrafficTracker("test", 2, 64, 400, 5, 4);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 5000; i++) {
+                    tracker.record("lobby");
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(20000, tracker.count("lobby"));
+        assertEquals(20000, sum(tracker.series("lobby")));
+    }
+
+    @Test
+    public void slotsSkippedWhileIdleHoldNothing() throws Exception {
+        TrafficTracker tracker = new TrafficTracker("test", 2, 64, 4, 20, 4);
+        for (int i = 0; i < 5; i++) {
+            tracker.record("lobby");
+        }
+        Thread.sleep(200);
+        tracker.record("lobby");
+
+        assertEquals(1, sum(tracker.series("lobby")));
+        assertEquals(6, tracker.count("lobby"));
+    }
+
+    private static long sum(long[] series) {
+        long sum = 0;
+        for (long count : series) {
+            sum += count;
+        }
+        return sum;
+    }
+}
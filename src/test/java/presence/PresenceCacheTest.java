@@ -0,0 +1,57 @@
+package presence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import transport.LoginListener;
+import transport.LoopbackBroker;
+import transport.LoopbackTransport;
+import transport.TransportSession;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Lookups asked for before there is a session to ask on, and after.
+ */
+public class PresenceCacheTest {
+
+    private LoopbackBroker broker;
+    private PresenceCache presence;
+
+    @Before
+    public void setUp() {
+        broker = new LoopbackBroker();
+        presence = new PresenceCache(60000, 10, 16, 2000, 100);
+    }
+
+    @After
+    public void tearDown() {
+        broker.shutdown();
+    }
+
+    @Test
+    public void lookupWithoutASessionDoesNotBlockLaterOnes() throws Exception {
+        assertNull(presence.query(null, "bob").get(1, TimeUnit.SECONDS));
+
+        TransportSession alice = login("alice");
+        login("bob");
+
+        assertEquals(Boolean.TRUE, presence.query(alice, "bob").get(5, TimeUnit.SECONDS));
+        assertEquals(1, presence.getQueryCount());
+    }
+
+    private TransportSession login(String account) throws Exception {
+        final CompletableFuture<TransportSession> login = new CompletableFuture<>();
+        new LoopbackTransport("app", broker).login(account, "token", new LoginListener() {
+            @Override
+            public void onLoginSuccess(TransportSession session, int uid) {
+                login.complete(session);
+            }
+        });
+        return login.get(5, TimeUnit.SECONDS);
+    }
+}
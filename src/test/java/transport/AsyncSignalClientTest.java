@@ -0,0 +1,126 @@
+package transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hedged logins and joins against a loopback broker whose jitter lets an attempt sent later
+ * reach the service first. Attempts are sent 10ms apart and answers take up to 20ms, so
+ * about one operation in eight has an older attempt arriving after a newer one won, and
+ * every attempt is answered well before the operation's 70ms deadline.
+ */
+public class AsyncSignalClientTest {
+
+    private static final int ACCOUNTS = 200;
+    private static final int CHANNELS = 100;
+
+    private LoopbackBroker broker;
+    private LoopbackTransport transport;
+    private AsyncSignalClient client;
+
+    @Before
+    public void setUp() {
+        broker = new LoopbackBroker(new LinkProfile(0, 20, 0, 0), 2);
+        transport = new LoopbackTransport("app", broker);
+        client = new AsyncSignalClient(2000, new RttEstimator(10, 10, 10), 3);
+    }
+
+    @After
+    public void tearDown() {
+        broker.shutdown();
+    }
+
+    @Test
+    public void hedgedLoginsStayLoggedInWhenAttemptsArriveOutOfOrder() throws Exception {
+        final AtomicInteger logouts = new AtomicInteger();
+        final CountDownLatch received = new CountDownLatch(ACCOUNTS);
+        List<CompletableFuture<TransportSession>> logins = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            logins.add(client.login(transport, "account" + i, "token", new LoginListener() {
+                @Override
+                public void onLogout(TransportSession session, int ecode) {
+                    logouts.incrementAndGet();
+                }
+
+                @Override
+                public void onMessageInstantReceive(TransportSession session, String account, int uid, String msg) {
+                    received.countDown();
+                }
+            }));
+        }
+        List<TransportSession> sessions = new ArrayList<>();
+        for (CompletableFuture<TransportSession> login : logins) {
+            sessions.add(login.get(5, TimeUnit.SECONDS));
+        }
+        // every attempt has been answered by now
+        Thread.sleep(200);
+
+        assertEquals("logouts", 0, logouts.get());
+        assertEquals("online", ACCOUNTS, broker.getOnlineCount());
+        for (int i = 0; i < ACCOUNTS; i++) {
+            sessions.get(i).messageInstantSend("account" + ((i + 1) % ACCOUNTS), "hello", new MessageListener() {
+            });
+        }
+        assertTrue("every session can still send and receive", received.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void hedgedJoinsStayJoinedWhenAttemptsArriveOutOfOrder() throws Exception {
+        TransportSession session = client.login(transport, "member", "token", new LoginListener() {
+        }).get(5, TimeUnit.SECONDS);
+        final AtomicInteger leaves = new AtomicInteger();
+        final AtomicInteger received = new AtomicInteger();
+        List<CompletableFuture<TransportChannel>> joins = new ArrayList<>();
+        for (int i = 0; i < CHANNELS; i++) {
+            joins.add(client.join(session, "channel" + i, new ChannelListener() {
+                @Override
+                public void onMessageChannelReceive(TransportSession s, TransportChannel channel, String account, int uid, String msg) {
+                    received.incrementAndGet();
+                }
+
+                @Override
+                public void onChannelLeaved(TransportSession s, TransportChannel channel, int ecode) {
+                    leaves.incrementAndGet();
+                }
+            }));
+        }
+        List<TransportChannel> channels = new ArrayList<>();
+        for (CompletableFuture<TransportChannel> join : joins) {
+            channels.add(join.get(5, TimeUnit.SECONDS));
+        }
+        Thread.sleep(200);
+
+        assertEquals("leaves", 0, leaves.get());
+        for (TransportChannel channel : channels) {
+            channel.messageChannelSend("hello");
+        }
+        Thread.sleep(200);
+        assertEquals("each channel echoes its message once", CHANNELS, received.get());
+    }
+
+    @Test
+    public void loggingOutEndsTheSessionTheServiceKept() throws Exception {
+        List<CompletableFuture<TransportSession>> logins = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            logins.add(client.login(transport, "account" + i, "token", new LoginListener() {
+            }));
+        }
+        for (CompletableFuture<TransportSession> login : logins) {
+            client.logout(login.get(5, TimeUnit.SECONDS));
+        }
+        // attempts still in flight during the logout are undone when they arrive
+        Thread.sleep(300);
+        assertEquals("online", 0, broker.getOnlineCount());
+    }
+}
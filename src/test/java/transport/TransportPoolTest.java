@@ -0,0 +1,83 @@
+package transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Placements of hedged logins whose attempts replace each other at the service.
+ */
+public class TransportPoolTest {
+
+    private static final int ACCOUNTS = 200;
+
+    private LoopbackBroker broker;
+    private TransportPool pool;
+    private AsyncSignalClient client;
+
+    @Before
+    public void setUp() {
+        broker = new LoopbackBroker(new LinkProfile(0, 20, 0, 0), 2);
+        pool = new TransportPool(16, 1.25, 0);
+        pool.add("app0", new LoopbackTransport("app0", broker));
+        pool.add("app1", new LoopbackTransport("app1", broker));
+        client = new AsyncSignalClient(2000, new RttEstimator(10, 10, 10), 3);
+        warmUp();
+    }
+
+    @After
+    public void tearDown() {
+        broker.shutdown();
+    }
+
+    @Test
+    public void replacedAttemptsKeepTheAccountPlaced() throws Exception {
+        List<CompletableFuture<TransportSession>> logins = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            String account = "account" + i;
+            logins.add(client.login(pool.assign(account), account, "token", new LoginListener() {
+            }));
+        }
+        List<TransportSession> sessions = new ArrayList<>();
+        for (CompletableFuture<TransportSession> login : logins) {
+            sessions.add(login.get(5, TimeUnit.SECONDS));
+        }
+        Thread.sleep(200);
+        assertEquals("placed while online", ACCOUNTS, placed());
+
+        for (TransportSession session : sessions) {
+            client.logout(session);
+        }
+        Thread.sleep(300);
+        assertEquals("placed after logout", 0, placed());
+    }
+
+    /**
+     * One login outside the pool, so class loading does not eat into the first measured one.
+     */
+    private void warmUp() {
+        try {
+            TransportSession session = client.login(new LoopbackTransport("warmup", broker), "warmup", "token",
+                    new LoginListener() {
+                    }).get(5, TimeUnit.SECONDS);
+            client.logout(session).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            // the measured logins report it
+        }
+    }
+
+    private int placed() {
+        int placed = 0;
+        for (int sessions : pool.getSessionCounts().values()) {
+            placed += sessions;
+        }
+        return placed;
+    }
+}